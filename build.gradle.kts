@@ -6,6 +6,7 @@ plugins {
     id("gg.essential.loom") version "0.10.0.+"
     id("dev.architectury.architectury-pack200") version "0.1.3"
     id("com.github.johnrengelman.shadow") version "8.1.1"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 val baseGroup: String by project
@@ -54,6 +55,22 @@ dependencies {
     forge("net.minecraftforge:forge:1.8.9-11.15.1.2318-1.8.9")
 }
 
+// Benchmarks (src/jmh): ./gradlew jmh [-PjmhInclude=Storage]
+// The benchmarked classes do not need a running game; the Minecraft jars are only on the
+// classpath so the mod's classes link.
+
+sourceSets.named("jmh") {
+    compileClasspath += sourceSets.main.get().compileClasspath
+    runtimeClasspath += sourceSets.main.get().runtimeClasspath
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    (project.findProperty("jmhInclude") as String?)?.let { includes.add(it) }
+}
+
 // Tasks:
 
 tasks.withType(JavaCompile::class) {
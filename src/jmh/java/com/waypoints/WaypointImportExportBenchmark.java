@@ -0,0 +1,58 @@
+package com.waypoints;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/** Clipboard formats: streaming import of soopy JSON, xyz rows and route codes, and their exports. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaypointImportExportBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    private WaypointGroup route;
+    private String soopy;
+    private String xyz;
+    private String code;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        route = WaypointRouteGenerator.route("bench", size, 42L);
+        soopy = exportSoopy();
+        xyz   = WaypointRouteGenerator.xyzRows(route);
+        code  = WaypointRouteCode.encode(route);
+    }
+
+    @Benchmark
+    public WaypointGroup importSoopy() throws IOException {
+        return WaypointImporter.read(soopy, "bench").group;
+    }
+
+    @Benchmark
+    public WaypointGroup importXyz() throws IOException {
+        return WaypointImporter.read(xyz, "bench").group;
+    }
+
+    @Benchmark
+    public WaypointGroup importCode() throws IOException {
+        return WaypointImporter.read(code, "bench").group;
+    }
+
+    @Benchmark
+    public String exportSoopy() throws IOException {
+        return WaypointExporter.toString(Collections.singletonList(route), WaypointImporter.Format.SOOPY, false);
+    }
+
+    @Benchmark
+    public String exportCode() {
+        return WaypointRouteCode.encode(route);
+    }
+}
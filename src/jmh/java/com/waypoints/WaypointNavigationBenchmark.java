@@ -0,0 +1,67 @@
+package com.waypoints;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-tick work: the advance engine's check, stepping the state along the route, and a
+ * nearest-waypoint query (resync) from positions scattered around the route.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaypointNavigationBenchmark {
+
+    private static final int POSITIONS = 4096;
+
+    @Param({"1000", "50000"})
+    public int size;
+
+    private WaypointState state;
+    private WaypointAdvanceEngine engine;
+    private final double[] px = new double[POSITIONS], py = new double[POSITIONS], pz = new double[POSITIONS];
+    private int cursor;
+    private long clock;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        WaypointGroup route = WaypointRouteGenerator.route("bench", size, 42L);
+        state  = WaypointState.getInstance();
+        state.load(route);
+        state.advancePolicy = new WaypointAdvancePolicy.Dwell();
+        engine = new WaypointAdvanceEngine();
+
+        Random r = new Random(7L);
+        for (int i = 0; i < POSITIONS; i++) {
+            int p = r.nextInt(size);
+            px[i] = route.x(p) + r.nextGaussian() * 8;
+            py[i] = route.y(p) + r.nextGaussian() * 2;
+            pz[i] = route.z(p) + r.nextGaussian() * 8;
+        }
+    }
+
+    @Benchmark
+    public int engineTick() {
+        int i = cursor++ & (POSITIONS - 1);
+        engine.tick(state, px[i], py[i], pz[i], clock += 50_000_000L);
+        return state.getCurrentIndex();
+    }
+
+    @Benchmark
+    public double advanceAndReadNext() {
+        state.advance();
+        WaypointState.Nav nav = state.nav();
+        return nav.nextX + nav.nextY + nav.nextZ;
+    }
+
+    @Benchmark
+    public int nearest() {
+        int i = cursor++ & (POSITIONS - 1);
+        return state.nearestIndex(px[i], py[i], pz[i]);
+    }
+}
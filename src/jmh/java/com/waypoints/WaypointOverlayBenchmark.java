@@ -0,0 +1,66 @@
+package com.waypoints;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU side of the overlay, without a GL context: filling the line batch the route display
+ * list is built from, planning setup-mode labels, and building label text. The font is a
+ * fixed-width shim (6px per char) and the frustum accepts everything, so these are upper
+ * bounds for what a frame can cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaypointOverlayBenchmark {
+
+    private static final WaypointLabelLod.Culler EVERYTHING = (a, b, c, d, e, f) -> true;
+
+    @Param({"1000", "10000", "50000"})
+    public int size;
+
+    private WaypointState state;
+    private WaypointGroup route;
+    private final WaypointLineBatch batch = new WaypointLineBatch();
+    private final WaypointLabelLod lod = new WaypointLabelLod();
+    private final WaypointLabelCache labels = new WaypointLabelCache(s -> s.length() * 6);
+    private int frame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        route = WaypointRouteGenerator.route("bench", size, 42L);
+        state = WaypointState.getInstance();
+        state.load(route);
+        state.setupMode = true;
+    }
+
+    @Benchmark
+    public int buildRouteVertices() {
+        batch.reset();
+        WaypointRouteGeometry.fill(batch, state.routes(), true, Integer.MAX_VALUE, null);
+        return batch.vertexCount();
+    }
+
+    @Benchmark
+    public int planSetupLabels() {
+        return lod.plan(route, 0, 1, route.x(0), route.y(0), route.z(0), EVERYTHING,
+                state.labelMaxDistance, state.labelFullCount, state.labelBudget);
+    }
+
+    /** Every label rebuilt once per call: the cost after a group edit, not a steady frame. */
+    @Benchmark
+    public int buildAllLabels() {
+        labels.sync(route);
+        int metres = frame++;
+        int w = 0;
+        for (int i = 0; i < route.size(); i++) {
+            labels.label(i, '7', null, metres);
+            w += labels.width(i);
+        }
+        return w;
+    }
+}
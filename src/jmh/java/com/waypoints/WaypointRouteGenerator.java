@@ -0,0 +1,35 @@
+package com.waypoints;
+
+import java.util.Random;
+
+/**
+ * Synthetic routes for the benchmarks: a seeded random walk that looks like a mining route
+ * (3-15 block hops, mostly horizontal, y kept inside the usual mining range) with numeric
+ * names, so every run and every machine sees the same data.
+ */
+public final class WaypointRouteGenerator {
+
+    private WaypointRouteGenerator() {}
+
+    public static WaypointGroup route(String name, int size, long seed) {
+        Random r = new Random(seed);
+        WaypointGroup g = new WaypointGroup(name, "synthetic " + size);
+        int x = 0, y = 100, z = 0;
+        for (int i = 0; i < size; i++) {
+            x += r.nextInt(25) - 12;
+            z += r.nextInt(25) - 12;
+            y  = Math.max(31, Math.min(188, y + r.nextInt(7) - 3));
+            g.add(x, y, z, String.valueOf(i + 1));
+        }
+        return g;
+    }
+
+    /** The route as plain "x y z" rows, the simplest import format. */
+    public static String xyzRows(WaypointGroup g) {
+        StringBuilder sb = new StringBuilder(g.size() * 16);
+        for (int i = 0; i < g.size(); i++) {
+            sb.append((int) g.x(i)).append(' ').append((int) g.y(i)).append(' ').append((int) g.z(i)).append('\n');
+        }
+        return sb.toString();
+    }
+}
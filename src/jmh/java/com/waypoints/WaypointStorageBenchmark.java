@@ -0,0 +1,96 @@
+package com.waypoints;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk paths: cold load of one group (index, shard, journal replay) and a forced save
+ * (compaction: shard + index rewrite) after a single edit, in both shard formats.
+ * Each trial gets its own temp directory and storage instance.
+ *
+ * Setup also prints the group's compacted shard size on disk, so the run log compares json
+ * and binary on size as well as time. (It is not an {@code @AuxCounters} metric: JMH sums
+ * those over iterations.)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaypointStorageBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private File root;
+    private WaypointStorage storage;
+    private WaypointGroup group;
+    private int edits;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("waypoints-bench").toFile();
+        WaypointStorage seed = new WaypointStorage();
+        seed.initFile(root);
+        seed.load();
+        seed.putGroup(WaypointRouteGenerator.route("bench", size, 42L));
+        if (format.equals("binary")) seed.convertGroup("bench", true);
+        seed.saveForce();
+        seed.shutdown();
+        long bytes = size(new File(new File(root, "waypoints"), "groups"));
+        System.out.printf("shard size: %s, %d points: %d bytes (%.1f bytes/point)%n",
+                format, size, bytes, (double) bytes / size);
+
+        storage = new WaypointStorage();
+        storage.initFile(root);
+        storage.load();
+        group = storage.getGroup("bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.shutdown();
+        delete(root);
+    }
+
+    @Benchmark
+    public WaypointGroup load() {
+        storage.load();
+        return group = storage.getGroup("bench");
+    }
+
+    @Benchmark
+    public void saveForce() {
+        storage.renamePoint(group, 0, "edit" + (edits++));
+        storage.saveForce();
+    }
+
+    /** One journaled edit written through, the common case between compactions. */
+    @Benchmark
+    public void renameAndFlush() {
+        storage.renamePoint(group, edits % group.size(), "edit" + (edits++));
+        storage.saveIfDirty();
+    }
+
+    private static long size(File f) {
+        File[] children = f.listFiles();
+        if (children == null) return f.length();
+        long n = 0;
+        for (File c : children) n += size(c);
+        return n;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) delete(c);
+        f.delete();
+    }
+}
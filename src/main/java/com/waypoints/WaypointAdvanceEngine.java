@@ -0,0 +1,137 @@
+package com.waypoints;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.util.BlockPos;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+/**
+ * Drives auto-advance from the client tick, independent of rendering and frame rate.
+ *
+ * Every active route is checked each tick: the squared distance from the player to its
+ * next waypoint (taken from the route's {@link WaypointState.Nav} snapshot) is handed to
+ * that route's own copy of {@link WaypointState#advancePolicy}, so two routes never share
+ * a dwell timer. A route's target is re-resolved only when it or its position changes, so
+ * a steady tick does no allocation and no sqrt. Time is {@link System#nanoTime()}, which
+ * does not jump with the wall clock.
+ */
+public class WaypointAdvanceEngine {
+
+    private static final Minecraft mc = Minecraft.getMinecraft();
+
+    static final int BLOCK_UNLOADED = -1;
+    static final int BLOCK_AIR      = 0;
+    static final int BLOCK_SOLID    = 1;
+
+    /** Resolved state for one route; refreshed when any of its versions change. */
+    private static final class Target {
+        WaypointGroup group;
+        int groupVersion;
+        int navVersion = -1;
+        WaypointAdvancePolicy policy;
+        int nextIndex;
+        BlockPos nextPos;
+        double distSq;
+    }
+
+    private Target[] targets = new Target[0];
+    private int targetCount;
+    private int routesVersion = -1;
+    /** The policy setting the targets' policies were made from. */
+    private WaypointAdvancePolicy policySource;
+
+    // this tick
+    private Target target;
+    private long nowNanos;
+
+    @SubscribeEvent
+    public void onClientTick(TickEvent.ClientTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) return;
+        if (mc.thePlayer == null || mc.theWorld == null) return;
+        WaypointProfiler perf = WaypointProfiler.getInstance();
+        long start = perf.start();
+        tick(WaypointState.getInstance(), mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ,
+                System.nanoTime());
+        perf.lap(WaypointProfiler.ADVANCE, start);
+    }
+
+    /** One advance check of every active route for a player at the given position. */
+    void tick(WaypointState state, double px, double py, double pz, long now) {
+        state.checkResync(px, py, pz);
+        WaypointState.Routes routes = state.routes();
+        if (routes.version != routesVersion || state.advancePolicy != policySource) resolve(state, routes);
+
+        nowNanos = now;
+        for (int i = 0; i < targetCount; i++) {
+            WaypointState.Nav nav = routes.all.get(i);
+            if (!nav.hasGroup()) continue;
+            target = targets[i];
+            double dx = nav.nextX - px, dy = nav.nextY - py, dz = nav.nextZ - pz;
+            target.distSq = dx * dx + dy * dy + dz * dz;
+            if (target.policy.shouldAdvance(this, state)) state.advance(nav.group);
+        }
+        target = null;
+    }
+
+    // ------------------------------------------------------------------ for policies (about the route being checked)
+
+    /** Squared distance to the next waypoint this tick. */
+    double distSq() { return target.distSq; }
+
+    long nowNanos() { return nowNanos; }
+
+    int nextIndex() { return target.nextIndex; }
+
+    boolean inRange(WaypointState state) {
+        return target.distSq <= state.advanceRange * state.advanceRange;
+    }
+
+    /** What occupies the next waypoint's block: {@link #BLOCK_AIR}, {@link #BLOCK_SOLID} or unloaded. */
+    int nextBlock() {
+        BlockPos pos = target.nextPos;
+        if (mc.theWorld == null || !mc.theWorld.isBlockLoaded(pos)) return BLOCK_UNLOADED;
+        return mc.theWorld.isAirBlock(pos) ? BLOCK_AIR : BLOCK_SOLID;
+    }
+
+    // ------------------------------------------------------------------ internals
+
+    /**
+     * Line the targets up with the routes. A target follows its group from slot to slot,
+     * so showing or hiding another route does not reset a dwell in progress.
+     */
+    private void resolve(WaypointState state, WaypointState.Routes routes) {
+        boolean newPolicy = state.advancePolicy != policySource;
+        policySource  = state.advancePolicy;
+        routesVersion = routes.version;
+
+        int n = routes.all.size();
+        Target[] next = new Target[Math.max(n, targets.length)];
+        for (int i = 0; i < n; i++) {
+            WaypointState.Nav nav = routes.all.get(i);
+            Target t = null;
+            for (int k = 0; k < targetCount && t == null; k++) {
+                if (targets[k] != null && targets[k].group == nav.group) {
+                    t = targets[k];
+                    targets[k] = null;
+                }
+            }
+            if (t == null) t = new Target();
+            if (t.policy == null || newPolicy) {
+                WaypointAdvancePolicy copy = WaypointAdvancePolicy.create(policySource.toString());
+                t.policy = copy != null ? copy : policySource; // an unnamed custom policy is shared
+                t.navVersion = -1;
+            }
+            if (t.group != nav.group || t.groupVersion != nav.groupVersion || t.navVersion != nav.version) {
+                t.group        = nav.group;
+                t.groupVersion = nav.groupVersion;
+                t.navVersion   = nav.version;
+                t.nextIndex    = nav.next;
+                t.nextPos      = new BlockPos(nav.nextX, nav.nextY, nav.nextZ);
+                t.policy.reset();
+            }
+            next[i] = t;
+        }
+        targets     = next;
+        targetCount = n;
+    }
+}
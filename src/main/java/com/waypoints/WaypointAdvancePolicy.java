@@ -0,0 +1,101 @@
+package com.waypoints;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides when the route moves on to the next waypoint.
+ *
+ * {@link WaypointAdvanceEngine} asks the active policy once per client tick, after it has
+ * worked out the squared distance to the next point. The policy is {@link #reset} whenever
+ * the target changes (advance, skip, load, or the user picking another policy), so it only
+ * ever has to think about one waypoint at a time. Implementations must not allocate per tick.
+ */
+public interface WaypointAdvancePolicy {
+
+    List<String> NAMES = Arrays.asList("dwell", "range", "break");
+
+    /** @return true to advance now */
+    boolean shouldAdvance(WaypointAdvanceEngine engine, WaypointState state);
+
+    /** Forget any progress towards the current target. */
+    void reset();
+
+    /** Policy for a {@link #NAMES} entry, or null if the name is unknown. */
+    static WaypointAdvancePolicy create(String name) {
+        switch (name.toLowerCase()) {
+            case "dwell": return new Dwell();
+            case "range": return new Range();
+            case "break": return new BlockBreak();
+            default:      return null;
+        }
+    }
+
+    /** Stay within {@code advanceRange} for {@code advanceDelayMs}. The original behaviour. */
+    final class Dwell implements WaypointAdvancePolicy {
+        private long enteredNanos = -1L;
+
+        @Override
+        public boolean shouldAdvance(WaypointAdvanceEngine engine, WaypointState state) {
+            if (!engine.inRange(state)) {
+                enteredNanos = -1L;
+                return false;
+            }
+            long now = engine.nowNanos();
+            if (enteredNanos < 0) {
+                enteredNanos = now;
+                return false;
+            }
+            return now - enteredNanos >= state.advanceDelayMs * 1_000_000L;
+        }
+
+        @Override public void reset() { enteredNanos = -1L; }
+
+        @Override public String toString() { return "dwell"; }
+    }
+
+    /** Advance the moment the player is within {@code advanceRange}. */
+    final class Range implements WaypointAdvancePolicy {
+        @Override
+        public boolean shouldAdvance(WaypointAdvanceEngine engine, WaypointState state) {
+            return engine.inRange(state);
+        }
+
+        @Override public void reset() {}
+
+        @Override public String toString() { return "range"; }
+    }
+
+    /**
+     * Advance when the waypoint's block is mined: it was seen solid and is now air. Points
+     * whose block is already air when they become the target (markers placed where the
+     * player stood) fall back to {@link Dwell}.
+     */
+    final class BlockBreak implements WaypointAdvancePolicy {
+        private static final int UNKNOWN = 0, SOLID = 1, WAS_AIR = 2;
+
+        private final Dwell fallback = new Dwell();
+        private int seen = UNKNOWN;
+
+        @Override
+        public boolean shouldAdvance(WaypointAdvanceEngine engine, WaypointState state) {
+            if (seen == WAS_AIR) return fallback.shouldAdvance(engine, state);
+            int block = engine.nextBlock();
+            if (block == WaypointAdvanceEngine.BLOCK_UNLOADED) return false;
+            boolean air = block == WaypointAdvanceEngine.BLOCK_AIR;
+            if (seen == UNKNOWN) {
+                seen = air ? WAS_AIR : SOLID;
+                return false;
+            }
+            return air;
+        }
+
+        @Override
+        public void reset() {
+            seen = UNKNOWN;
+            fallback.reset();
+        }
+
+        @Override public String toString() { return "break"; }
+    }
+}
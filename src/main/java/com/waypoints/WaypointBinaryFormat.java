@@ -0,0 +1,179 @@
+package com.waypoints;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary shard format (.wpb), read through a memory-mapped buffer.
+ *
+ * Layout, little-endian:
+ * <pre>
+ *   header   magic "WPB1", int version, long generation, int count, int strings,
+ *            int stringsOffset, int reserved                               (32 bytes)
+ *   columns  double x[count], double y[count], double z[count]
+ *   names    int nameRef[count]   – index into the string table, -1 for no name
+ *   strings  (int byteLength, UTF-8 bytes)[strings] – [0] group name, [1] description
+ * </pre>
+ * Coordinate columns sit 8-byte aligned straight after the header, so they are copied out
+ * with one bulk {@code DoubleBuffer.get} each straight into the group's column arrays.
+ * Repeated point names share a table slot.
+ */
+final class WaypointBinaryFormat {
+
+    static final String EXTENSION = ".wpb";
+
+    private static final int MAGIC       = 0x31425057; // "WPB1" read little-endian
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 32;
+
+    /** A decoded shard together with the journal generation it was written in. */
+    static final class Shard {
+        final WaypointGroup group;
+        final long generation;
+
+        Shard(WaypointGroup group, long generation) {
+            this.group      = group;
+            this.generation = generation;
+        }
+    }
+
+    private WaypointBinaryFormat() {}
+
+    static boolean isBinary(String fileName) { return fileName.endsWith(EXTENSION); }
+
+    // ------------------------------------------------------------------ read
+
+    static Shard read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel ch = raf.getChannel()) {
+            long size = ch.size();
+            if (size < HEADER_SIZE) throw new IOException("Truncated waypoint shard " + file);
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                return decode(map.order(ByteOrder.LITTLE_ENDIAN), file);
+            } finally {
+                unmap(map);
+            }
+        }
+    }
+
+    private static Shard decode(ByteBuffer buf, File file) throws IOException {
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            throw new IOException("Not a waypoint shard: " + file);
+        long generation    = buf.getLong(8);
+        int  count         = buf.getInt(16);
+        int  strings       = buf.getInt(20);
+        int  stringsOffset = buf.getInt(24);
+        long columnsEnd    = HEADER_SIZE + (long) count * 28;
+        if (count < 0 || strings < 2 || stringsOffset < columnsEnd || stringsOffset > buf.limit())
+            throw new IOException("Corrupt waypoint shard header: " + file);
+
+        double[] xs = new double[count], ys = new double[count], zs = new double[count];
+        int[] refs = new int[count];
+        buf.position(HEADER_SIZE);
+        buf.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(xs).get(ys).get(zs);
+        buf.position(HEADER_SIZE + count * 24);
+        buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(refs);
+
+        String[] table = new String[strings];
+        buf.position(stringsOffset);
+        for (int i = 0; i < strings; i++) {
+            int len = buf.getInt();
+            if (len < 0 || len > buf.remaining()) throw new IOException("Corrupt string table: " + file);
+            byte[] b = new byte[len];
+            buf.get(b);
+            table[i] = new String(b, StandardCharsets.UTF_8);
+        }
+
+        String[] names = null;
+        for (int i = 0; i < count; i++) {
+            int ref = refs[i];
+            if (ref < 2 || ref >= strings) continue;
+            if (names == null) names = new String[count];
+            names[i] = table[ref];
+        }
+        return new Shard(new WaypointGroup(table[0], table[1], xs, ys, zs, names, count), generation);
+    }
+
+    // ------------------------------------------------------------------ write
+
+    /** Writes to a .tmp sibling and moves it into place, like the JSON shards. */
+    static void write(File target, WaypointGroup g, long generation) throws IOException {
+        int count = g.size();
+        List<byte[]> table = new ArrayList<>();
+        Map<String, Integer> slots = new HashMap<>();
+        table.add(utf8(g.name));
+        table.add(utf8(g.description));
+        int[] refs = new int[count];
+        for (int i = 0; i < count; i++) {
+            String name = g.name(i);
+            if (name == null) { refs[i] = -1; continue; }
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = table.size();
+                slots.put(name, slot);
+                table.add(utf8(name));
+            }
+            refs[i] = slot;
+        }
+
+        int stringsOffset = HEADER_SIZE + count * 28;
+        int stringBytes = 0;
+        for (byte[] b : table) stringBytes += 4 + b.length;
+        ByteBuffer buf = ByteBuffer.allocate(stringsOffset + stringBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putLong(generation)
+           .putInt(count).putInt(table.size()).putInt(stringsOffset).putInt(0);
+        for (int i = 0; i < count; i++) buf.putDouble(g.x(i));
+        for (int i = 0; i < count; i++) buf.putDouble(g.y(i));
+        for (int i = 0; i < count; i++) buf.putDouble(g.z(i));
+        for (int ref : refs) buf.putInt(ref);
+        for (byte[] b : table) buf.putInt(b.length).put(b);
+        buf.flip();
+
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) ch.write(buf);
+        } catch (IOException | RuntimeException e) {
+            try { Files.deleteIfExists(tmp.toPath()); } catch (Exception ignored) {}
+            throw e;
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Release the mapping right away instead of waiting for GC – on Windows a mapped file
+     * cannot be replaced, which would break the next atomic shard write. Best effort.
+     */
+    private static void unmap(MappedByteBuffer map) {
+        try {
+            Method cleanerMethod = map.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(map);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Throwable ignored) {
+            // not a Java 8 DirectByteBuffer; the GC will release it
+        }
+    }
+}
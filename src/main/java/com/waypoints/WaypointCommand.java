@@ -1,8 +1,5 @@
 package com.waypoints;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.gui.GuiScreen;
 import net.minecraft.command.CommandBase;
@@ -13,22 +10,42 @@ import net.minecraft.util.BlockPos;
 import net.minecraft.util.ChatComponentText;
 import net.minecraft.util.EnumChatFormatting;
 
-import java.lang.reflect.Type;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 
 public class WaypointCommand extends CommandBase {
 
-    private static final Minecraft mc   = Minecraft.getMinecraft();
-    private static final Gson      GSON = new GsonBuilder().create();
+    private static final Minecraft mc = Minecraft.getMinecraft();
+
+    /** The running /w optimize job, if any. */
+    private volatile WaypointRouteOptimizer optimizer;
+    private volatile String optimizing;
 
     private static final List<String> SUBCOMMANDS = Arrays.asList(
             "list", "load", "unload", "clear", "setup", "reset",
-            "skip", "unskip", "skipto", "enable", "disable",
+            "skip", "unskip", "skipto", "nearest", "resync", "autoresync", "enable", "disable",
             "create", "delete", "add", "insert", "remove", "rename",
-            "export", "import", "range", "time", "save", "info"
+            "export", "import", "convert", "optimize", "range", "time", "mode", "labels", "savedelay", "save", "info", "perf",
+            "undo", "redo", "undodepth", "show", "hide", "focus", "routes", "budget", "path", "visibility", "dedupe"
     );
 
+    /** Colour names /w show accepts, with their Minecraft colour codes. */
+    private static final Map<String, Character> ROUTE_COLOURS = new LinkedHashMap<>();
+    static {
+        ROUTE_COLOURS.put("yellow", 'e');
+        ROUTE_COLOURS.put("aqua",   'b');
+        ROUTE_COLOURS.put("pink",   'd');
+        ROUTE_COLOURS.put("gold",   '6');
+        ROUTE_COLOURS.put("red",    'c');
+        ROUTE_COLOURS.put("blue",   '9');
+        ROUTE_COLOURS.put("green",  'a');
+        ROUTE_COLOURS.put("white",  'f');
+        ROUTE_COLOURS.put("gray",   '7');
+    }
+
     // ------------------------------------------------------------------ ICommand
 
     @Override public String getCommandName()  { return "waypoints"; }
@@ -59,21 +76,43 @@ public class WaypointCommand extends CommandBase {
                 msg(sender, "&e/w create <name>  &7- Create a new group");
                 msg(sender, "&e/w delete <name> &7- Delete a group");
                 msg(sender, "&e/w rename <old> <new> &7- Rename a group");
+                msg(sender, "&e/w undo [n] &7- Undo the last route edit(s)");
+                msg(sender, "&e/w redo [n] &7- Redo what was undone");
+                msg(sender, "&e/w undodepth <n> &7- How many edits undo remembers");
                 msg(sender, "&e/w load <name> &7- Load a group");
+                msg(sender, "&e/w show <name> [colour] &7- Show another group alongside the loaded one");
+                msg(sender, "&e/w hide <name|all> &7- Stop showing a group (all: every one but the focused)");
+                msg(sender, "&e/w focus <name> &7- Make a shown group the one commands act on");
+                msg(sender, "&e/w routes &7- List the groups being shown");
+                msg(sender, "&e/w budget [lines] &7- Lines per frame shared by all shown groups");
                 msg(sender, "&e/w add [name] &7- Add waypoint at your position");
                 msg(sender, "&e/w insert <index> [name] &7- Insert waypoint at index");
-                msg(sender, "&e/w remove <index> &7- Remove waypoint");
+                msg(sender, "&e/w remove <index|name> &7- Remove waypoint");
                 msg(sender, "&e/w skip [n] &7- Skip forward");
                 msg(sender, "&e/w unskip [n] &7- Go backward");
-                msg(sender, "&e/w skipto <index> &7- Jump to waypoint");
+                msg(sender, "&e/w skipto <index|name> &7- Jump to waypoint");
+                msg(sender, "&e/w nearest &7- Show the waypoint closest to you");
+                msg(sender, "&e/w resync &7- Jump to the waypoint closest to you");
+                msg(sender, "&e/w autoresync <on|off|blocks> &7- Resync automatically after warps and deaths");
                 msg(sender, "&e/w reset &7- Reset to first waypoint");
                 msg(sender, "&e/w enable &7- Enable rendering");
                 msg(sender, "&e/w disable &7- Disable rendering");
-                msg(sender, "&e/w export [name] &7- Copy route to clipboard");
-                msg(sender, "&e/w import <name> &7- Import from clipboard");
+                msg(sender, "&e/w export [name|all] [soopy|coleweight|xyz|csv|code] [file [path]] &7- Copy route(s) to clipboard or a file");
+                msg(sender, "&e/w import <name> [file <path>] &7- Import from clipboard or a file");
+                msg(sender, "&e/w convert <name|all> <json|binary> &7- Change a group's storage format");
+                msg(sender, "&e/w optimize [name] [pin] &7- Reorder into a short loop (pin keeps the first point)");
+                msg(sender, "&e/w optimize <status|cancel> &7- Check on or stop a running optimize");
+                msg(sender, "&e/w dedupe [name] [radius] [remove] &7- Find (or remove) repeated waypoints");
+                msg(sender, "&e/w dedupe warn <off|radius> &7- Warn when adding a point onto an existing one");
                 msg(sender, "&e/w range <blocks> &7- Set auto-advance range");
                 msg(sender, "&e/w time <ms> &7- Set auto-advance delay");
+                msg(sender, "&e/w mode <dwell|range|break> &7- When to auto-advance");
+                msg(sender, "&e/w labels <distance|full|budget> <value> &7- Tune setup-mode labels");
+                msg(sender, "&e/w path <ahead> [behind] &7- How much of the route to draw around you (0 hides it)");
+                msg(sender, "&e/w visibility <on|off|range|rays|budget> [value] &7- Dim waypoints behind blocks");
+                msg(sender, "&e/w savedelay <ms> &7- Batch disk writes over this window");
                 msg(sender, "&e/w info &7- Show current route info");
+                msg(sender, "&e/w perf [on|off|reset|dump] &7- Time the overlay, per phase");
                 msg(sender, "&e/w save &7- Force save to disk");
                 msg(sender, "&e/w setup &7- Display all waypoints in loaded group at once.");
                 break;
@@ -87,7 +126,7 @@ public class WaypointCommand extends CommandBase {
                 WaypointGroup g = storage.getGroup(args[1]);
                 if (g == null) { msg(sender, "&cGroup '&e" + args[1] + "&c' not found."); return; }
                 state.load(g);
-                msg(sender, "&aLoaded group &e" + g.name + " &a(&e" + g.waypoints.size() + " waypoints&a).");
+                msg(sender, "&aLoaded group &e" + g.name + " &a(&e" + g.size() + " waypoints&a).");
                 break;
             }
 
@@ -97,6 +136,75 @@ public class WaypointCommand extends CommandBase {
                 msg(sender, "&aWaypoints unloaded.");
                 break;
 
+            case "show": {
+                if (args.length < 2) { msg(sender, "&cUsage: /w show <name> [colour]"); return; }
+                WaypointGroup g = storage.getGroup(args[1]);
+                if (g == null) { msg(sender, "&cGroup '&e" + args[1] + "&c' not found."); return; }
+                Character colour = null;
+                if (args.length >= 3) {
+                    colour = parseColour(args[2]);
+                    if (colour == null) {
+                        msg(sender, "&cUnknown colour. Use one of " + String.join(", ", ROUTE_COLOURS.keySet())
+                                + " or a colour code 0-f.");
+                        return;
+                    }
+                }
+                state.show(g, colour);
+                WaypointState.Routes routes = state.routes();
+                char c = routes.all.get(routes.indexOf(g)).colour;
+                msg(sender, "&aShowing &" + c + g.name + " &a(&e" + g.size() + " waypoints&a).");
+                break;
+            }
+
+            case "hide": {
+                if (args.length < 2) { msg(sender, "&cUsage: /w hide <name|all>"); return; }
+                if (args[1].equalsIgnoreCase("all")) {
+                    state.hideOthers();
+                    msg(sender, "&aHid every group but the focused one.");
+                    return;
+                }
+                WaypointGroup g = activeRoute(state, args[1]);
+                if (g == null) { msg(sender, "&cGroup '&e" + args[1] + "&c' is not shown."); return; }
+                state.hide(g);
+                msg(sender, "&aHid &e" + g.name + "&a.");
+                break;
+            }
+
+            case "focus": {
+                if (args.length < 2) { msg(sender, "&cUsage: /w focus <name>"); return; }
+                WaypointGroup g = activeRoute(state, args[1]);
+                if (g == null || !state.focus(g)) {
+                    msg(sender, "&cGroup '&e" + args[1] + "&c' is not shown. Use /w show " + args[1] + " first.");
+                    return;
+                }
+                msg(sender, "&aFocused &e" + g.name + "&a.");
+                break;
+            }
+
+            case "routes": {
+                WaypointState.Routes routes = state.routes();
+                if (routes.all.isEmpty()) { msg(sender, "&7No groups shown. Use /w load or /w show."); return; }
+                msg(sender, "&2Shown groups &7(budget " + state.routeBudget + " lines)");
+                for (WaypointState.Nav nav : routes.all) {
+                    String name = nav.group == null ? "?" : nav.group.name;
+                    msg(sender, (nav == routes.focused ? "&a> " : "&7  ") + "&" + nav.colour + name
+                            + " &7" + (nav.hasGroup() ? (nav.current + 1) + "/" + nav.size : "empty"));
+                }
+                break;
+            }
+
+            case "budget": {
+                if (args.length < 2) {
+                    msg(sender, "&aRoute budget is &e" + state.routeBudget + "&a lines per frame. Usage: /w budget <lines>");
+                    return;
+                }
+                int n = parseIntSafe(args[1], -1);
+                if (n < 0) { msg(sender, "&cInvalid budget."); return; }
+                state.routeBudget = n;
+                msg(sender, "&aRoute budget set to &e" + n + "&a lines per frame.");
+                break;
+            }
+
             case "setup":
                 state.setupMode = !state.setupMode;
                 msg(sender, "&aSetup mode: " + (state.setupMode ? "&2ON" : "&4OFF") + "&a.");
@@ -122,7 +230,7 @@ public class WaypointCommand extends CommandBase {
                 if (!state.hasGroup()) { msg(sender, "&cNo group loaded."); return; }
                 int n = args.length >= 2 ? parseIntSafe(args[1], 1) : 1;
                 state.skip(n);
-                msg(sender, "&aSkipped &e" + n + "&a. Now at: &e" + (state.currentIndex + 1) + "&a/&e" + state.size());
+                msg(sender, "&aSkipped &e" + n + "&a. Now at: &e" + (state.getCurrentIndex() + 1) + "&a/&e" + state.size());
                 break;
             }
 
@@ -130,19 +238,56 @@ public class WaypointCommand extends CommandBase {
                 if (!state.hasGroup()) { msg(sender, "&cNo group loaded."); return; }
                 int n = args.length >= 2 ? parseIntSafe(args[1], 1) : 1;
                 state.skip(-n);
-                msg(sender, "&aWent back &e" + n + "&a. Now at: &e" + (state.currentIndex + 1) + "&a/&e" + state.size());
+                msg(sender, "&aWent back &e" + n + "&a. Now at: &e" + (state.getCurrentIndex() + 1) + "&a/&e" + state.size());
                 break;
             }
 
             case "skipto": {
                 if (!state.hasGroup()) { msg(sender, "&cNo group loaded."); return; }
-                if (args.length < 2) { msg(sender, "&cUsage: /w skipto <number>"); return; }
-                int n = parseIntSafe(args[1], -1);
-                if (n < 1 || n > state.size()) {
-                    msg(sender, "&cIndex out of range (1–" + state.size() + ")."); return;
+                if (args.length < 2) { msg(sender, "&cUsage: /w skipto <number|name>"); return; }
+                int i = resolvePoint(sender, state.getGroup(), args);
+                if (i < 0) return;
+                state.skipTo(i);
+                msg(sender, "&aJumped to waypoint &e" + (i + 1) + "&a.");
+                break;
+            }
+
+            case "nearest":
+            case "resync": {
+                if (!state.hasGroup()) { msg(sender, "&cNo group loaded."); return; }
+                if (mc.thePlayer == null) return;
+                int i = state.nearestIndex(mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ);
+                WaypointGroup g = state.getGroup();
+                WaypointPoint wp = g.get(i);
+                String label = wp.name != null ? wp.name + " &a(#" + (i + 1) + ")" : "#" + (i + 1);
+                double dist = Math.sqrt(g.distanceSq(i,
+                        mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ));
+                if (args[0].equalsIgnoreCase("resync")) {
+                    state.skipTo(i);
+                    msg(sender, "&aResynced to &e" + label + "&a, &e" + Math.round(dist) + "m&a away.");
+                } else {
+                    msg(sender, "&aNearest waypoint: &e" + label + "&a, &e" + Math.round(dist) + "m&a away"
+                            + " (" + (int) wp.x + ", " + (int) wp.y + ", " + (int) wp.z + ").");
+                }
+                break;
+            }
+
+            case "autoresync": {
+                if (args.length < 2) {
+                    msg(sender, "&aAuto-resync is &e" + (state.autoResync ? "on" : "off")
+                            + "&a (jump &e" + state.resyncJump + " blocks&a). Usage: /w autoresync <on|off|blocks>");
+                    return;
+                }
+                if (args[1].equalsIgnoreCase("on") || args[1].equalsIgnoreCase("off")) {
+                    state.autoResync = args[1].equalsIgnoreCase("on");
+                    msg(sender, "&aAuto-resync " + (state.autoResync ? "enabled" : "disabled") + ".");
+                } else {
+                    double d = parseDoubleSafe(args[1], -1);
+                    if (d <= 0) { msg(sender, "&cInvalid distance."); return; }
+                    state.resyncJump   = d;
+                    state.autoResync   = true;
+                    msg(sender, "&aAuto-resync enabled for jumps over &e" + d + " blocks&a.");
                 }
-                state.skipTo(n - 1);
-                msg(sender, "&aJumped to waypoint &e" + n + "&a.");
                 break;
             }
 
@@ -151,12 +296,12 @@ public class WaypointCommand extends CommandBase {
             case "create": {
                 if (args.length < 2) { msg(sender, "&cUsage: /w create <name> [description]"); return; }
                 String name = args[1].toLowerCase();
-                if (storage.getGroup(name) != null) {
+                if (storage.hasGroup(name)) {
                     msg(sender, "&cGroup '&e" + name + "&c' already exists. Delete it first."); return;
                 }
                 String desc = args.length > 2 ? joinFrom(args, 2) : "";
                 storage.putGroup(new WaypointGroup(name, desc));
-                storage.saveIfDirty();
+                storage.scheduleSave();
                 msg(sender, "&aCreated group &e" + name + "&a. Use &e/w load " + name + "&a then &e/w add&a to populate.");
                 break;
             }
@@ -164,10 +309,10 @@ public class WaypointCommand extends CommandBase {
             case "delete": {
                 if (args.length < 2) { msg(sender, "&cUsage: /w delete <name>"); return; }
                 String name = args[1].toLowerCase();
-                if (state.loadedGroup != null && state.loadedGroup.name.equalsIgnoreCase(name))
-                    state.unload();
+                WaypointGroup shown = activeRoute(state, name);
+                if (shown != null) state.hide(shown);
                 if (storage.removeGroup(name)) {
-                    storage.saveIfDirty();
+                    storage.scheduleSave();
                     msg(sender, "&aDeleted group &e" + name + "&a.");
                 } else {
                     msg(sender, "&cGroup '&e" + name + "&c' not found.");
@@ -178,14 +323,15 @@ public class WaypointCommand extends CommandBase {
             case "rename": {
                 if (args.length < 3) { msg(sender, "&cUsage: /w rename <oldname> <newname>"); return; }
                 String oldName = args[1].toLowerCase(), newName = args[2].toLowerCase();
-                WaypointGroup g = storage.getGroup(oldName);
-                if (g == null) { msg(sender, "&cGroup '&e" + oldName + "&c' not found."); return; }
-                storage.removeGroup(oldName);
-                g.name = newName;
-                storage.putGroup(g);
-                storage.saveIfDirty();
-                if (state.loadedGroup != null && state.loadedGroup.name.equalsIgnoreCase(oldName))
-                    state.loadedGroup.name = newName;
+                if (!storage.hasGroup(oldName)) { msg(sender, "&cGroup '&e" + oldName + "&c' not found."); return; }
+                if (!oldName.equals(newName) && storage.hasGroup(newName)) {
+                    msg(sender, "&cGroup '&e" + newName + "&c' already exists."); return;
+                }
+                storage.renameGroup(oldName, newName);
+                storage.scheduleSave();
+                WaypointGroup loaded = state.getGroup();
+                if (loaded != null && loaded.name.equalsIgnoreCase(oldName))
+                    loaded.name = newName;
                 msg(sender, "&aRenamed &e" + oldName + "&a → &e" + newName + "&a.");
                 break;
             }
@@ -193,19 +339,19 @@ public class WaypointCommand extends CommandBase {
             //  waypoint editing (operates on the loaded group)
 
             case "add": {
-                WaypointGroup target = state.loadedGroup;
+                WaypointGroup target = state.getGroup();
                 if (target == null) {
                     // Allow /w add <groupname> [wpname] without loading first
                     if (args.length >= 2) target = storage.getGroup(args[1]);
                     if (target == null) { msg(sender, "&cNo group loaded. Use /w load <name> first."); return; }
-                    String wpName = args.length >= 3 ? args[2] : String.valueOf(target.waypoints.size() + 1);
+                    String wpName = args.length >= 3 ? args[2] : String.valueOf(target.size() + 1);
                     addWaypoint(sender, target, wpName);
-                    storage.markDirty(); storage.saveIfDirty();
+                    storage.scheduleSave();
                     return;
                 }
-                String wpName = args.length >= 2 ? joinFrom(args, 1) : String.valueOf(target.waypoints.size() + 1);
+                String wpName = args.length >= 2 ? joinFrom(args, 1) : String.valueOf(target.size() + 1);
                 addWaypoint(sender, target, wpName);
-                storage.markDirty(); storage.saveIfDirty();
+                storage.scheduleSave();
                 break;
             }
 
@@ -220,61 +366,79 @@ public class WaypointCommand extends CommandBase {
                 double bx = Math.floor(mc.thePlayer.posX);
                 double by = Math.floor(mc.thePlayer.posY) - 1;
                 double bz = Math.floor(mc.thePlayer.posZ);
-                state.loadedGroup.waypoints.add(idx - 1, new WaypointPoint(bx, by, bz, wpName));
-                renumberNumericNames(state.loadedGroup, idx);   // shift numeric labels after insertion
-                storage.markDirty(); storage.saveIfDirty();
+                int same = duplicateOf(state.getGroup(), bx, by, bz);
+                // shift numeric labels after insertion
+                storage.insertPoint(state.getGroup(), idx - 1, new WaypointPoint(bx, by, bz, wpName), true);
+                storage.scheduleSave();
                 msg(sender, "&aInserted &e" + wpName + "&a at index &e" + idx
                         + "&a (" + (int)bx + ", " + (int)by + ", " + (int)bz + ").");
+                if (same >= 0) warnDuplicate(sender, state.getGroup(), same < idx - 1 ? same : same + 1);
                 break;
             }
 
             case "remove": {
                 if (!state.hasGroup()) { msg(sender, "&cNo group loaded."); return; }
-                if (args.length < 2) { msg(sender, "&cUsage: /w remove <index>"); return; }
-                int idx = parseIntSafe(args[1], -1);
-                if (idx < 1 || idx > state.size()) {
-                    msg(sender, "&cIndex out of range (1–" + state.size() + ")."); return;
-                }
-                WaypointPoint removed = state.loadedGroup.waypoints.remove(idx - 1);
-                storage.markDirty(); storage.saveIfDirty();
+                if (args.length < 2) { msg(sender, "&cUsage: /w remove <index|name>"); return; }
+                int i = resolvePoint(sender, state.getGroup(), args);
+                if (i < 0) return;
+                int idx = i + 1;
+                WaypointPoint removed = storage.removePoint(state.getGroup(), i);
+                storage.scheduleSave();
                 msg(sender, "&aRemoved waypoint &e" + (removed.name != null ? removed.name : idx) + "&a.");
                 break;
             }
 
             //  import / export
 
-            case "export": {
-                WaypointGroup g;
-                if (args.length >= 2) {
-                    g = storage.getGroup(args[1]);
-                    if (g == null) { msg(sender, "&cGroup '&e" + args[1] + "&c' not found."); return; }
+            case "export":
+                export(sender, args);
+                break;
+
+            case "import": {
+                if (args.length < 2) { msg(sender, "&cUsage: /w import <groupname> [file <path>]"); return; }
+                String name = args[1].toLowerCase();
+                if (args.length >= 3 && args[2].equalsIgnoreCase("file")) {
+                    if (args.length < 4) { msg(sender, "&cUsage: /w import <groupname> file <path>"); return; }
+                    File path = new File(joinFrom(args, 3));
+                    File file = path.isAbsolute() ? path : new File(mc.mcDataDir, path.getPath());
+                    if (!file.isFile()) { msg(sender, "&cFile not found: &e" + file.getPath()); return; }
+                    importAsync(sender, name, file.getName(), () -> WaypointImporter.read(file, name));
                 } else {
-                    if (!state.hasGroup()) {
-                        msg(sender, "&cNo group loaded and no name given. Use /w export <name>."); return;
-                    }
-                    g = state.loadedGroup;
+                    String clip = GuiScreen.getClipboardString();
+                    if (clip == null || clip.trim().isEmpty()) { msg(sender, "&cClipboard is empty."); return; }
+                    importAsync(sender, name, "clipboard", () -> WaypointImporter.read(clip, name));
                 }
-                GuiScreen.setClipboardString(exportSoopy(g));
-                msg(sender, "&aCopied &e" + g.waypoints.size() + "&a waypoints (&e" + g.name + "&a) to clipboard.");
                 break;
             }
 
-            case "import": {
-                if (args.length < 2) { msg(sender, "&cUsage: /w import <groupname>"); return; }
-                String name = args[1].toLowerCase();
-                String clip = GuiScreen.getClipboardString();
-                if (clip == null || clip.trim().isEmpty()) { msg(sender, "&cClipboard is empty."); return; }
-                List<WaypointPoint> wps = parseSoopy(clip.trim());
-                if (wps == null) { msg(sender, "&cCould not parse clipboard as soopy waypoints. Copy a soopy/coleweight route first."); return; }
-                WaypointGroup g = storage.getGroup(name);
-                if (g == null) g = new WaypointGroup(name);
-                g.waypoints = wps;
-                storage.putGroup(g);
-                storage.saveIfDirty();
-                msg(sender, "&aImported &e" + wps.size() + "&a waypoints into group &e" + name + "&a.");
+            case "convert": {
+                if (args.length < 3 || !(args[2].equalsIgnoreCase("json") || args[2].equalsIgnoreCase("binary"))) {
+                    msg(sender, "&cUsage: /w convert <name|all> <json|binary>"); return;
+                }
+                boolean binary = args[2].equalsIgnoreCase("binary");
+                List<String> targets = args[1].equalsIgnoreCase("all")
+                        ? storage.getGroupNames() : Collections.singletonList(args[1].toLowerCase());
+                if (targets.size() == 1 && !storage.hasGroup(targets.get(0))) {
+                    msg(sender, "&cGroup '&e" + args[1] + "&c' not found."); return;
+                }
+                int converted = 0;
+                for (String name : targets)
+                    if (storage.convertGroup(name, binary)) converted++;
+                storage.scheduleSave();
+                msg(sender, "&aConverted &e" + converted + "&a group(s) to &e" + (binary ? "binary" : "json") + "&a.");
                 break;
             }
 
+            //  route tools
+
+            case "optimize":
+                optimize(sender, args);
+                break;
+
+            case "dedupe":
+                dedupe(sender, args);
+                break;
+
             //  settings
 
             case "range": {
@@ -301,19 +465,124 @@ public class WaypointCommand extends CommandBase {
                 break;
             }
 
+            case "mode": {
+                if (args.length < 2) {
+                    msg(sender, "&aAdvance mode: &e" + state.advancePolicy + "&a. Usage: /w mode <dwell|range|break>");
+                    return;
+                }
+                WaypointAdvancePolicy policy = WaypointAdvancePolicy.create(args[1]);
+                if (policy == null) { msg(sender, "&cUnknown mode. Use dwell, range or break."); return; }
+                state.advancePolicy = policy;
+                msg(sender, "&aAdvance mode set to &e" + policy + "&a.");
+                break;
+            }
+
+            case "labels": {
+                if (args.length < 3) {
+                    msg(sender, "&aSetup labels: distance &e" + state.labelMaxDistance
+                            + " blocks&a, full &e" + state.labelFullCount
+                            + "&a, budget &e" + state.labelBudget
+                            + "&a. Usage: /w labels <distance|full|budget> <value>");
+                    return;
+                }
+                String what = args[1].toLowerCase();
+                if (what.equals("distance")) {
+                    double d = parseDoubleSafe(args[2], -1);
+                    if (d <= 0) { msg(sender, "&cInvalid distance."); return; }
+                    state.labelMaxDistance = d;
+                    msg(sender, "&aLabel distance set to &e" + d + " blocks&a.");
+                } else if (what.equals("full")) {
+                    int n = parseIntSafe(args[2], -1);
+                    if (n < 0) { msg(sender, "&cInvalid count."); return; }
+                    state.labelFullCount = n;
+                    msg(sender, "&aFull labels set to the nearest &e" + n + "&a.");
+                } else if (what.equals("budget")) {
+                    int n = parseIntSafe(args[2], -1);
+                    if (n < 1) { msg(sender, "&cInvalid budget."); return; }
+                    state.labelBudget = n;
+                    msg(sender, "&aLabel budget set to &e" + n + "&a per frame.");
+                } else {
+                    msg(sender, "&cUsage: /w labels <distance|full|budget> <value>");
+                }
+                break;
+            }
+
+            case "path": {
+                if (args.length < 2) {
+                    msg(sender, "&aPath: &e" + state.pathAhead + "&a segments ahead, &e" + state.pathBehind
+                            + "&a behind. Usage: /w path <ahead> [behind]");
+                    return;
+                }
+                int ahead  = parseIntSafe(args[1], -1);
+                int behind = args.length >= 3 ? parseIntSafe(args[2], -1) : state.pathBehind;
+                if (ahead < 0 || behind < 0) { msg(sender, "&cInvalid segment count."); return; }
+                state.pathAhead  = ahead;
+                state.pathBehind = behind;
+                msg(sender, "&aPath set to &e" + ahead + "&a segments ahead, &e" + behind + "&a behind.");
+                break;
+            }
+
+            case "visibility": {
+                String what = args.length >= 2 ? args[1].toLowerCase() : "";
+                if (what.equals("on") || what.equals("off")) {
+                    state.visibilityMode = what.equals("on");
+                    msg(sender, "&aVisibility: " + (state.visibilityMode ? "&2ON" : "&4OFF") + "&a.");
+                    return;
+                }
+                if (args.length < 3) {
+                    msg(sender, "&aVisibility: " + (state.visibilityMode ? "&2ON" : "&4OFF")
+                            + "&a, range &e" + state.visibilityRange + " blocks&a, &e" + state.visibilityRaysPerTick
+                            + "&a rays / &e" + state.visibilityBudgetMicros + "us&a per tick."
+                            + " Usage: /w visibility <on|off|range|rays|budget> [value]");
+                    return;
+                }
+                if (what.equals("range")) {
+                    double d = parseDoubleSafe(args[2], -1);
+                    if (d <= 0) { msg(sender, "&cInvalid range."); return; }
+                    state.visibilityRange = d;
+                    msg(sender, "&aVisibility range set to &e" + d + " blocks&a.");
+                } else if (what.equals("rays")) {
+                    int n = parseIntSafe(args[2], -1);
+                    if (n < 1) { msg(sender, "&cInvalid count."); return; }
+                    state.visibilityRaysPerTick = n;
+                    msg(sender, "&aAt most &e" + n + "&a raycasts per tick.");
+                } else if (what.equals("budget")) {
+                    int n = parseIntSafe(args[2], -1);
+                    if (n < 1) { msg(sender, "&cInvalid budget."); return; }
+                    state.visibilityBudgetMicros = n;
+                    msg(sender, "&aRaycast budget set to &e" + n + "us&a per tick.");
+                } else {
+                    msg(sender, "&cUsage: /w visibility <on|off|range|rays|budget> [value]");
+                }
+                break;
+            }
+
+            case "savedelay": {
+                if (args.length < 2) {
+                    msg(sender, "&aCurrent save delay: &e" + storage.getSaveDelayMs() + "ms&a. Usage: /w savedelay <ms>");
+                    return;
+                }
+                long t = parseLongSafe(args[1], -1);
+                if (t < 0) { msg(sender, "&cInvalid delay."); return; }
+                storage.setSaveDelayMs(t);
+                msg(sender, "&aSave delay set to &e" + t + "ms&a.");
+                break;
+            }
+
             case "save":
                 storage.saveForce();
-                msg(sender, "&aSaved all groups to disk.");
+                msg(sender, "&aSaved all groups to disk and compacted the journal.");
                 break;
 
             case "info": {
                 if (!state.hasGroup()) { msg(sender, "&cNo group loaded."); return; }
-                WaypointGroup g = state.loadedGroup;
+                WaypointGroup g = state.getGroup();
                 msg(sender, "&aGroup: &e" + g.name
-                        + " &a| At: &e" + (state.currentIndex + 1) + "/" + g.waypoints.size()
+                        + " &a| At: &e" + (state.getCurrentIndex() + 1) + "/" + g.size()
                         + " &a| Setup: &e" + state.setupMode
                         + " &a| Range: &e" + state.advanceRange + "m"
-                        + " &a| Delay: &e" + state.advanceDelayMs + "ms");
+                        + " &a| Delay: &e" + state.advanceDelayMs + "ms"
+                        + " &a| Mode: &e" + state.advancePolicy);
                 // Also show current, next waypoint names
                 WaypointPoint cur = state.getCurrent();
                 WaypointPoint nxt = state.getNext();
@@ -322,15 +591,108 @@ public class WaypointCommand extends CommandBase {
                 break;
             }
 
+            case "perf":
+                perf(sender, args);
+                break;
+
+            case "undo":
+            case "redo": {
+                boolean undo = args[0].equalsIgnoreCase("undo");
+                int n = args.length >= 2 ? parseIntSafe(args[1], 1) : 1;
+                String last = null;
+                int done = 0;
+                for (; done < n; done++) {
+                    String what = undo ? storage.undo() : storage.redo();
+                    if (what == null) break;
+                    last = what;
+                }
+                if (done == 0) { msg(sender, "&cNothing to " + (undo ? "undo" : "redo") + "."); return; }
+                storage.scheduleSave();
+                // a shown group may have been deleted (undoing its creation) or recreated
+                for (WaypointState.Nav nav : state.routes().all) {
+                    if (nav.group != null && storage.getGroup(nav.group.name) != nav.group) state.hide(nav.group);
+                }
+                msg(sender, "&a" + (undo ? "Undid" : "Redid") + " &e" + (done == 1 ? last : done + " edits")
+                        + "&a. &7(" + storage.undoCount() + " to undo, " + storage.redoCount() + " to redo)");
+                break;
+            }
+
+            case "undodepth": {
+                if (args.length < 2) {
+                    msg(sender, "&aUndo remembers &e" + storage.getUndoDepth() + "&a edits. Usage: /w undodepth <n>");
+                    return;
+                }
+                int n = parseIntSafe(args[1], -1);
+                if (n < 0) { msg(sender, "&cInvalid depth."); return; }
+                storage.setUndoDepth(n);
+                msg(sender, "&aUndo depth set to &e" + n + "&a.");
+                break;
+            }
+
             default:
                 msg(sender, "&cUnknown subcommand '&e" + args[0] + "&c'. Try /w list for help.");
         }
     }
 
+    //  profiler
+
+    private void perf(ICommandSender sender, String[] args) {
+        WaypointProfiler perf = WaypointProfiler.getInstance();
+        String what = args.length >= 2 ? args[1].toLowerCase() : "";
+        switch (what) {
+            case "on":
+                perf.enabled = true;
+                msg(sender, "&aProfiler &2on&a. Check back with /w perf.");
+                return;
+            case "off":
+                perf.enabled = false;
+                msg(sender, "&aProfiler &4off&a. Samples are kept until /w perf reset.");
+                return;
+            case "reset":
+                perf.reset();
+                msg(sender, "&aProfiler samples cleared.");
+                return;
+            case "dump": {
+                File dir = WaypointStorage.getInstance().getDirectory();
+                if (dir == null) { msg(sender, "&cStorage not initialised."); return; }
+                if (!perf.hasSamples()) { msg(sender, "&cNothing recorded yet. Use /w perf on first."); return; }
+                File file = new File(dir, "perf-" + System.currentTimeMillis() + ".csv");
+                try {
+                    perf.dumpCsv(file);
+                    msg(sender, "&aWrote &e" + file.getName() + "&a to the waypoints config folder.");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    msg(sender, "&cCould not write " + file.getName() + ": " + e.getMessage());
+                }
+                return;
+            }
+            case "":
+                break;
+            default:
+                msg(sender, "&cUsage: /w perf [on|off|reset|dump]");
+                return;
+        }
+
+        msg(sender, "&aProfiler: " + (perf.enabled ? "&2ON" : "&4OFF")
+                + " &7(p50 / p99 / max, microseconds)");
+        if (!perf.hasSamples()) {
+            msg(sender, "&7No samples yet." + (perf.enabled ? "" : " Use /w perf on."));
+            return;
+        }
+        for (int p = 0; p < WaypointProfiler.PHASES.length; p++) {
+            WaypointProfiler.Summary s = perf.summary(p);
+            if (s.retained == 0) continue;
+            msg(sender, "&e" + s.phase + " &7" + WaypointProfiler.micros(s.p50)
+                    + " / " + WaypointProfiler.micros(s.p99)
+                    + " / " + WaypointProfiler.micros(s.max)
+                    + " &8(" + s.retained + " of " + s.count + ")");
+        }
+    }
+
     // group list UI
 
     private void showGroupList(ICommandSender sender) {
-        Map<String, WaypointGroup> groups = WaypointStorage.getInstance().getGroups();
+        List<WaypointStorage.GroupInfo> groups = WaypointStorage.getInstance().getGroupInfos();
 
         sender.addChatMessage(new ChatComponentText(
                 color(WaypointsMod.PREFIX + "&2===== Waypoint Groups =====")));
@@ -340,15 +702,14 @@ public class WaypointCommand extends CommandBase {
             return;
         }
 
-        for (Map.Entry<String, WaypointGroup> e : groups.entrySet()) {
-            WaypointGroup g = e.getValue();
+        for (WaypointStorage.GroupInfo g : groups) {
 
             ChatComponentText root = new ChatComponentText("");
 
             // Name + count
             ChatComponentText nameText = new ChatComponentText(
                     EnumChatFormatting.YELLOW + g.name
-                            + EnumChatFormatting.GRAY + " (" + g.waypoints.size() + " wps)");
+                            + EnumChatFormatting.GRAY + " (" + g.size + " wps)");
             if (g.description != null && !g.description.isEmpty())
                 nameText.appendText(EnumChatFormatting.DARK_GRAY + " – " + g.description);
             root.appendSibling(nameText);
@@ -386,116 +747,146 @@ public class WaypointCommand extends CommandBase {
         msg(sender, "&7/w create | /w load | /w add | /w export | /w import | /w setup | /w info");
     }
 
+    //  route helpers
+
+    /** The shown group called {@code name} (ignoring case), or null. */
+    private static WaypointGroup activeRoute(WaypointState state, String name) {
+        for (WaypointState.Nav nav : state.routes().all) {
+            if (nav.group != null && nav.group.name.equalsIgnoreCase(name)) return nav.group;
+        }
+        return null;
+    }
+
+    /** A colour name from {@link #ROUTE_COLOURS} or a single colour code, or null. */
+    private static Character parseColour(String s) {
+        Character c = ROUTE_COLOURS.get(s.toLowerCase());
+        if (c != null) return c;
+        String code = s.startsWith("&") ? s.substring(1) : s;
+        if (code.length() == 1 && Character.digit(code.charAt(0), 16) >= 0) return Character.toLowerCase(code.charAt(0));
+        return null;
+    }
+
     // waypoint helpers
 
     private void addWaypoint(ICommandSender sender, WaypointGroup group, String name) {
         double bx = Math.floor(mc.thePlayer.posX);
         double by = Math.floor(mc.thePlayer.posY) - 1; // block under feet
         double bz = Math.floor(mc.thePlayer.posZ);
-        group.waypoints.add(new WaypointPoint(bx, by, bz, name));
+        int same = duplicateOf(group, bx, by, bz);
+        WaypointStorage.getInstance().addPoint(group, new WaypointPoint(bx, by, bz, name));
         msg(sender, "&aAdded &e" + name + "&a at (" + (int)bx + ", " + (int)by + ", " + (int)bz
-                + ") to group &e" + group.name + "&a. Total: &e" + group.waypoints.size());
+                + ") to group &e" + group.name + "&a. Total: &e" + group.size());
+        if (same >= 0) warnDuplicate(sender, group, same);
     }
 
-    /**
-     * After inserting at {@code fromOneBasedIndex}, bump every purely numeric label
-     * at or after that position by 1 so labels stay sequential.
-     */
-    private void renumberNumericNames(WaypointGroup g, int fromOneBasedIndex) {
-        for (int i = fromOneBasedIndex; i < g.waypoints.size(); i++) {
-            WaypointPoint wp = g.waypoints.get(i);
-            try {
-                int n = Integer.parseInt(wp.name);
-                if (n == i) wp.name = String.valueOf(i + 1); // only bump if it was already correct
-            } catch (NumberFormatException ignored) {}
-        }
+    /** The point a new one at (x, y, z) would repeat, if duplicate warnings are on; else -1. */
+    private static int duplicateOf(WaypointGroup group, double x, double y, double z) {
+        double radius = WaypointState.getInstance().duplicateWarnRadius;
+        return radius < 0 ? -1 : WaypointDuplicates.existing(group, x, y, z, radius);
     }
 
-    //  soopy serialisation
-
-    /**
-     * Export a group in soopy format — compatible with coleweight's getWaypoints() / load().
-     * Format: [{x, y, z, r, g, b, options: {name}}, ...]
-     */
-    private String exportSoopy(WaypointGroup g) {
-        List<Map<String, Object>> list = new ArrayList<>();
-        for (WaypointPoint wp : g.waypoints) {
-            Map<String, Object> m = new LinkedHashMap<>();
-            m.put("x", wp.x);
-            m.put("y", wp.y);
-            m.put("z", wp.z);
-            m.put("r", 0);
-            m.put("g", 1);
-            m.put("b", 0);
-            Map<String, Object> opts = new LinkedHashMap<>();
-            opts.put("name", wp.name != null ? wp.name : "");
-            m.put("options", opts);
-            list.add(m);
-        }
-        return GSON.toJson(list);
+    private void warnDuplicate(ICommandSender sender, WaypointGroup group, int existing) {
+        String name = group.name(existing);
+        msg(sender, "&6Careful: that repeats waypoint &e#" + (existing + 1)
+                + (name != null ? " (" + name + ")" : "") + "&6. &7/w undo takes it back.");
     }
 
-    /**
-     * Parse soopy JSON from clipboard into an ordered list of WaypointPoints.
-     * Handles both array format ([{x,y,z,options:{name}},...]) and plain
-     * x y z rows as a fallback. Returns null on failure.
-     */
-    private List<WaypointPoint> parseSoopy(String json) {
+    //  export
+
+    private static final String[] EXPORT_FORMATS = {"soopy", "coleweight", "xyz", "csv", "code"};
+
+    /** /w export [name|all] [format] [file [path]] */
+    private void export(ICommandSender sender, String[] args) {
+        WaypointStorage storage = WaypointStorage.getInstance();
+        WaypointState   state   = WaypointState.getInstance();
+
+        int a = 1;
+        boolean all = args.length > a && args[a].equalsIgnoreCase("all");
+        List<WaypointGroup> groups = new ArrayList<>();
+        if (all) {
+            for (String name : storage.getGroupNames()) {
+                WaypointGroup g = storage.getGroup(name);
+                if (g != null) groups.add(g);
+            }
+            if (groups.isEmpty()) { msg(sender, "&cNo groups to export."); return; }
+            a++;
+        } else if (args.length > a && !isExportFormat(args[a]) && !args[a].equalsIgnoreCase("file")) {
+            WaypointGroup g = storage.getGroup(args[a]);
+            if (g == null) { msg(sender, "&cGroup '&e" + args[a] + "&c' not found."); return; }
+            groups.add(g);
+            a++;
+        } else {
+            if (!state.hasGroup()) { msg(sender, "&cNo group loaded and no name given. Use /w export <name>."); return; }
+            groups.add(state.getGroup());
+        }
+
+        WaypointImporter.Format format = WaypointImporter.Format.SOOPY;
+        if (args.length > a && isExportFormat(args[a])) format = WaypointImporter.Format.valueOf(args[a++].toUpperCase());
+
+        File file = null;
+        if (args.length > a) {
+            if (!args[a].equalsIgnoreCase("file")) {
+                msg(sender, "&cUsage: /w export [name|all] [soopy|coleweight|xyz|csv|code] [file [path]]"); return;
+            }
+            if (args.length > a + 1) {
+                File path = new File(joinFrom(args, a + 1));
+                file = path.isAbsolute() ? path : new File(mc.mcDataDir, path.getPath());
+            } else {
+                File dir = storage.getDirectory();
+                if (dir == null) { msg(sender, "&cStorage not initialised."); return; }
+                String base = all ? "all-" + System.currentTimeMillis() : groups.get(0).name;
+                file = new File(new File(dir, "exports"), base + "." + WaypointExporter.extension(format));
+            }
+        }
+
+        int points = 0;
+        for (WaypointGroup g : groups) points += g.size();
+        String what = all ? groups.size() + " groups" : groups.get(0).name;
+        long start = System.nanoTime();
         try {
-            // Try soopy array format
-            if (json.startsWith("[")) {
-                Type type = new TypeToken<List<Map<String, Object>>>() {}.getType();
-                List<Map<String, Object>> raw = GSON.fromJson(json, type);
-                List<WaypointPoint> wps = new ArrayList<>();
-                for (int i = 0; i < raw.size(); i++) {
-                    Map<String, Object> m = raw.get(i);
-                    double x = toDouble(m.get("x"));
-                    double y = toDouble(m.get("y"));
-                    double z = toDouble(m.get("z"));
-                    String name = String.valueOf(i + 1);
-                    if (m.containsKey("options")) {
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> opts = (Map<String, Object>) m.get("options");
-                        if (opts != null && opts.containsKey("name"))
-                            name = String.valueOf(opts.get("name"));
-                    }
-                    wps.add(new WaypointPoint(x, y, z, name));
-                }
-                // Sort by numeric name if applicable (matches coleweight's bubble-sort)
-                wps.sort((a, b) -> {
-                    try { return Integer.compare(Integer.parseInt(a.name), Integer.parseInt(b.name)); }
-                    catch (NumberFormatException e) { return 0; }
-                });
-                return wps;
-            }
-
-            // Fallback: plain "x y z" rows
-            if (json.matches("(?s).*\\d.*")) {
-                List<WaypointPoint> wps = new ArrayList<>();
-                String[] rows = json.split("[\r\n]+");
-                for (int i = 0; i < rows.length; i++) {
-                    String[] parts = rows[i].trim().split("\\s+");
-                    if (parts.length >= 3) {
-                        wps.add(new WaypointPoint(
-                                Double.parseDouble(parts[0]),
-                                Double.parseDouble(parts[1]),
-                                Double.parseDouble(parts[2]),
-                                String.valueOf(i + 1)));
-                    }
-                }
-                return wps.isEmpty() ? null : wps;
+            if (file == null) {
+                GuiScreen.setClipboardString(WaypointExporter.toString(groups, format, all));
+            } else {
+                WaypointExporter.write(file, groups, format, all);
             }
-        } catch (Exception ignored) {}
-        return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            msg(sender, "&cExport failed: " + e.getMessage());
+            return;
+        }
+        long ms = (System.nanoTime() - start) / 1_000_000L;
+        msg(sender, "&a" + (file == null ? "Copied" : "Wrote") + " &e" + points + "&a waypoints (&e" + what + "&a, "
+                + format.name().toLowerCase() + ") " + (file == null ? "to clipboard" : "to &e" + file.getPath())
+                + "&a in &e" + ms + "ms&a.");
     }
 
-    private double toDouble(Object o) {
-        if (o instanceof Number) return ((Number) o).doubleValue();
-        return Double.parseDouble(String.valueOf(o));
+    private static boolean isExportFormat(String s) {
+        for (String f : EXPORT_FORMATS) if (f.equalsIgnoreCase(s)) return true;
+        return false;
+    }
+
+    /**
+     * The point {@code args[1..]} names: a 1-based index, or else a waypoint name (the rest
+     * of the line, so names with spaces work). Reports the problem and returns -1 if neither.
+     */
+    private int resolvePoint(ICommandSender sender, WaypointGroup g, String[] args) {
+        int n = parseIntSafe(args[1], -1);
+        if (args.length == 2 && n != -1) {
+            if (n >= 1 && n <= g.size()) return n - 1;
+            msg(sender, "&cIndex out of range (1–" + g.size() + ").");
+            return -1;
+        }
+        String name = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+        int i = g.findName(name);
+        if (i < 0) msg(sender, "&cNo waypoint named '&e" + name + "&c' in " + g.name + ".");
+        return i;
     }
 
     //  tab completion
 
+    /** Completions shown at most; the chat line cannot show more than a screenful anyway. */
+    private static final int COMPLETION_LIMIT = 64;
+
     @Override
     @SuppressWarnings("unchecked")
     public List addTabCompletionOptions(ICommandSender sender, String[] args, BlockPos pos) {
@@ -504,15 +895,313 @@ public class WaypointCommand extends CommandBase {
         }
         if (args.length == 2) {
             String sub = args[0].toLowerCase();
-            if (sub.equals("load") || sub.equals("delete") || sub.equals("export")
-                    || sub.equals("rename") || sub.equals("import")) {
-                return getListOfStringsMatchingLastWord(args,
-                        new ArrayList<>(WaypointStorage.getInstance().getGroups().keySet()));
+            String last = args[1];
+            WaypointStorage storage = WaypointStorage.getInstance();
+            if (sub.equals("load") || sub.equals("delete")
+                    || sub.equals("rename") || sub.equals("import") || sub.equals("show")) {
+                return storage.completeGroupNames(last, COMPLETION_LIMIT);
+            }
+            if (sub.equals("optimize")) {
+                List<String> names = storage.completeGroupNames(last, COMPLETION_LIMIT);
+                names.addAll(getListOfStringsMatchingLastWord(args, "pin", "status", "cancel"));
+                return names;
+            }
+            if (sub.equals("hide") || sub.equals("focus")) {
+                List<String> names = new ArrayList<>();
+                for (WaypointState.Nav nav : WaypointState.getInstance().routes().all) {
+                    if (nav.group != null) names.add(nav.group.name);
+                }
+                if (sub.equals("hide")) names.add("all");
+                return getListOfStringsMatchingLastWord(args, names);
+            }
+            if (sub.equals("visibility")) {
+                return getListOfStringsMatchingLastWord(args, "on", "off", "range", "rays", "budget");
+            }
+            if (sub.equals("dedupe")) {
+                List<String> names = storage.completeGroupNames(last, COMPLETION_LIMIT);
+                names.addAll(getListOfStringsMatchingLastWord(args, "warn", "remove"));
+                return names;
             }
+            if (sub.equals("convert") || sub.equals("export")) {
+                List<String> names = storage.completeGroupNames(last, COMPLETION_LIMIT);
+                names.addAll(getListOfStringsMatchingLastWord(args, "all"));
+                return names;
+            }
+        }
+        if (args.length >= 2 && (args[0].equalsIgnoreCase("skipto") || args[0].equalsIgnoreCase("remove"))) {
+            WaypointGroup g = WaypointState.getInstance().getGroup();
+            if (g == null) return Collections.emptyList();
+            // names may contain spaces: match on everything typed so far, offer the word being typed
+            String typed = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+            int cut = typed.length() - args[args.length - 1].length();
+            Set<String> out = new LinkedHashSet<>();
+            for (String name : g.completeNames(typed, COMPLETION_LIMIT)) {
+                String rest = name.substring(cut);
+                int space = rest.indexOf(' ');
+                out.add(space < 0 ? rest : rest.substring(0, space));
+            }
+            return new ArrayList<>(out);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("insert")) {
+            // between the current and next waypoint, or at the end
+            WaypointState.Nav nav = WaypointState.getInstance().nav();
+            if (!nav.hasGroup()) return Collections.emptyList();
+            String between = String.valueOf(nav.current + 2), end = String.valueOf(nav.size + 1);
+            return between.equals(end) ? getListOfStringsMatchingLastWord(args, end)
+                                       : getListOfStringsMatchingLastWord(args, between, end);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("mode")) {
+            return getListOfStringsMatchingLastWord(args, WaypointAdvancePolicy.NAMES);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("autoresync")) {
+            return getListOfStringsMatchingLastWord(args, "on", "off");
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("perf")) {
+            return getListOfStringsMatchingLastWord(args, "on", "off", "reset", "dump");
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase("labels")) {
+            return getListOfStringsMatchingLastWord(args, "distance", "full", "budget");
+        }
+        if (args.length == 3 && args[0].equalsIgnoreCase("export")) {
+            List<String> options = getListOfStringsMatchingLastWord(args, EXPORT_FORMATS);
+            options.addAll(getListOfStringsMatchingLastWord(args, "file"));
+            return options;
+        }
+        if ((args.length == 3 || args.length == 4) && args[0].equalsIgnoreCase("dedupe")) {
+            if (args[1].equalsIgnoreCase("warn")) {
+                return args.length == 3 ? getListOfStringsMatchingLastWord(args, "off", "0", "1") : Collections.emptyList();
+            }
+            return getListOfStringsMatchingLastWord(args, "remove");
+        }
+        if (args.length == 3 && args[0].equalsIgnoreCase("show")) {
+            return getListOfStringsMatchingLastWord(args, ROUTE_COLOURS.keySet());
+        }
+        if (args.length == 3 && args[0].equalsIgnoreCase("convert")) {
+            return getListOfStringsMatchingLastWord(args, "json", "binary");
         }
         return Collections.emptyList();
     }
 
+    //  import
+
+    /** Parse on a background thread, then swap the group in on the client thread. */
+    private void importAsync(ICommandSender sender, String name, String source,
+                             Callable<WaypointImporter.Result> parse) {
+        msg(sender, "&aImporting &e" + name + "&a from " + source + "...");
+        background("Waypoints-Import", () -> {
+            WaypointImporter.Result parsed = null;
+            Exception error = null;
+            long start = System.nanoTime();
+            try {
+                parsed = parse.call();
+            } catch (Exception e) {
+                error = e;
+            }
+            final WaypointImporter.Result result = parsed;
+            final Exception failure = error;
+            final long ms = (System.nanoTime() - start) / 1_000_000L;
+            mc.addScheduledTask(() -> {
+                if (failure != null) {
+                    failure.printStackTrace();
+                    msg(sender, "&cCould not read " + source + ": " + failure.getMessage());
+                    return;
+                }
+                if (result == null) {
+                    msg(sender, "&cNo waypoints found in " + source
+                            + ". Expected a soopy/coleweight route, CSV, \"x y z\" rows or a route code.");
+                    return;
+                }
+                WaypointStorage storage = WaypointStorage.getInstance();
+                WaypointState   state   = WaypointState.getInstance();
+                WaypointGroup old = storage.getGroup(name);
+                WaypointGroup g   = result.group;
+                if (old != null && (g.description == null || g.description.isEmpty())) g.description = old.description;
+                storage.putGroup(g);
+                storage.scheduleSave();
+                if (old != null) state.replace(old, g);
+                msg(sender, "&aImported &e" + g.size() + "&a waypoints (&e" + result.format.name().toLowerCase()
+                        + "&a) into group &e" + name + "&a in &e" + ms + "ms&a."
+                        + (result.skipped > 0 ? " &7Skipped " + result.skipped + " unreadable row(s)." : ""));
+            });
+        });
+    }
+
+    //  dedupe
+
+    /** Duplicates listed at most; the rest are counted. */
+    private static final int DEDUPE_SHOWN = 8;
+
+    /** /w dedupe [name] [radius] [remove], or /w dedupe warn <off|radius> */
+    private void dedupe(ICommandSender sender, String[] args) {
+        WaypointStorage storage = WaypointStorage.getInstance();
+        WaypointState   state   = WaypointState.getInstance();
+
+        if (args.length >= 2 && args[1].equalsIgnoreCase("warn")) {
+            if (args.length < 3) {
+                msg(sender, "&aDuplicate warnings: " + (state.duplicateWarnRadius < 0 ? "&4OFF"
+                        : "&2ON &a(within &e" + state.duplicateWarnRadius + " blocks&a)")
+                        + "&a. Usage: /w dedupe warn <off|radius>");
+                return;
+            }
+            if (args[2].equalsIgnoreCase("off")) {
+                state.duplicateWarnRadius = -1;
+                msg(sender, "&aDuplicate warnings &4off&a.");
+                return;
+            }
+            double r = parseDoubleSafe(args[2], -1);
+            if (r < 0) { msg(sender, "&cInvalid radius."); return; }
+            state.duplicateWarnRadius = r;
+            msg(sender, "&aWarning when a new waypoint is within &e" + r + " blocks&a of another.");
+            return;
+        }
+
+        int a = 1;
+        WaypointGroup g;
+        if (args.length > a && Double.isNaN(parseDoubleSafe(args[a], Double.NaN)) && !args[a].equalsIgnoreCase("remove")) {
+            g = storage.getGroup(args[a]);
+            if (g == null) { msg(sender, "&cGroup '&e" + args[a] + "&c' not found."); return; }
+            a++;
+        } else {
+            g = state.getGroup();
+            if (g == null) { msg(sender, "&cNo group loaded and no name given. Use /w dedupe <name>."); return; }
+        }
+        double radius = 0;
+        if (args.length > a && !args[a].equalsIgnoreCase("remove")) {
+            radius = parseDoubleSafe(args[a], -1);
+            if (radius < 0) { msg(sender, "&cInvalid radius."); return; }
+            a++;
+        }
+        boolean remove = args.length > a && args[a].equalsIgnoreCase("remove");
+
+        long start = System.nanoTime();
+        WaypointDuplicates.Result dups = WaypointDuplicates.find(g, radius);
+        long ms = (System.nanoTime() - start) / 1_000_000L;
+        String how = radius <= 0 ? "on the same block" : "within " + radius + " blocks";
+        if (dups.count == 0) {
+            msg(sender, "&aNo duplicates " + how + " in &e" + g.name + "&a (" + g.size() + " waypoints, " + ms + "ms).");
+            return;
+        }
+        if (remove) {
+            storage.removePoints(g, dups.indices(), true, "dedupe");
+            storage.scheduleSave();
+            msg(sender, "&aRemoved &e" + dups.count + "&a duplicate(s) " + how + " from &e" + g.name
+                    + "&a; &e" + g.size() + "&a left. &7/w undo puts them back.");
+            return;
+        }
+        msg(sender, "&e" + dups.count + "&a duplicate(s) " + how + " in &e" + g.name + "&a (" + ms + "ms):");
+        for (int k = 0; k < Math.min(dups.count, DEDUPE_SHOWN); k++) {
+            int i = dups.duplicate(k), j = dups.original(k);
+            msg(sender, "&7  #" + (i + 1) + " " + nameOrBlank(g, i) + "&8repeats &7#" + (j + 1) + " " + nameOrBlank(g, j)
+                    + "&8(" + (int) Math.floor(g.x(i)) + ", " + (int) Math.floor(g.y(i)) + ", " + (int) Math.floor(g.z(i)) + ")");
+        }
+        if (dups.count > DEDUPE_SHOWN) msg(sender, "&7  ...and " + (dups.count - DEDUPE_SHOWN) + " more.");
+        msg(sender, "&7Use &e/w dedupe " + g.name + (radius > 0 ? " " + radius : "") + " remove&7 to remove them.");
+    }
+
+    private static String nameOrBlank(WaypointGroup g, int i) {
+        String name = g.name(i);
+        return name == null || name.equals(String.valueOf(i + 1)) ? "" : "(" + name + ") ";
+    }
+
+    //  optimize
+
+    private void optimize(ICommandSender sender, String[] args) {
+        WaypointStorage storage = WaypointStorage.getInstance();
+        WaypointState   state   = WaypointState.getInstance();
+        WaypointRouteOptimizer running = optimizer;
+
+        if (args.length >= 2 && (args[1].equalsIgnoreCase("status") || args[1].equalsIgnoreCase("cancel"))) {
+            if (running == null) { msg(sender, "&cNo optimize is running."); return; }
+            if (args[1].equalsIgnoreCase("cancel")) {
+                running.cancel();
+                msg(sender, "&aCancelling optimize of &e" + optimizing + "&a.");
+            } else {
+                msg(sender, "&aOptimizing &e" + optimizing + "&a: " + running.phase() + " &e" + running.percent() + "%&a.");
+            }
+            return;
+        }
+        if (running != null) {
+            msg(sender, "&cAlready optimizing &e" + optimizing + "&c. Use /w optimize cancel first."); return;
+        }
+
+        boolean pin = false;
+        WaypointGroup g = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("pin")) { pin = true; continue; }
+            g = storage.getGroup(args[i]);
+            if (g == null) { msg(sender, "&cGroup '&e" + args[i] + "&c' not found."); return; }
+        }
+        if (g == null) {
+            if (!state.hasGroup()) { msg(sender, "&cNo group loaded and no name given. Use /w optimize <name>."); return; }
+            g = state.getGroup();
+        }
+        if (g.size() < 4) { msg(sender, "&cNothing to optimize in a group this small."); return; }
+
+        final WaypointGroup target = g;
+        final WaypointGroup snapshot = g.copy();
+        final int version = g.version();
+        WaypointRouteOptimizer opt = new WaypointRouteOptimizer(snapshot, pin, (phase, pct) -> {
+            if (pct > 0 && pct < 100)
+                mc.addScheduledTask(() -> msg(sender, "&7Optimizing " + target.name + ": " + phase + " " + pct + "%"));
+        });
+        optimizer  = opt;
+        optimizing = g.name;
+        msg(sender, "&aOptimizing &e" + g.size() + "&a waypoints in &e" + g.name + "&a in the background...");
+
+        background("Waypoints-Optimizer", () -> {
+            int[] order = null;
+            Throwable error = null;
+            long start = System.nanoTime();
+            try {
+                order = opt.run();
+            } catch (Throwable t) {
+                error = t;
+            }
+            final int[] result = order;
+            final Throwable failure = error;
+            final long ms = (System.nanoTime() - start) / 1_000_000L;
+            mc.addScheduledTask(() -> {
+                optimizer  = null;
+                optimizing = null;
+                if (result == null) {
+                    if (opt.isCancelled()) msg(sender, "&eOptimize of &6" + target.name + "&e cancelled.");
+                    else {
+                        failure.printStackTrace();
+                        msg(sender, "&cOptimize of &e" + target.name + "&c failed: " + failure);
+                    }
+                    return;
+                }
+                if (target.version() != version) {
+                    msg(sender, "&c" + target.name + " was edited while optimizing; result discarded.");
+                    return;
+                }
+                int[] identity = new int[result.length];
+                for (int i = 0; i < identity.length; i++) identity[i] = i;
+                double before = WaypointRouteOptimizer.tourLength(snapshot, identity);
+                double after  = WaypointRouteOptimizer.tourLength(snapshot, result);
+
+                int current = state.getGroup() == target ? state.getCurrentIndex() : -1;
+                storage.reorderGroup(target, result, true);
+                storage.scheduleSave();
+                if (current >= 0) {
+                    for (int k = 0; k < result.length; k++) {
+                        if (result[k] == current) { state.skipTo(k); break; }
+                    }
+                }
+                msg(sender, "&aOptimized &e" + target.name + "&a in &e" + ms + "ms&a: loop &e"
+                        + Math.round(before) + "&a -> &e" + Math.round(after) + "&a blocks.");
+            });
+        });
+    }
+
+    /** Run long work off the client thread; results must be handed back via addScheduledTask. */
+    private static void background(String threadName, Runnable task) {
+        Thread worker = new Thread(task, threadName);
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
     //  utilities
 
     private void msg(ICommandSender sender, String text) {
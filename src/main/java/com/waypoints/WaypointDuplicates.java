@@ -0,0 +1,170 @@
+package com.waypoints;
+
+import java.util.Arrays;
+
+/**
+ * Finds repeated waypoints in one pass, for /w dedupe.
+ *
+ * With radius 0 a duplicate is a point on the same block as an earlier one: block
+ * coordinates are packed into a {@code long} and looked up in a primitive open-addressing
+ * table. With a radius, points are bucketed into a grid of radius-sized cells (the same
+ * table, keyed by cell) and each point is checked only against the 27 cells around it.
+ *
+ * Points are taken in route order and only points that are not duplicates go into the
+ * table, so each duplicate is reported against the earliest point it repeats, and
+ * removing every reported duplicate leaves no two points closer than the radius. Both
+ * modes are linear in the size of the route for any sensible radius.
+ */
+final class WaypointDuplicates {
+
+    /** {@code duplicate(k)} repeats {@code original(k)}, which comes earlier in the route. */
+    static final class Result {
+        private final int[] duplicates, originals;
+        final int count;
+
+        private Result(int[] duplicates, int[] originals, int count) {
+            this.duplicates = duplicates;
+            this.originals  = originals;
+            this.count      = count;
+        }
+
+        int duplicate(int k) { return duplicates[k]; }
+        int original(int k)  { return originals[k]; }
+
+        /** The duplicates' indices, ascending. */
+        int[] indices() { return Arrays.copyOf(duplicates, count); }
+    }
+
+    private WaypointDuplicates() {}
+
+    static Result find(WaypointGroup g, double radius) {
+        int n = g.size();
+        int[] dup = new int[16], orig = new int[16];
+        int count = 0;
+        LongIntMap table = new LongIntMap(n);
+
+        if (radius <= 0) {
+            for (int i = 0; i < n; i++) {
+                long key = pack(block(g.x(i)), block(g.y(i)), block(g.z(i)));
+                int first = table.get(key);
+                if (first < 0) {
+                    table.put(key, i);
+                    continue;
+                }
+                if (count == dup.length) { dup = Arrays.copyOf(dup, count * 2); orig = Arrays.copyOf(orig, count * 2); }
+                dup[count] = i;
+                orig[count++] = first;
+            }
+            return new Result(dup, orig, count);
+        }
+
+        // cell -> most recent kept point in it; next[] chains earlier kept points in the same cell
+        int[] next = new int[n];
+        double r2 = radius * radius;
+        for (int i = 0; i < n; i++) {
+            double x = g.x(i), y = g.y(i), z = g.z(i);
+            int cx = cell(x, radius), cy = cell(y, radius), cz = cell(z, radius);
+            int match = -1;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        for (int j = table.get(pack(cx + dx, cy + dy, cz + dz)); j >= 0; j = next[j]) {
+                            if (g.distanceSq(j, x, y, z) <= r2 && (match < 0 || j < match)) match = j;
+                        }
+                    }
+                }
+            }
+            if (match < 0) {
+                long key = pack(cx, cy, cz);
+                next[i] = table.get(key);
+                table.put(key, i);
+                continue;
+            }
+            if (count == dup.length) { dup = Arrays.copyOf(dup, count * 2); orig = Arrays.copyOf(orig, count * 2); }
+            dup[count] = i;
+            orig[count++] = match;
+        }
+        return new Result(dup, orig, count);
+    }
+
+    /**
+     * An existing point of {@code g} that (x, y, z) would duplicate, or -1: the same block
+     * with radius 0, otherwise within {@code radius}. Uses the group's spatial index, so it
+     * is cheap enough to run on every add.
+     */
+    static int existing(WaypointGroup g, double x, double y, double z, double radius) {
+        int i = g.nearest(x, y, z);
+        if (i < 0) return -1;
+        if (radius <= 0) {
+            return block(g.x(i)) == block(x) && block(g.y(i)) == block(y) && block(g.z(i)) == block(z) ? i : -1;
+        }
+        return g.distanceSq(i, x, y, z) <= radius * radius ? i : -1;
+    }
+
+    private static int block(double v) { return (int) Math.floor(v); }
+
+    private static int cell(double v, double size) { return (int) Math.floor(v / size); }
+
+    /** x and z in 26 bits, y in 12, like a vanilla BlockPos. */
+    static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (y & 0xFFF) << 26) | (z & 0x3FFFFFF);
+    }
+
+    /** long -> non-negative int, linear probing, no boxing; a negative value marks a free slot. */
+    private static final class LongIntMap {
+        private long[] keys;
+        private int[]  values;
+        private int    mask;
+        private int    size;
+
+        LongIntMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            keys   = new long[cap];
+            values = new int[cap];
+            Arrays.fill(values, -1);
+            mask = cap - 1;
+        }
+
+        int get(long key) {
+            for (int s = slot(key); ; s = (s + 1) & mask) {
+                if (values[s] < 0) return -1;
+                if (keys[s] == key) return values[s];
+            }
+        }
+
+        void put(long key, int value) {
+            int s = slot(key);
+            while (values[s] >= 0 && keys[s] != key) s = (s + 1) & mask;
+            if (values[s] < 0) {
+                keys[s] = key;
+                if (++size * 2 > keys.length) {
+                    values[s] = value;
+                    grow();
+                    return;
+                }
+            }
+            values[s] = value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys   = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(values, -1);
+            mask = keys.length - 1;
+            for (int s = 0; s < oldKeys.length; s++) {
+                if (oldValues[s] < 0) continue;
+                int t = slot(oldKeys[s]);
+                while (values[t] >= 0) t = (t + 1) & mask;
+                keys[t]   = oldKeys[s];
+                values[t] = oldValues[s];
+            }
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.waypoints;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Streaming route export: a group's columns straight out through a {@link JsonWriter} or a
+ * plain {@link Writer}, without building maps or a JSON tree first. The counterpart of
+ * {@link WaypointImporter}, in the same formats:
+ * <ul>
+ *   <li>{@link WaypointImporter.Format#SOOPY}: a JSON array of {x, y, z, r, g, b, options:{name}}</li>
+ *   <li>{@link WaypointImporter.Format#COLEWEIGHT}: {name, description, waypoints:[...]} around
+ *       the same array</li>
+ *   <li>{@link WaypointImporter.Format#CSV}: an "x,y,z,name" header and one row per point</li>
+ *   <li>{@link WaypointImporter.Format#XYZ}: "x y z name" rows</li>
+ *   <li>{@link WaypointImporter.Format#CODE}: a compact route code ({@link WaypointRouteCode})</li>
+ * </ul>
+ * Whole-block coordinates are written without a fraction. Several groups go out in one
+ * stream: JSON formats as one object keyed by group name, CSV with an extra group column,
+ * XYZ and codes with a "# name" comment line before each group. Single-group output reads straight
+ * back in with /w import; multi-group output is meant for backups and other tools.
+ *
+ * Reads the groups as it goes, so call it on the client thread.
+ */
+final class WaypointExporter {
+
+    /** Rough bytes per point, to size the clipboard buffer up front. */
+    private static final int BYTES_PER_POINT = 80;
+
+    private WaypointExporter() {}
+
+    static String extension(WaypointImporter.Format format) {
+        switch (format) {
+            case CSV: return "csv";
+            case XYZ:
+            case CODE: return "txt";
+            default:  return "json";
+        }
+    }
+
+    /** Everything as one string, for the clipboard. */
+    static String toString(List<WaypointGroup> groups, WaypointImporter.Format format, boolean many) throws IOException {
+        long points = 0;
+        for (WaypointGroup g : groups) points += g.size();
+        TextBuffer out = new TextBuffer((int) Math.min(Integer.MAX_VALUE - 8, 64 + points * BYTES_PER_POINT));
+        write(out, groups, format, many);
+        return out.text.toString();
+    }
+
+    /** Write to {@code file} (UTF-8), through a temp file so a failed export never leaves half a file. */
+    static void write(File file, List<WaypointGroup> groups, WaypointImporter.Format format, boolean many) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8), 1 << 16)) {
+            write(out, groups, format, many);
+        }
+        if (file.exists() && !file.delete()) throw new IOException("Cannot replace " + file);
+        if (!tmp.renameTo(file)) throw new IOException("Cannot move " + tmp + " to " + file);
+    }
+
+    /**
+     * Write {@code groups} in {@code format}. With {@code many} false only the first group is
+     * written, in the plain single-route layout.
+     */
+    static void write(Writer out, List<WaypointGroup> groups, WaypointImporter.Format format, boolean many) throws IOException {
+        switch (format) {
+            case SOOPY:
+            case COLEWEIGHT: {
+                JsonWriter json = new JsonWriter(out);
+                boolean wrapped = format == WaypointImporter.Format.COLEWEIGHT;
+                if (!many) {
+                    writeJson(json, groups.get(0), wrapped);
+                } else {
+                    json.beginObject();
+                    for (WaypointGroup g : groups) {
+                        json.name(g.name);
+                        writeJson(json, g, wrapped);
+                    }
+                    json.endObject();
+                }
+                json.flush();
+                break;
+            }
+            case CSV:
+                out.write(many ? "x,y,z,name,group\n" : "x,y,z,name\n");
+                for (WaypointGroup g : groups) {
+                    writeRows(out, g, ',', many ? csv(g.name) : null);
+                    if (!many) break;
+                }
+                break;
+            case XYZ:
+                for (WaypointGroup g : groups) {
+                    if (many) out.write("# " + g.name + "\n");
+                    writeRows(out, g, ' ', null);
+                    if (!many) break;
+                }
+                break;
+            case CODE:
+                for (WaypointGroup g : groups) {
+                    if (many) out.write("# " + g.name + "\n");
+                    out.write(WaypointRouteCode.encode(g));
+                    if (!many) break;
+                    out.write('\n');
+                }
+                break;
+        }
+        out.flush();
+    }
+
+    // ------------------------------------------------------------------ JSON
+
+    private static void writeJson(JsonWriter json, WaypointGroup g, boolean wrapped) throws IOException {
+        if (wrapped) {
+            json.beginObject();
+            json.name("name").value(g.name);
+            json.name("description").value(g.description != null ? g.description : "");
+            json.name("waypoints");
+        }
+        json.beginArray();
+        for (int i = 0, n = g.size(); i < n; i++) {
+            String name = g.name(i);
+            json.beginObject();
+            coordinate(json.name("x"), g.x(i));
+            coordinate(json.name("y"), g.y(i));
+            coordinate(json.name("z"), g.z(i));
+            json.name("r").value(0);
+            json.name("g").value(1);
+            json.name("b").value(0);
+            json.name("options").beginObject().name("name").value(name != null ? name : "").endObject();
+            json.endObject();
+        }
+        json.endArray();
+        if (wrapped) json.endObject();
+    }
+
+    private static void coordinate(JsonWriter json, double v) throws IOException {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) json.value((long) v);
+        else                                          json.value(v);
+    }
+
+    // ------------------------------------------------------------------ text
+
+    /** One row per point: x, y, z, name and, if given, a trailing column. */
+    private static void writeRows(Writer out, WaypointGroup g, char sep, String trailer) throws IOException {
+        StringBuilder row = new StringBuilder(64);
+        for (int i = 0, n = g.size(); i < n; i++) {
+            row.setLength(0);
+            coordinate(row, g.x(i)).append(sep);
+            coordinate(row, g.y(i)).append(sep);
+            coordinate(row, g.z(i));
+            String name = g.name(i);
+            if (name != null && !name.isEmpty()) row.append(sep).append(sep == ',' ? csv(name) : name);
+            else if (trailer != null)            row.append(sep);
+            if (trailer != null) row.append(sep).append(trailer);
+            row.append('\n');
+            out.append(row);
+        }
+    }
+
+    private static StringBuilder coordinate(StringBuilder sb, double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return sb.append((long) v);
+        return sb.append(v);
+    }
+
+    /** {@link java.io.StringWriter} without the synchronised StringBuffer underneath. */
+    private static final class TextBuffer extends Writer {
+        final StringBuilder text;
+
+        TextBuffer(int capacity) { text = new StringBuilder(capacity); }
+
+        @Override public void write(char[] buf, int off, int len) { text.append(buf, off, len); }
+        @Override public void write(int c)                         { text.append((char) c); }
+        @Override public void write(String str, int off, int len)  { text.append(str, off, off + len); }
+        @Override public Writer append(CharSequence csq)           { text.append(csq); return this; }
+        @Override public void flush() {}
+        @Override public void close() {}
+    }
+
+    /** A CSV field, quoted if it holds a delimiter, quote or line break. */
+    private static String csv(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == ';' || c == '\t' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + s.replace("\"", "\"\"") + '"';
+            }
+        }
+        return s;
+    }
+}
@@ -1,33 +1,376 @@
 package com.waypoints;
 
-import java.util.ArrayList;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * A named, ordered collection of waypoints (a "route").
- * Serialized by Gson – keep fields accessible with a no-arg constructor.
+ *
+ * Points are stored column-wise: parallel {@code double} arrays for x/y/z and a name
+ * array that is only allocated once some point actually has a name. Hot paths (advance
+ * checks, rendering) read the columns through {@link #x}/{@link #y}/{@link #z} without
+ * touching a per-point object; {@link #get} builds a {@link WaypointPoint} on demand.
+ *
+ * Serialized by Gson through {@link GsonAdapter}, in the same shape the old
+ * {@code List<WaypointPoint>} field produced: {name, description, waypoints: [{x,y,z,name}]}.
  */
 public class WaypointGroup {
 
+    private static final int INITIAL_CAPACITY = 16;
+
     public String name;
     public String description;
-    public List<WaypointPoint> waypoints;
 
-    /** Required by Gson. */
+    private double[] xs;
+    private double[] ys;
+    private double[] zs;
+    /** Null until the first non-null name is stored. */
+    private String[] names;
+    private int size;
+    /** Bumped on every point edit so caches (render geometry, labels) can tell they are stale. */
+    private int version;
+    /** Nearest-point grid; null until first asked for, then updated by every edit. */
+    private WaypointSpatialIndex spatial;
+    /** Sorted point names for completion and lookup by name; null until first asked for. */
+    private WaypointNameIndex nameIndex;
+
     public WaypointGroup() {
-        this.waypoints   = new ArrayList<>();
         this.description = "";
+        this.xs = new double[INITIAL_CAPACITY];
+        this.ys = new double[INITIAL_CAPACITY];
+        this.zs = new double[INITIAL_CAPACITY];
     }
 
     public WaypointGroup(String name) {
-        this.name        = name;
-        this.description = "";
-        this.waypoints   = new ArrayList<>();
+        this();
+        this.name = name;
     }
 
     public WaypointGroup(String name, String description) {
+        this();
+        this.name        = name;
+        this.description = description;
+    }
+
+    /** Adopt pre-built columns (binary shards). Arrays are taken, not copied. */
+    WaypointGroup(String name, String description, double[] xs, double[] ys, double[] zs,
+                  String[] names, int size) {
         this.name        = name;
         this.description = description;
-        this.waypoints   = new ArrayList<>();
+        this.xs    = xs;
+        this.ys    = ys;
+        this.zs    = zs;
+        this.names = names;
+        this.size  = size;
+    }
+
+    // ------------------------------------------------------------------ queries
+
+    public int size()        { return size; }
+    public boolean isEmpty() { return size == 0; }
+    public int version()     { return version; }
+
+    public double x(int i) { return xs[i]; }
+    public double y(int i) { return ys[i]; }
+    public double z(int i) { return zs[i]; }
+
+    public String name(int i) {
+        if (i >= size) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        return names == null ? null : names[i];
+    }
+
+    /** Squared distance from point {@code i} to a world position – no sqrt, no allocation. */
+    public double distanceSq(int i, double ox, double oy, double oz) {
+        double dx = xs[i] - ox, dy = ys[i] - oy, dz = zs[i] - oz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /** Index of the point closest to a world position, or -1 when empty. Sub-linear, no allocation. */
+    public int nearest(double ox, double oy, double oz) {
+        return spatialIndex().nearest(ox, oy, oz);
+    }
+
+    /** Build the nearest-point index now (so the first query does not pay for it). */
+    WaypointSpatialIndex spatialIndex() {
+        if (spatial == null) spatial = new WaypointSpatialIndex(this);
+        return spatial;
+    }
+
+    /** Index of the first point named {@code name} (ignoring case), or -1. */
+    public int findName(String name) {
+        return name == null ? -1 : nameIndex().find(name);
+    }
+
+    /** Distinct point names starting with {@code prefix}, sorted, at most {@code limit}. */
+    public List<String> completeNames(String prefix, int limit) {
+        return nameIndex().complete(prefix, limit);
+    }
+
+    private WaypointNameIndex nameIndex() {
+        if (nameIndex == null) nameIndex = WaypointNameIndex.of(names, size);
+        return nameIndex;
+    }
+
+    /** A detached copy of point {@code i}; edits to it do not write back. */
+    public WaypointPoint get(int i) {
+        return new WaypointPoint(x(i), y(i), z(i), name(i));
+    }
+
+    // ------------------------------------------------------------------ mutations
+
+    public void add(WaypointPoint wp) {
+        insert(size, wp.x, wp.y, wp.z, wp.name);
+    }
+
+    public void add(double x, double y, double z, String name) {
+        insert(size, x, y, z, name);
+    }
+
+    public void insert(int index, WaypointPoint wp) {
+        insert(index, wp.x, wp.y, wp.z, wp.name);
+    }
+
+    public void insert(int index, double x, double y, double z, String name) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        ensureCapacity(size + 1);
+        int tail = size - index;
+        if (tail > 0) {
+            System.arraycopy(xs, index, xs, index + 1, tail);
+            System.arraycopy(ys, index, ys, index + 1, tail);
+            System.arraycopy(zs, index, zs, index + 1, tail);
+            if (names != null) System.arraycopy(names, index, names, index + 1, tail);
+        }
+        xs[index] = x;
+        ys[index] = y;
+        zs[index] = z;
+        size++;
+        version++;
+        if (names != null) names[index] = null;
+        if (nameIndex != null) nameIndex.shift(index, 1);
+        if (name != null) setName(index, name);
+        if (spatial != null) spatial.inserted(index, x, z);
+    }
+
+    public void remove(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        double x = xs[index], z = zs[index];
+        String name = names == null ? null : names[index];
+        int tail = size - index - 1;
+        if (tail > 0) {
+            System.arraycopy(xs, index + 1, xs, index, tail);
+            System.arraycopy(ys, index + 1, ys, index, tail);
+            System.arraycopy(zs, index + 1, zs, index, tail);
+            if (names != null) System.arraycopy(names, index + 1, names, index, tail);
+        }
+        size--;
+        version++;
+        if (names != null) names[size] = null;
+        if (spatial != null) spatial.removed(index, x, z);
+        if (nameIndex != null) {
+            nameIndex.remove(name, index);
+            nameIndex.shift(index + 1, -1);
+        }
+    }
+
+    /**
+     * Remove the points at {@code indices} (ascending, no repeats) in one pass. With
+     * {@code renumber}, a purely numeric name that matched its old 1-based position follows
+     * the point to its new one, as in {@link #reorder}.
+     */
+    public void removeAll(int[] indices, boolean renumber) {
+        if (indices.length == 0) return;
+        int k = 0, w = 0;
+        for (int i = 0; i < size; i++) {
+            if (k < indices.length && indices[k] == i) { k++; continue; }
+            if (w != i) {
+                xs[w] = xs[i];
+                ys[w] = ys[i];
+                zs[w] = zs[i];
+            }
+            if (names != null) {
+                String name = names[i];
+                if (renumber && name != null && w != i) {
+                    try {
+                        if (Integer.parseInt(name) == i + 1) name = String.valueOf(w + 1);
+                    } catch (NumberFormatException ignored) {}
+                }
+                names[w] = name;
+            }
+            w++;
+        }
+        if (names != null) Arrays.fill(names, w, size, null);
+        size = w;
+        version++;
+        if (spatial != null) spatial.rebuild();
+        nameIndex = null; // most entries move; rebuilt on the next lookup
+    }
+
+    public void setName(int index, String name) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        if (names == null) {
+            if (name == null) return;
+            names = new String[xs.length];
+        }
+        if (nameIndex != null) {
+            nameIndex.remove(names[index], index);
+            nameIndex.add(name, index);
+        }
+        names[index] = name;
+        version++;
+    }
+
+    /** Replace every point (imports). */
+    public void setPoints(List<WaypointPoint> points) {
+        clear();
+        ensureCapacity(points.size());
+        for (WaypointPoint wp : points) add(wp);
+    }
+
+    /**
+     * Permute the points: old point {@code order[k]} moves to position {@code k}. With
+     * {@code renumber}, a purely numeric name that matched its old 1-based position is
+     * changed to the new one, the same rule {@link #renumberNumericNames} applies.
+     */
+    public void reorder(int[] order, boolean renumber) {
+        if (order.length != size) throw new IllegalArgumentException("Order has " + order.length + " entries, group has " + size);
+        int cap = Math.max(size, INITIAL_CAPACITY);
+        double[] nx = new double[cap], ny = new double[cap], nz = new double[cap];
+        String[] nn = names == null ? null : new String[cap];
+        for (int k = 0; k < size; k++) {
+            int i = order[k];
+            nx[k] = xs[i];
+            ny[k] = ys[i];
+            nz[k] = zs[i];
+            if (nn == null) continue;
+            String name = names[i];
+            if (renumber && name != null) {
+                try {
+                    if (Integer.parseInt(name) == i + 1) name = String.valueOf(k + 1);
+                } catch (NumberFormatException ignored) {}
+            }
+            nn[k] = name;
+        }
+        xs = nx;
+        ys = ny;
+        zs = nz;
+        names = nn;
+        version++;
+        if (spatial != null) spatial.rebuild();
+        nameIndex = null; // every entry moves; rebuilt on the next lookup
+    }
+
+    public void clear() {
+        size = 0;
+        names = null;
+        version++;
+        if (spatial != null) spatial.clear();
+        if (nameIndex != null) nameIndex.clear();
+    }
+
+    /** Deep copy; columns are cloned, so the copy can be read on another thread. */
+    public WaypointGroup copy() {
+        return new WaypointGroup(name, description,
+                Arrays.copyOf(xs, size), Arrays.copyOf(ys, size), Arrays.copyOf(zs, size),
+                names == null ? null : Arrays.copyOf(names, size), size);
+    }
+
+    private void ensureCapacity(int min) {
+        if (min <= xs.length) return;
+        int cap = Math.max(min, xs.length + (xs.length >> 1) + 1);
+        xs = Arrays.copyOf(xs, cap);
+        ys = Arrays.copyOf(ys, cap);
+        zs = Arrays.copyOf(zs, cap);
+        if (names != null) names = Arrays.copyOf(names, cap);
+    }
+
+    /**
+     * After inserting at {@code fromOneBasedIndex}, bump every purely numeric label
+     * at or after that position by 1 so labels stay sequential.
+     */
+    public void renumberNumericNames(int fromOneBasedIndex) {
+        if (names == null) return;
+        for (int i = fromOneBasedIndex; i < size; i++) {
+            try {
+                int n = Integer.parseInt(names[i]);
+                if (n == i) names[i] = String.valueOf(i + 1); // only bump if it was already correct
+            } catch (NumberFormatException ignored) {}
+        }
+        version++;
+        nameIndex = null; // a bulk rename; cheaper to rebuild on the next lookup
+    }
+
+    // ------------------------------------------------------------------ Gson
+
+    /** Reads and writes the original {name, description, waypoints:[{x,y,z,name}]} layout. */
+    static final class GsonAdapter extends TypeAdapter<WaypointGroup> {
+
+        @Override
+        public void write(JsonWriter out, WaypointGroup g) throws IOException {
+            if (g == null) { out.nullValue(); return; }
+            out.beginObject();
+            out.name("name").value(g.name);
+            out.name("description").value(g.description);
+            out.name("waypoints").beginArray();
+            for (int i = 0; i < g.size; i++) {
+                out.beginObject();
+                out.name("x").value(g.xs[i]);
+                out.name("y").value(g.ys[i]);
+                out.name("z").value(g.zs[i]);
+                String n = g.name(i);
+                if (n != null) out.name("name").value(n);
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        }
+
+        @Override
+        public WaypointGroup read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) { in.nextNull(); return null; }
+            WaypointGroup g = new WaypointGroup();
+            in.beginObject();
+            while (in.hasNext()) {
+                String key = in.nextName();
+                if (in.peek() == JsonToken.NULL) { in.nextNull(); continue; }
+                switch (key) {
+                    case "name":        g.name = in.nextString(); break;
+                    case "description": g.description = in.nextString(); break;
+                    case "waypoints":   readPoints(in, g); break;
+                    default:            in.skipValue();
+                }
+            }
+            in.endObject();
+            return g;
+        }
+
+        private static void readPoints(JsonReader in, WaypointGroup g) throws IOException {
+            in.beginArray();
+            while (in.hasNext()) {
+                if (in.peek() == JsonToken.NULL) { in.nextNull(); continue; }
+                double x = 0, y = 0, z = 0;
+                String name = null;
+                in.beginObject();
+                while (in.hasNext()) {
+                    String key = in.nextName();
+                    if (in.peek() == JsonToken.NULL) { in.nextNull(); continue; }
+                    switch (key) {
+                        case "x":    x = in.nextDouble(); break;
+                        case "y":    y = in.nextDouble(); break;
+                        case "z":    z = in.nextDouble(); break;
+                        case "name": name = in.nextString(); break;
+                        default:     in.skipValue();
+                    }
+                }
+                in.endObject();
+                g.add(x, y, z, name);
+            }
+            in.endArray();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+package com.waypoints;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Undo/redo for route edits. Owned by {@link WaypointStorage} and only touched under its
+ * monitor; kept in memory only, so it starts empty every session.
+ *
+ * Each edit is recorded as the group's contents before and after, as
+ * {@link WaypointPointVector} versions. Point edits derive the new version from the old one
+ * in O(log n), sharing everything else, so a long history of small edits on a big route
+ * stays small. The first edit to a group in a session (and whole-group changes such as
+ * imports and reorders) snapshot the group once, O(n).
+ */
+final class WaypointHistory {
+
+    static final int DEFAULT_DEPTH = 50;
+
+    /** One undoable edit. A null version means the group did not exist on that side. */
+    static final class Step {
+        final String key;
+        final String name;
+        final String description;
+        final String what;
+        final WaypointPointVector before, after;
+
+        Step(String key, String name, String description, String what,
+             WaypointPointVector before, WaypointPointVector after) {
+            this.key         = key;
+            this.name        = name;
+            this.description = description;
+            this.what        = what;
+            this.before      = before;
+            this.after       = after;
+        }
+    }
+
+    /** Last known version of a group, valid while the group object and its version match. */
+    private static final class Tracked {
+        final WaypointGroup group;
+        final int version;
+        final WaypointPointVector points;
+
+        Tracked(WaypointGroup group, WaypointPointVector points) {
+            this.group   = group;
+            this.version = group.version();
+            this.points  = points;
+        }
+    }
+
+    private final Map<String, Tracked> tracked = new HashMap<>();
+    private final Deque<Step> undo = new ArrayDeque<>();
+    private final Deque<Step> redo = new ArrayDeque<>();
+    private int depth = DEFAULT_DEPTH;
+
+    /**
+     * The version matching {@code g} right now. Rebuilt from the group if it is new to the
+     * history or was changed without going through it (journal replay, for instance).
+     */
+    WaypointPointVector current(String key, WaypointGroup g) {
+        Tracked t = tracked.get(key);
+        if (t != null && t.group == g && t.version == g.version()) return t.points;
+        WaypointPointVector points = WaypointPointVector.of(g);
+        tracked.put(key, new Tracked(g, points));
+        return points;
+    }
+
+    /** Note that {@code g} now holds {@code points}, without recording a step. */
+    void track(String key, WaypointGroup g, WaypointPointVector points) {
+        if (g == null) tracked.remove(key);
+        else           tracked.put(key, new Tracked(g, points));
+    }
+
+    /** Record an edit that has just been applied; {@code g} is the group afterwards (null if deleted). */
+    void record(String key, String name, String description, String what,
+                WaypointPointVector before, WaypointGroup g, WaypointPointVector after) {
+        track(key, g, after);
+        undo.push(new Step(key, name, description, what, before, after));
+        redo.clear();
+        trim();
+    }
+
+    Step popUndo() { return undo.poll(); }
+    Step popRedo() { return redo.poll(); }
+
+    void pushRedo(Step s) { redo.push(s); }
+
+    /** Put a redone step back without clearing the rest of the redo stack. */
+    void pushUndo(Step s) {
+        undo.push(s);
+        trim();
+    }
+
+    int undoCount() { return undo.size(); }
+    int redoCount() { return redo.size(); }
+
+    int depth() { return depth; }
+
+    void setDepth(int depth) {
+        this.depth = Math.max(0, depth);
+        trim();
+        while (redo.size() > this.depth) redo.removeLast();
+    }
+
+    /** Follow a group rename: steps recorded under the old key now apply to the new one. */
+    void renamed(String oldKey, String newKey, String newName) {
+        Tracked t = tracked.remove(oldKey);
+        if (t != null) tracked.put(newKey, t);
+        rekey(undo, oldKey, newKey, newName);
+        rekey(redo, oldKey, newKey, newName);
+    }
+
+    void clear() {
+        tracked.clear();
+        undo.clear();
+        redo.clear();
+    }
+
+    private void trim() {
+        while (undo.size() > depth) undo.removeLast();
+    }
+
+    private static void rekey(Deque<Step> steps, String oldKey, String newKey, String newName) {
+        Deque<Step> out = new ArrayDeque<>(steps.size());
+        for (Step s : steps) {
+            out.addLast(!s.key.equals(oldKey) ? s
+                    : new Step(newKey, newName, s.description, s.what, s.before, s.after));
+        }
+        steps.clear();
+        steps.addAll(out);
+    }
+}
@@ -0,0 +1,449 @@
+package com.waypoints;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming route import: clipboard text or a file straight into a {@link WaypointGroup}'s
+ * columns, without building an intermediate object tree or splitting the input with regex.
+ *
+ * The format is picked from the first non-blank character and line:
+ * <ul>
+ *   <li>{@link Format#SOOPY}: a JSON array of {x, y, z, options:{name}} objects (soopy and
+ *       coleweight exports)</li>
+ *   <li>{@link Format#COLEWEIGHT}: a JSON object wrapping such an array, e.g. a saved route
+ *       or a group file ({name, description, waypoints:[...]})</li>
+ *   <li>{@link Format#CSV}: comma, semicolon or tab separated, with an optional header naming
+ *       the x, y, z and name columns</li>
+ *   <li>{@link Format#XYZ}: whitespace separated "x y z [name]" rows</li>
+ *   <li>{@link Format#CODE}: a compact route code, see {@link WaypointRouteCode}</li>
+ * </ul>
+ * JSON goes through Gson's {@link JsonReader}; text formats through a small line tokenizer
+ * that parses plain decimal numbers in place. Safe to call off the client thread; the
+ * returned group is not yet known to storage.
+ */
+final class WaypointImporter {
+
+    enum Format { SOOPY, COLEWEIGHT, CSV, XYZ, CODE }
+
+    static final class Result {
+        final WaypointGroup group;
+        final Format format;
+        /** Rows that could not be read as a point (text formats only). */
+        final int skipped;
+
+        Result(WaypointGroup group, Format format, int skipped) {
+            this.group   = group;
+            this.format  = format;
+            this.skipped = skipped;
+        }
+    }
+
+    private static final int PEEK = 4096;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private WaypointImporter() {}
+
+    static Result read(String text, String name) throws IOException {
+        return read(new BufferedReader(new StringReader(text), PEEK * 2), name);
+    }
+
+    static Result read(File file, String name) throws IOException {
+        try (BufferedReader r = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            return read(r, name);
+        }
+    }
+
+    /** Detect the format and parse everything; null if nothing looked like a route. */
+    static Result read(BufferedReader in, String name) throws IOException {
+        Format format = detect(in);
+        if (format == null) return null;
+        WaypointGroup g = new WaypointGroup(name);
+        int skipped = 0;
+        switch (format) {
+            case SOOPY:
+            case COLEWEIGHT:
+                readJson(in, g);
+                sortByNumericNames(g);
+                break;
+            case CODE:
+                g = WaypointRouteCode.decode(readAll(in), name);
+                break;
+            default:
+                skipped = new LineTokenizer(in, format).readInto(g);
+        }
+        return g.isEmpty() ? null : new Result(g, format, skipped);
+    }
+
+    // ------------------------------------------------------------------ detection
+
+    /** Look at the first bytes without consuming them. */
+    static Format detect(BufferedReader in) throws IOException {
+        in.mark(PEEK);
+        char[] head = new char[PEEK];
+        int n = 0, r;
+        while (n < PEEK && (r = in.read(head, n, PEEK - n)) > 0) n += r;
+        in.reset();
+
+        int i = 0;
+        if (n > 0 && head[0] == '\uFEFF') i++; // UTF-8 BOM
+        while (i < n && Character.isWhitespace(head[i])) i++;
+        if (i == n) return null;
+        if (head[i] == '[') return Format.SOOPY;
+        if (head[i] == '{') return Format.COLEWEIGHT;
+        if (WaypointRouteCode.isCode(head, i, n)) return Format.CODE;
+
+        // first non-blank line decides between CSV and plain rows; a row that opens with three
+        // space-separated numbers is plain even if its name holds a delimiter
+        int eol = i;
+        while (eol < n && head[eol] != '\n' && head[eol] != '\r') eol++;
+        if (leadingNumbers(head, i, eol, 3)) return Format.XYZ;
+        for (int j = i; j < eol; j++) {
+            char c = head[j];
+            if (c == ',' || c == ';' || c == '\t') return Format.CSV;
+        }
+        return Format.XYZ;
+    }
+
+    /** Whether {@code text[from..to)} starts with {@code count} space-separated plain numbers. */
+    private static boolean leadingNumbers(char[] text, int from, int to, int count) {
+        int i = from;
+        for (int k = 0; k < count; k++) {
+            while (i < to && text[i] == ' ') i++;
+            int s = i;
+            while (i < to && text[i] != ' ') i++;
+            if (!isNumber(text, s, i)) return false;
+        }
+        return true;
+    }
+
+    /** Optional sign, digits and at most one decimal point. */
+    private static boolean isNumber(char[] text, int from, int to) {
+        int i = from;
+        if (i < to && (text[i] == '-' || text[i] == '+')) i++;
+        boolean digits = false, dot = false;
+        for (; i < to; i++) {
+            char c = text[i];
+            if (c >= '0' && c <= '9') digits = true;
+            else if (c == '.' && !dot) dot = true;
+            else return false;
+        }
+        return digits;
+    }
+
+    private static String readAll(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder(PEEK);
+        char[] buf = new char[PEEK];
+        int r;
+        while ((r = in.read(buf)) > 0) sb.append(buf, 0, r);
+        return sb.toString();
+    }
+
+    // ------------------------------------------------------------------ JSON
+
+    private static void readJson(Reader in, WaypointGroup g) throws IOException {
+        JsonReader json = new JsonReader(in);
+        json.setLenient(true);
+        if (json.peek() == JsonToken.BEGIN_ARRAY) {
+            readPointArray(json, g);
+            return;
+        }
+        // an object: take the first array of points, and a description if there is one
+        json.beginObject();
+        boolean found = false;
+        while (json.hasNext()) {
+            String key = json.nextName();
+            JsonToken t = json.peek();
+            if (t == JsonToken.BEGIN_ARRAY && !found) {
+                readPointArray(json, g);
+                found = true;
+            } else if (key.equals("description") && t == JsonToken.STRING) {
+                g.description = json.nextString();
+            } else {
+                json.skipValue();
+            }
+        }
+    }
+
+    private static void readPointArray(JsonReader json, WaypointGroup g) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            if (json.peek() != JsonToken.BEGIN_OBJECT) { json.skipValue(); continue; }
+            double x = 0, y = 0, z = 0;
+            String name = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                String key = json.nextName();
+                if (json.peek() == JsonToken.NULL) { json.nextNull(); continue; }
+                switch (key) {
+                    case "x": x = json.nextDouble(); break;
+                    case "y": y = json.nextDouble(); break;
+                    case "z": z = json.nextDouble(); break;
+                    case "name": name = scalar(json); break;
+                    case "options":
+                        if (json.peek() != JsonToken.BEGIN_OBJECT) { json.skipValue(); break; }
+                        json.beginObject();
+                        while (json.hasNext()) {
+                            if (json.nextName().equals("name") && json.peek() != JsonToken.NULL) name = scalar(json);
+                            else json.skipValue();
+                        }
+                        json.endObject();
+                        break;
+                    default: json.skipValue();
+                }
+            }
+            json.endObject();
+            g.add(x, y, z, name != null ? name : String.valueOf(g.size() + 1));
+        }
+        json.endArray();
+    }
+
+    /** A string or number as text; anything else is skipped. */
+    private static String scalar(JsonReader json) throws IOException {
+        JsonToken t = json.peek();
+        if (t == JsonToken.STRING || t == JsonToken.NUMBER) return json.nextString();
+        json.skipValue();
+        return null;
+    }
+
+    /**
+     * Routes are often exported in arbitrary order with their position as the name; if
+     * every name is a number, order by it (stable), like the old coleweight-style import.
+     */
+    private static void sortByNumericNames(WaypointGroup g) {
+        int n = g.size();
+        long[] keyed = new long[n];
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            int v;
+            try {
+                v = Integer.parseInt(g.name(i));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            // value in the high half, original index in the low half keeps the sort stable
+            keyed[i] = ((long) v << 32) | i;
+            if (i > 0 && keyed[i] < keyed[i - 1]) sorted = false;
+        }
+        if (sorted) return;
+        Arrays.sort(keyed);
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) order[k] = (int) keyed[k];
+        g.reorder(order, false);
+    }
+
+    // ------------------------------------------------------------------ text
+
+    /**
+     * Reads one line at a time into a reused buffer and splits it into field ranges in
+     * place; numbers are parsed from the buffer, only names become Strings.
+     */
+    private static final class LineTokenizer {
+        private final Reader in;
+        private final boolean csv;
+        private final char[] buf = new char[1 << 14];
+        private int bufPos, bufLen;
+
+        private char[] line = new char[256];
+        private int lineLen;
+        private int[] start = new int[8], end = new int[8];
+        private boolean[] quoted = new boolean[8];
+        private int fields;
+        private char delimiter;
+
+        // CSV column mapping; -1 when absent
+        private int colX = 0, colY = 1, colZ = 2, colName = 3;
+
+        LineTokenizer(Reader in, Format format) {
+            this.in  = in;
+            this.csv = format == Format.CSV;
+        }
+
+        int readInto(WaypointGroup g) throws IOException {
+            int skipped = 0;
+            boolean first = true;
+            while (nextLine()) {
+                if (first && lineLen > 0 && line[0] == '\uFEFF') shiftBom();
+                if (isBlank()) continue;
+                if (first) {
+                    first = false;
+                    if (csv) delimiter = pickDelimiter();
+                    split();
+                    if (csv && header()) continue;
+                } else {
+                    split();
+                }
+                if (line[start[0]] == '#') continue; // comment row
+
+                int need = Math.max(colX, Math.max(colY, colZ));
+                if (fields <= need) { skipped++; continue; }
+                double x = number(colX), y = number(colY), z = number(colZ);
+                if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z)) { skipped++; continue; }
+
+                String name = null;
+                if (csv) {
+                    if (colName >= 0 && colName < fields) name = text(colName);
+                } else if (fields > 3) {
+                    // everything after z, as written
+                    name = new String(line, start[3], end[fields - 1] - start[3]);
+                }
+                if (name == null || name.isEmpty()) name = String.valueOf(g.size() + 1);
+                g.add(x, y, z, name);
+            }
+            return skipped;
+        }
+
+        private boolean nextLine() throws IOException {
+            lineLen = 0;
+            boolean any = false;
+            while (true) {
+                if (bufPos == bufLen) {
+                    bufLen = in.read(buf, 0, buf.length);
+                    bufPos = 0;
+                    if (bufLen <= 0) { bufLen = 0; return any; }
+                }
+                char c = buf[bufPos++];
+                any = true;
+                if (c == '\n') return true;
+                if (c == '\r') continue;
+                if (lineLen == line.length) line = Arrays.copyOf(line, lineLen * 2);
+                line[lineLen++] = c;
+            }
+        }
+
+        private void shiftBom() {
+            System.arraycopy(line, 1, line, 0, --lineLen);
+        }
+
+        private boolean isBlank() {
+            for (int i = 0; i < lineLen; i++) if (!Character.isWhitespace(line[i])) return false;
+            return true;
+        }
+
+        private char pickDelimiter() {
+            for (int i = 0; i < lineLen; i++) {
+                char c = line[i];
+                if (c == ',' || c == ';' || c == '\t') return c;
+            }
+            return ',';
+        }
+
+        private void split() {
+            fields = 0;
+            int i = 0;
+            while (i < lineLen) {
+                if (csv) {
+                    while (i < lineLen && line[i] == ' ') i++;
+                    boolean q = i < lineLen && line[i] == '"';
+                    int s, e;
+                    if (q) {
+                        s = ++i;
+                        while (i < lineLen && !(line[i] == '"' && (i + 1 >= lineLen || line[i + 1] != '"'))) {
+                            i += line[i] == '"' ? 2 : 1;
+                        }
+                        e = Math.min(i, lineLen);
+                        while (i < lineLen && line[i] != delimiter) i++;
+                    } else {
+                        s = i;
+                        while (i < lineLen && line[i] != delimiter) i++;
+                        e = i;
+                        while (e > s && line[e - 1] == ' ') e--;
+                    }
+                    addField(s, e, q);
+                    if (i < lineLen) {
+                        i++; // delimiter
+                        if (i == lineLen) addField(i, i, false); // trailing empty field
+                    }
+                } else {
+                    while (i < lineLen && Character.isWhitespace(line[i])) i++;
+                    if (i == lineLen) break;
+                    int s = i;
+                    while (i < lineLen && !Character.isWhitespace(line[i])) i++;
+                    addField(s, i, false);
+                }
+            }
+        }
+
+        private void addField(int s, int e, boolean q) {
+            if (fields == start.length) {
+                start  = Arrays.copyOf(start, fields * 2);
+                end    = Arrays.copyOf(end, fields * 2);
+                quoted = Arrays.copyOf(quoted, fields * 2);
+            }
+            start[fields]  = s;
+            end[fields]    = e;
+            quoted[fields] = q;
+            fields++;
+        }
+
+        /** If the first row is a header, map the columns from it and return true. */
+        private boolean header() {
+            if (fields == 0 || !Double.isNaN(number(0))) return false;
+            colX = colY = colZ = colName = -1;
+            for (int f = 0; f < fields; f++) {
+                String h = text(f).trim().toLowerCase();
+                if      (h.equals("x")) colX = f;
+                else if (h.equals("y")) colY = f;
+                else if (h.equals("z")) colZ = f;
+                else if (h.equals("name") || h.equals("label")) colName = f;
+            }
+            if (colX < 0 || colY < 0 || colZ < 0) { colX = 0; colY = 1; colZ = 2; colName = 3; }
+            return true;
+        }
+
+        private String text(int f) {
+            String s = new String(line, start[f], end[f] - start[f]);
+            return quoted[f] ? s.replace("\"\"", "\"") : s;
+        }
+
+        /**
+         * Parse field {@code f} as a number, NaN if it is not one. Plain decimals of up to
+         * 15 significant digits are read straight from the buffer (one exact division, so
+         * the result matches parseDouble); anything else goes through parseDouble.
+         */
+        private double number(int f) {
+            int i = start[f], e = end[f];
+            if (i == e) return Double.NaN;
+            boolean neg = false;
+            if (line[i] == '-' || line[i] == '+') { neg = line[i] == '-'; i++; }
+            long mantissa = 0;
+            int digits = 0, decimals = 0;
+            boolean point = false;
+            for (; i < e; i++) {
+                char c = line[i];
+                if (c >= '0' && c <= '9') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (point) decimals++;
+                } else if (c == '.' && !point) {
+                    point = true;
+                } else {
+                    break;
+                }
+            }
+            if (i == e && digits > 0 && digits <= 15) {
+                double v = decimals == 0 ? mantissa : mantissa / POW10[decimals];
+                return neg ? -v : v;
+            }
+            try {
+                return Double.parseDouble(new String(line, start[f], e - start[f]));
+            } catch (NumberFormatException ex) {
+                return Double.NaN;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.waypoints;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of group edits, stored next to the shards as journal.bin.
+ *
+ * Layout: a 12-byte header (magic, generation) followed by framed records
+ * [int length][int crc32][payload]. The payload starts with an op byte and is decoded by
+ * {@link WaypointStorage}. A record whose frame or checksum does not check out is treated
+ * as a torn write: replay stops there and the file is truncated back to the last good record.
+ *
+ * Encoding happens on the game thread (records are a few dozen bytes); appends, resets and
+ * truncation happen on the storage writer thread.
+ */
+final class WaypointJournal {
+
+    static final byte OP_PUT_GROUP    = 1;
+    static final byte OP_REMOVE_GROUP = 2;
+    static final byte OP_RENAME_GROUP = 3;
+    static final byte OP_ADD_POINT    = 4;
+    static final byte OP_INSERT_POINT = 5;
+    static final byte OP_REMOVE_POINT = 6;
+    static final byte OP_RENAME_POINT = 7;
+
+    private static final int MAGIC       = 0x57504A31; // "WPJ1"
+    private static final int HEADER_SIZE = 12;
+    /** Upper bound for one record; anything larger is a corrupt length field. */
+    private static final int MAX_RECORD  = 64 * 1024 * 1024;
+
+    /** Called once per intact record during {@link #replay}. */
+    interface Handler {
+        void record(DataInputStream in) throws IOException;
+    }
+
+    private final File file;
+
+    WaypointJournal(File file) {
+        this.file = file;
+    }
+
+    long length() { return file.exists() ? Math.max(0L, file.length() - HEADER_SIZE) : 0L; }
+
+    // ------------------------------------------------------------------ encoding
+
+    static byte[] putGroup(WaypointGroup g) {
+        return encode(out -> {
+            out.writeByte(OP_PUT_GROUP);
+            out.writeUTF(g.name);
+            writeNullable(out, g.description);
+            out.writeInt(g.size());
+            for (int i = 0; i < g.size(); i++) writePoint(out, g.x(i), g.y(i), g.z(i), g.name(i));
+        });
+    }
+
+    static byte[] removeGroup(String key) {
+        return encode(out -> {
+            out.writeByte(OP_REMOVE_GROUP);
+            out.writeUTF(key);
+        });
+    }
+
+    static byte[] renameGroup(String oldKey, String newName) {
+        return encode(out -> {
+            out.writeByte(OP_RENAME_GROUP);
+            out.writeUTF(oldKey);
+            out.writeUTF(newName);
+        });
+    }
+
+    static byte[] addPoint(String key, WaypointPoint wp) {
+        return encode(out -> {
+            out.writeByte(OP_ADD_POINT);
+            out.writeUTF(key);
+            writePoint(out, wp.x, wp.y, wp.z, wp.name);
+        });
+    }
+
+    static byte[] insertPoint(String key, int index, WaypointPoint wp, boolean renumber) {
+        return encode(out -> {
+            out.writeByte(OP_INSERT_POINT);
+            out.writeUTF(key);
+            out.writeInt(index);
+            writePoint(out, wp.x, wp.y, wp.z, wp.name);
+            out.writeBoolean(renumber);
+        });
+    }
+
+    static byte[] removePoint(String key, int index) {
+        return encode(out -> {
+            out.writeByte(OP_REMOVE_POINT);
+            out.writeUTF(key);
+            out.writeInt(index);
+        });
+    }
+
+    static byte[] renamePoint(String key, int index, String name) {
+        return encode(out -> {
+            out.writeByte(OP_RENAME_POINT);
+            out.writeUTF(key);
+            out.writeInt(index);
+            writeNullable(out, name);
+        });
+    }
+
+    static WaypointPoint readPoint(DataInputStream in) throws IOException {
+        double x = in.readDouble(), y = in.readDouble(), z = in.readDouble();
+        return new WaypointPoint(x, y, z, readNullable(in));
+    }
+
+    static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Body body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            body.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+        }
+    }
+
+    private static void writePoint(DataOutputStream out, double x, double y, double z, String name)
+            throws IOException {
+        out.writeDouble(x);
+        out.writeDouble(y);
+        out.writeDouble(z);
+        writeNullable(out, name);
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    // ------------------------------------------------------------------ file access
+
+    /**
+     * Append framed records. If the file is missing or belongs to another generation it is
+     * started afresh first, so records never land on top of a journal that was compacted.
+     */
+    void append(long generation, List<byte[]> records) throws IOException {
+        if (records.isEmpty()) return;
+        if (readGeneration() != generation) reset(generation);
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true)))) {
+            for (byte[] r : records) {
+                crc.reset();
+                crc.update(r, 0, r.length);
+                out.writeInt(r.length);
+                out.writeInt((int) crc.getValue());
+                out.write(r);
+            }
+        }
+    }
+
+    /** Atomically replace the journal with an empty one of the given generation. */
+    void reset(long generation) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Generation stamped in the header, or -1 when the file is missing or unreadable. */
+    long readGeneration() {
+        if (!file.exists() || file.length() < HEADER_SIZE) return -1L;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC ? in.readLong() : -1L;
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Feed every intact record to {@code handler}, stopping at the first torn or corrupt one
+     * and truncating the file there. Returns the number of records replayed.
+     */
+    int replay(Handler handler) throws IOException {
+        if (readGeneration() < 0) return 0;
+        long good = HEADER_SIZE;
+        int count = 0;
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long end = raf.length();
+            raf.seek(HEADER_SIZE);
+            while (good + 8 <= end) {
+                int len = raf.readInt();
+                int sum = raf.readInt();
+                if (len <= 0 || len > MAX_RECORD || good + 8 + len > end) break;
+                byte[] payload = new byte[len];
+                raf.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, len);
+                if ((int) crc.getValue() != sum) break;
+                try {
+                    handler.record(new DataInputStream(new ByteArrayInputStream(payload)));
+                } catch (IOException | RuntimeException e) {
+                    // an intact frame that no longer applies (e.g. index past the end) – skip it
+                    e.printStackTrace();
+                }
+                good += 8 + len;
+                count++;
+            }
+            if (good < end) raf.setLength(good); // drop the torn tail
+        }
+        return count;
+    }
+}
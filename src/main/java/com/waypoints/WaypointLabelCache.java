@@ -0,0 +1,109 @@
+package com.waypoints;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Per-waypoint label strings for the loaded group, so the overlay does not concatenate
+ * and measure text every frame.
+ *
+ * Each slot remembers the colour code, fallback and rounded distance its string was built
+ * for; the string (and its pixel width) is rebuilt only when one of those changes, which
+ * for a standing player is never and for a moving one is about once per metre. The whole
+ * cache is dropped when the group is swapped or edited ({@link WaypointGroup#version()}),
+ * which covers renames, inserts and removes.
+ */
+class WaypointLabelCache {
+
+    private final ToIntFunction<String> widthOf;
+    private final StringBuilder sb = new StringBuilder(32);
+
+    private WaypointGroup group;
+    private int version;
+
+    private String[] text   = new String[0];
+    private int[]    width  = new int[0];
+    private int[]    metres = new int[0];
+    private char[]   colour = new char[0];
+    private String[] fallback = new String[0];
+    private String[] shortText  = new String[0];
+    private int[]    shortWidth = new int[0];
+
+    /** Marker drawn for far-away points in setup mode. */
+    static final String DOT = "\u00a77\u00b7";
+    private int dotWidth = -1;
+
+    /** @param widthOf pixel width of a string, e.g. the font renderer's getStringWidth */
+    WaypointLabelCache(ToIntFunction<String> widthOf) {
+        this.widthOf = widthOf;
+    }
+
+    /** Make sure the cache matches {@code g}; clears it if the group changed or was edited. */
+    void sync(WaypointGroup g) {
+        if (g == group && g.version() == version) return;
+        group   = g;
+        version = g.version();
+        int n = g.size();
+        if (text.length < n) {
+            text     = new String[n];
+            width    = new int[n];
+            metres   = new int[n];
+            colour   = new char[n];
+            fallback = new String[n];
+            shortText  = new String[n];
+            shortWidth = new int[n];
+        } else {
+            Arrays.fill(text, null);
+            Arrays.fill(shortText, null);
+        }
+    }
+
+    /**
+     * The label for point {@code i}: colour code, name (or {@code fallbackName}, or the
+     * 1-based index when that is null too) and a distance suffix.
+     */
+    String label(int i, char colourCode, String fallbackName, int distMetres) {
+        String cached = text[i];
+        if (cached != null && metres[i] == distMetres && colour[i] == colourCode
+                && fallback[i] == fallbackName) {
+            return cached;
+        }
+        String name = group.name(i);
+        sb.setLength(0);
+        sb.append('\u00a7').append(colourCode);
+        if (name != null && !name.isEmpty()) sb.append(name);
+        else if (fallbackName != null)       sb.append(fallbackName);
+        else                                 sb.append(i + 1);
+        sb.append(" \u00a7b").append(distMetres).append('m');
+
+        String built = sb.toString();
+        text[i]     = built;
+        width[i]    = widthOf.applyAsInt(built);
+        metres[i]   = distMetres;
+        colour[i]   = colourCode;
+        fallback[i] = fallbackName;
+        return built;
+    }
+
+    /** Pixel width of the string last returned by {@link #label} for point {@code i}. */
+    int width(int i) { return width[i]; }
+
+    /** Index-only label ("#12") for point {@code i}; does not depend on distance, built once. */
+    String shortLabel(int i) {
+        String cached = shortText[i];
+        if (cached != null) return cached;
+        String built = "\u00a77#" + (i + 1);
+        shortText[i]  = built;
+        shortWidth[i] = widthOf.applyAsInt(built);
+        return built;
+    }
+
+    /** Pixel width of {@link #shortLabel} for point {@code i}. */
+    int shortWidth(int i) { return shortWidth[i]; }
+
+    /** Pixel width of {@link #DOT}. */
+    int dotWidth() {
+        if (dotWidth < 0) dotWidth = widthOf.applyAsInt(DOT);
+        return dotWidth;
+    }
+}
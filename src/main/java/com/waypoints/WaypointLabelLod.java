@@ -0,0 +1,132 @@
+package com.waypoints;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Decides which setup-mode labels to draw this frame and at what level of detail.
+ *
+ * Candidates come from the group's spatial index, so only points within the maximum label
+ * distance are looked at; those outside the view frustum are dropped. Of the rest, the
+ * nearest {@code budget} survive; the nearest {@code fullLabels} of those get a full label,
+ * the others an index-only label when reasonably close or just a dot. The current and next
+ * waypoints always get full labels when on screen. Selection is two quickselects over
+ * reused arrays, so a frame costs math for the points in range and at most {@code budget}
+ * label draws, however long the route is.
+ */
+class WaypointLabelLod {
+
+    /** View-frustum test for an axis-aligned box. */
+    interface Culler {
+        boolean isVisible(double minX, double minY, double minZ, double maxX, double maxY, double maxZ);
+    }
+
+    static final byte FULL  = 0;
+    static final byte INDEX = 1;
+    static final byte DOT   = 2;
+
+    private int[]    order  = new int[64];
+    private double[] distSq = new double[64];
+    private int   planned;
+    private int   full;
+    private double indexRangeSq;
+
+    // inputs of the plan in progress, read by the gather callback (allocated once)
+    private final IntConsumer gather = this::gather;
+    private WaypointGroup group;
+    private Culler culler;
+    private int skipA, skipB;
+    private double ox, oy, oz;
+    private int count;
+
+    /**
+     * Plan the labels for one frame. Afterwards entries {@code 0..planned-1} are available
+     * through {@link #index} and {@link #tier}, full labels first.
+     *
+     * @return number of labels to draw
+     */
+    int plan(WaypointGroup g, int cur, int nxt, double px, double py, double pz, Culler culler,
+             double maxDistance, int fullLabels, int budget) {
+        double maxSq = maxDistance * maxDistance;
+        indexRangeSq = maxSq * 0.25; // index labels out to half the max distance, dots beyond
+
+        // pinned: current and next, whenever they are on screen
+        int pinned = 0;
+        if (visible(g, cur, culler)) pinned = put(pinned, cur, -1);
+        if (nxt != cur && visible(g, nxt, culler)) pinned = put(pinned, nxt, -1);
+
+        group = g;
+        this.culler = culler;
+        skipA = cur;
+        skipB = nxt;
+        ox = px; oy = py; oz = pz;
+        count = pinned;
+        g.spatialIndex().forEachWithin(px, py, pz, maxDistance, gather);
+        int m = count;
+        group = null;
+        this.culler = null;
+
+        int keep = Math.min(m, Math.max(budget, pinned));
+        if (keep < m) select(pinned, m - 1, keep);
+        full = Math.min(keep, pinned + Math.max(0, fullLabels));
+        if (full < keep) select(pinned, keep - 1, full);
+        planned = keep;
+        return keep;
+    }
+
+    int index(int k) { return order[k]; }
+
+    byte tier(int k) {
+        if (k < full) return FULL;
+        return distSq[k] <= indexRangeSq ? INDEX : DOT;
+    }
+
+    private void gather(int i) {
+        if (i == skipA || i == skipB || !visible(group, i, culler)) return;
+        count = put(count, i, group.distanceSq(i, ox, oy, oz));
+    }
+
+    private int put(int at, int i, double d) {
+        if (at == order.length) {
+            order  = Arrays.copyOf(order, at * 2);
+            distSq = Arrays.copyOf(distSq, at * 2);
+        }
+        order[at]  = i;
+        distSq[at] = d;
+        return at + 1;
+    }
+
+    private static boolean visible(WaypointGroup g, int i, Culler culler) {
+        double x = g.x(i), y = g.y(i), z = g.z(i);
+        // the block plus the label floating above it
+        return culler.isVisible(x, y, z, x + 1, y + 2.5, z + 1);
+    }
+
+    /**
+     * Partition {@code [lo, hi]} so the {@code k - lo} smallest distances occupy
+     * {@code [lo, k)} (unordered). Iterative Hoare quickselect with a median-of-three pivot.
+     */
+    private void select(int lo, int hi, int k) {
+        while (hi > lo) {
+            int mid = (lo + hi) >>> 1;
+            if (distSq[mid] < distSq[lo]) swap(mid, lo);
+            if (distSq[hi]  < distSq[lo]) swap(hi, lo);
+            if (distSq[hi]  < distSq[mid]) swap(hi, mid);
+            double pivot = distSq[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (distSq[i] < pivot) i++;
+                while (distSq[j] > pivot) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            if (k <= j)      hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int oi = order[a];  order[a]  = order[b];  order[b]  = oi;
+        double od = distSq[a]; distSq[a] = distSq[b]; distSq[b] = od;
+    }
+}
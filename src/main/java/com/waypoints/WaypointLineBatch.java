@@ -0,0 +1,97 @@
+package com.waypoints;
+
+import java.util.Arrays;
+
+/**
+ * Collects the line segments for one submission, bucketed by line width, so a whole
+ * frame's boxes, tracers and connectors go out as one GL_LINES draw per width instead of
+ * one begin/draw pair per primitive.
+ *
+ * Vertices are stored as floats relative to {@link #setOrigin}, which keeps them precise
+ * far from spawn. This class is plain data – {@link WaypointRenderer#drawBatch} does the GL
+ * side – and is reused between frames, so steady-state filling does not allocate.
+ */
+public class WaypointLineBatch {
+
+    private static final int MAX_WIDTHS = 4;
+
+    /** One line width's worth of vertices: xyz triples plus one packed ABGR colour each. */
+    static final class Bucket {
+        float   width;
+        float[] xyz    = new float[3 * 256];
+        int[]   colors = new int[256];
+        int     vertices;
+
+        private void ensure(int extra) {
+            int need = vertices + extra;
+            if (need <= colors.length) return;
+            int cap = Math.max(need, colors.length * 2);
+            xyz    = Arrays.copyOf(xyz, cap * 3);
+            colors = Arrays.copyOf(colors, cap);
+        }
+
+        private void vertex(float x, float y, float z, int color) {
+            int o = vertices * 3;
+            xyz[o] = x; xyz[o + 1] = y; xyz[o + 2] = z;
+            colors[vertices++] = color;
+        }
+    }
+
+    private final Bucket[] buckets = new Bucket[MAX_WIDTHS];
+    private int bucketCount;
+    private double ox, oy, oz;
+
+    /** Drop all vertices but keep the buffers. */
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) buckets[i].vertices = 0;
+    }
+
+    public void setOrigin(double x, double y, double z) {
+        ox = x; oy = y; oz = z;
+    }
+
+    public int vertexCount() {
+        int n = 0;
+        for (int i = 0; i < bucketCount; i++) n += buckets[i].vertices;
+        return n;
+    }
+
+    int bucketCount()      { return bucketCount; }
+    Bucket bucket(int i)   { return buckets[i]; }
+
+    public void line(float width, double x0, double y0, double z0,
+                     double x1, double y1, double z1, int color) {
+        Bucket b = bucketFor(width);
+        b.ensure(2);
+        b.vertex((float) (x0 - ox), (float) (y0 - oy), (float) (z0 - oz), color);
+        b.vertex((float) (x1 - ox), (float) (y1 - oy), (float) (z1 - oz), color);
+    }
+
+    /** The 12 edges of the unit block at (x, y, z). */
+    public void box(float width, double x, double y, double z, int color) {
+        Bucket b = bucketFor(width);
+        b.ensure(24);
+        float bx = (float) (x - ox), by = (float) (y - oy), bz = (float) (z - oz);
+        double[] e = WaypointRouteGeometry.BOX_EDGES;
+        for (int i = 0; i < e.length; i += 3)
+            b.vertex(bx + (float) e[i], by + (float) e[i + 1], bz + (float) e[i + 2], color);
+    }
+
+    private Bucket bucketFor(float width) {
+        for (int i = 0; i < bucketCount; i++)
+            if (buckets[i].width == width) return buckets[i];
+        if (bucketCount == MAX_WIDTHS) throw new IllegalStateException("Too many line widths in one batch");
+        Bucket b = buckets[bucketCount];
+        if (b == null) b = buckets[bucketCount] = new Bucket();
+        b.width    = width;
+        b.vertices = 0;
+        bucketCount++;
+        return b;
+    }
+
+    /** Pack an {r, g, b, a} float colour into the ABGR int the batch stores. */
+    public static int pack(float[] col) {
+        int r = (int) (col[0] * 255), g = (int) (col[1] * 255), b = (int) (col[2] * 255), a = (int) (col[3] * 255);
+        return (a << 24) | (b << 16) | (g << 8) | r;
+    }
+}
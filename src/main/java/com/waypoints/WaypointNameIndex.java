@@ -0,0 +1,167 @@
+package com.waypoints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted array of names for prefix completion and exact lookup, kept in order by binary
+ * search on every edit rather than re-sorted.
+ *
+ * Entries are ordered by lowercase name, then by value (for waypoints, the point's index),
+ * so {@link #find} returns the earliest point with a name. {@link #shift} moves every value
+ * at or after an index by the same amount, which keeps that order intact when a point is
+ * inserted or removed in the middle of a route. Lookups are O(log n); edits are a binary
+ * search plus an arraycopy.
+ */
+final class WaypointNameIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] keys    = new String[INITIAL_CAPACITY]; // lowercase, sorted
+    private String[] display = new String[INITIAL_CAPACITY]; // as typed
+    private int[]    values  = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /** Index over {@code names[0..n)}, value = position; nulls are skipped. One sort, not n inserts. */
+    static WaypointNameIndex of(String[] names, int n) {
+        WaypointNameIndex idx = new WaypointNameIndex();
+        if (names == null) return idx;
+        String[] lower = new String[n];
+        List<Integer> order = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (names[i] == null) continue;
+            lower[i] = names[i].toLowerCase();
+            order.add(i);
+        }
+        order.sort((a, b) -> {
+            int c = lower[a].compareTo(lower[b]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        int m = order.size(), cap = Math.max(m, INITIAL_CAPACITY);
+        idx.keys    = new String[cap];
+        idx.display = new String[cap];
+        idx.values  = new int[cap];
+        for (int k = 0; k < m; k++) {
+            int i = order.get(k);
+            idx.keys[k]    = lower[i];
+            idx.display[k] = names[i];
+            idx.values[k]  = i;
+        }
+        idx.size = m;
+        return idx;
+    }
+
+    int size() { return size; }
+
+    // ------------------------------------------------------------------ edits
+
+    void add(String name, int value) {
+        if (name == null) return;
+        String key = name.toLowerCase();
+        int at = search(key, value);
+        if (at >= 0) return; // already there
+        at = -at - 1;
+        if (size == keys.length) {
+            int cap = size + (size >> 1) + 1;
+            keys    = Arrays.copyOf(keys, cap);
+            display = Arrays.copyOf(display, cap);
+            values  = Arrays.copyOf(values, cap);
+        }
+        int tail = size - at;
+        if (tail > 0) {
+            System.arraycopy(keys, at, keys, at + 1, tail);
+            System.arraycopy(display, at, display, at + 1, tail);
+            System.arraycopy(values, at, values, at + 1, tail);
+        }
+        keys[at]    = key;
+        display[at] = name;
+        values[at]  = value;
+        size++;
+    }
+
+    boolean remove(String name, int value) {
+        if (name == null) return false;
+        int at = search(name.toLowerCase(), value);
+        if (at < 0) return false;
+        int tail = size - at - 1;
+        if (tail > 0) {
+            System.arraycopy(keys, at + 1, keys, at, tail);
+            System.arraycopy(display, at + 1, display, at, tail);
+            System.arraycopy(values, at + 1, values, at, tail);
+        }
+        size--;
+        keys[size]    = null;
+        display[size] = null;
+        return true;
+    }
+
+    /** Add {@code delta} to every value {@code >= from}. */
+    void shift(int from, int delta) {
+        for (int i = 0; i < size; i++) if (values[i] >= from) values[i] += delta;
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(display, 0, size, null);
+        size = 0;
+    }
+
+    WaypointNameIndex copy() {
+        WaypointNameIndex c = new WaypointNameIndex();
+        c.keys    = Arrays.copyOf(keys, Math.max(size, 1));
+        c.display = Arrays.copyOf(display, Math.max(size, 1));
+        c.values  = Arrays.copyOf(values, Math.max(size, 1));
+        c.size    = size;
+        return c;
+    }
+
+    // ------------------------------------------------------------------ queries
+
+    /** Smallest value whose name equals {@code name} (ignoring case), or -1. */
+    int find(String name) {
+        String key = name.toLowerCase();
+        int at = lowerBound(key);
+        return at < size && keys[at].equals(key) ? values[at] : -1;
+    }
+
+    /** Distinct names starting with {@code prefix} (ignoring case), in order, at most {@code limit}. */
+    List<String> complete(String prefix, int limit) {
+        String key = prefix.toLowerCase();
+        List<String> out = new ArrayList<>();
+        String last = null;
+        for (int i = lowerBound(key); i < size && out.size() < limit && keys[i].startsWith(key); i++) {
+            if (keys[i].equals(last)) continue;
+            last = keys[i];
+            out.add(display[i]);
+        }
+        return out;
+    }
+
+    // ------------------------------------------------------------------ internals
+
+    /** First position whose key is {@code >= key}. */
+    private int lowerBound(String key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) lo = mid + 1;
+            else                              hi = mid;
+        }
+        return lo;
+    }
+
+    /** Position of (key, value), or {@code -(insertion point) - 1}. */
+    private int search(String key, int value) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = keys[mid].compareTo(key);
+            if (c == 0) c = Integer.compare(values[mid], value);
+            if      (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else            return mid;
+        }
+        return -lo - 1;
+    }
+}
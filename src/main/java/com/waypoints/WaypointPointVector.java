@@ -0,0 +1,164 @@
+package com.waypoints;
+
+/**
+ * Immutable list of waypoints with structural sharing, used as the undo history's record
+ * of a group's contents.
+ *
+ * An AVL tree ordered by position (each node knows its subtree size). Insert, remove and
+ * rename copy only the O(log n) nodes on the path to the edited point and share the rest
+ * with the previous version, so keeping a version per edit costs a few hundred bytes
+ * rather than a copy of the route. Building one from a group, or writing one back, is O(n).
+ */
+final class WaypointPointVector {
+
+    static final WaypointPointVector EMPTY = new WaypointPointVector(null);
+
+    private static final class Node {
+        final double x, y, z;
+        final String name;
+        final Node left, right;
+        final int size, height;
+
+        Node(double x, double y, double z, String name, Node left, Node right) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.name  = name;
+            this.left  = left;
+            this.right = right;
+            this.size   = size(left) + size(right) + 1;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    private final Node root;
+
+    private WaypointPointVector(Node root) { this.root = root; }
+
+    /** Snapshot of a group's current points. */
+    static WaypointPointVector of(WaypointGroup g) {
+        return new WaypointPointVector(build(g, 0, g.size()));
+    }
+
+    int size() { return size(root); }
+
+    String name(int i) { return find(root, i).name; }
+
+    // ------------------------------------------------------------------ edits (each returns a new version)
+
+    WaypointPointVector insert(int i, double x, double y, double z, String name) {
+        check(i, size() + 1);
+        return new WaypointPointVector(insert(root, i, new Node(x, y, z, name, null, null)));
+    }
+
+    WaypointPointVector remove(int i) {
+        check(i, size());
+        return new WaypointPointVector(remove(root, i));
+    }
+
+    WaypointPointVector setName(int i, String name) {
+        check(i, size());
+        return new WaypointPointVector(rename(root, i, name));
+    }
+
+    /**
+     * Bring names at {@code from} and after in line with {@code g} (same size), after a
+     * bulk relabel such as {@link WaypointGroup#renumberNumericNames}. Only points whose
+     * name actually differs are copied.
+     */
+    WaypointPointVector syncNames(WaypointGroup g, int from) {
+        Node t = root;
+        for (int i = from, n = size(); i < n; i++) {
+            String name = g.name(i);
+            if (!equal(name, find(t, i).name)) t = rename(t, i, name);
+        }
+        return t == root ? this : new WaypointPointVector(t);
+    }
+
+    /** Replace {@code g}'s points with this version's. */
+    void copyTo(WaypointGroup g) {
+        g.clear();
+        addAll(root, g);
+    }
+
+    // ------------------------------------------------------------------ tree
+
+    private static int size(Node t)   { return t == null ? 0 : t.size; }
+    private static int height(Node t) { return t == null ? 0 : t.height; }
+
+    private static Node build(WaypointGroup g, int lo, int hi) {
+        if (lo >= hi) return null;
+        int mid = (lo + hi) >>> 1;
+        return new Node(g.x(mid), g.y(mid), g.z(mid), g.name(mid), build(g, lo, mid), build(g, mid + 1, hi));
+    }
+
+    private static void addAll(Node t, WaypointGroup g) {
+        if (t == null) return;
+        addAll(t.left, g);
+        g.add(t.x, t.y, t.z, t.name);
+        addAll(t.right, g);
+    }
+
+    private static Node find(Node t, int i) {
+        while (true) {
+            int ls = size(t.left);
+            if (i == ls) return t;
+            if (i < ls) {
+                t = t.left;
+            } else {
+                i -= ls + 1;
+                t = t.right;
+            }
+        }
+    }
+
+    /** Copy of {@code v}'s point with new children. */
+    private static Node with(Node left, Node v, Node right) {
+        return new Node(v.x, v.y, v.z, v.name, left, right);
+    }
+
+    /** {@link #with}, rotating once or twice if the children differ in height by two. */
+    private static Node balance(Node l, Node v, Node r) {
+        int hl = height(l), hr = height(r);
+        if (hl > hr + 1) {
+            if (height(l.left) >= height(l.right)) return with(l.left, l, with(l.right, v, r));
+            return with(with(l.left, l, l.right.left), l.right, with(l.right.right, v, r));
+        }
+        if (hr > hl + 1) {
+            if (height(r.right) >= height(r.left)) return with(with(l, v, r.left), r, r.right);
+            return with(with(l, v, r.left.left), r.left, with(r.left.right, r, r.right));
+        }
+        return with(l, v, r);
+    }
+
+    private static Node insert(Node t, int i, Node leaf) {
+        if (t == null) return leaf;
+        int ls = size(t.left);
+        if (i <= ls) return balance(insert(t.left, i, leaf), t, t.right);
+        return balance(t.left, t, insert(t.right, i - ls - 1, leaf));
+    }
+
+    private static Node remove(Node t, int i) {
+        int ls = size(t.left);
+        if (i < ls) return balance(remove(t.left, i), t, t.right);
+        if (i > ls) return balance(t.left, t, remove(t.right, i - ls - 1));
+        if (t.left == null)  return t.right;
+        if (t.right == null) return t.left;
+        return balance(t.left, find(t.right, 0), remove(t.right, 0));
+    }
+
+    private static Node rename(Node t, int i, String name) {
+        int ls = size(t.left);
+        if (i < ls) return with(rename(t.left, i, name), t, t.right);
+        if (i > ls) return with(t.left, t, rename(t.right, i - ls - 1, name));
+        return new Node(t.x, t.y, t.z, name, t.left, t.right);
+    }
+
+    private void check(int i, int bound) {
+        if (i < 0 || i >= bound) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,119 @@
+package com.waypoints;
+
+import net.minecraft.client.renderer.GLAllocation;
+import net.minecraft.client.renderer.OpenGlHelper;
+import org.lwjgl.opengl.GL11;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The path through a route's upcoming waypoints (and a short fading trail behind), drawn
+ * outside setup mode.
+ *
+ * Every point's centre goes into one vertex buffer, in route order with the first point
+ * repeated at the end to close the loop, so segment {@code i -> i+1} is always vertices
+ * {@code i} and {@code i+1}. The buffer is uploaded once per {@link WaypointGroup#version()};
+ * moving along the route only changes which vertices are drawn. Each segment in the window
+ * is its own two-vertex glDrawArrays with its own alpha, so a frame costs the same number
+ * of calls wherever the player is on the route and however long it is.
+ *
+ * Uses a VBO when the driver has them, otherwise a client-side array with the same layout.
+ */
+class WaypointPolyline {
+
+    static final float PATH_WIDTH = 2.0f;
+
+    private static final float ALPHA_AHEAD  = 0.85f;
+    private static final float ALPHA_BEHIND = 0.35f;
+
+    private final boolean vbo = OpenGlHelper.vboSupported;
+    private int buffer = -1;
+    private ByteBuffer data;
+    private FloatBuffer floats;
+
+    // inputs the buffer was built from
+    private WaypointGroup group;
+    private int groupVersion;
+
+    // world position the vertices are relative to
+    private double ox, oy, oz;
+
+    /**
+     * Draw up to {@code ahead} segments from the current point and {@code behind} before it,
+     * fading out with distance along the route, in colour {@code rgb}.
+     */
+    void render(WaypointState.Nav nav, int ahead, int behind, int rgb, double vx, double vy, double vz) {
+        int n = nav.size;
+        if (n < 2 || ahead + behind <= 0) return;
+        if (nav.group != group || nav.groupVersion != groupVersion) upload(nav);
+
+        // one lap at most, and the trail only gets what the path ahead leaves over
+        ahead  = Math.min(Math.max(0, ahead), n);
+        behind = Math.min(Math.max(0, behind), n - ahead);
+        float r = (rgb >> 16 & 0xFF) / 255f, g = (rgb >> 8 & 0xFF) / 255f, b = (rgb & 0xFF) / 255f;
+
+        GL11.glPushMatrix();
+        GL11.glTranslated(ox - vx, oy - vy, oz - vz);
+        GL11.glLineWidth(PATH_WIDTH);
+        GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
+        if (vbo) {
+            OpenGlHelper.glBindBuffer(OpenGlHelper.GL_ARRAY_BUFFER, buffer);
+            GL11.glVertexPointer(3, GL11.GL_FLOAT, 12, 0L);
+        } else {
+            GL11.glVertexPointer(3, 12, floats);
+        }
+
+        for (int k = 0; k < ahead; k++) {
+            GL11.glColor4f(r, g, b, ALPHA_AHEAD * (ahead - k) / ahead);
+            GL11.glDrawArrays(GL11.GL_LINES, (nav.current + k) % n, 2);
+        }
+        for (int k = 0; k < behind; k++) {
+            GL11.glColor4f(r, g, b, ALPHA_BEHIND * (behind - k) / behind);
+            GL11.glDrawArrays(GL11.GL_LINES, Math.floorMod(nav.current - 1 - k, n), 2);
+        }
+
+        if (vbo) OpenGlHelper.glBindBuffer(OpenGlHelper.GL_ARRAY_BUFFER, 0);
+        GL11.glDisableClientState(GL11.GL_VERTEX_ARRAY);
+        GL11.glPopMatrix();
+    }
+
+    /** Free the GL buffer; the object can still be used and will upload again. */
+    void release() {
+        if (buffer >= 0) OpenGlHelper.glDeleteBuffers(buffer);
+        buffer = -1;
+        group  = null;
+    }
+
+    private void upload(WaypointState.Nav nav) {
+        WaypointGroup g = nav.group;
+        group        = g;
+        groupVersion = nav.groupVersion;
+        ox = g.x(0);
+        oy = g.y(0);
+        oz = g.z(0);
+
+        int n = g.size();
+        int bytes = (n + 1) * 12;
+        if (data == null || data.capacity() < bytes) {
+            data = GLAllocation.createDirectByteBuffer(Math.max(bytes, data == null ? 0 : data.capacity() * 2));
+        }
+        data.clear();
+        FloatBuffer f = data.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i <= n; i++) {
+            int p = i == n ? 0 : i;
+            f.put((float) (g.x(p) + 0.5 - ox)).put((float) (g.y(p) + 0.5 - oy)).put((float) (g.z(p) + 0.5 - oz));
+        }
+        data.limit(bytes);
+        f.flip();
+        floats = f;
+
+        if (vbo) {
+            if (buffer < 0) buffer = OpenGlHelper.glGenBuffers();
+            OpenGlHelper.glBindBuffer(OpenGlHelper.GL_ARRAY_BUFFER, buffer);
+            OpenGlHelper.glBufferData(OpenGlHelper.GL_ARRAY_BUFFER, data, OpenGlHelper.GL_STATIC_DRAW);
+            OpenGlHelper.glBindBuffer(OpenGlHelper.GL_ARRAY_BUFFER, 0);
+        }
+    }
+}
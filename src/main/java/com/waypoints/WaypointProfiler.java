@@ -0,0 +1,145 @@
+package com.waypoints;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Per-phase timers for the overlay and the advance tick, toggled with /w perf.
+ *
+ * Each phase keeps its last {@link #CAPACITY} samples (nanoseconds) in a preallocated ring,
+ * so recording never allocates; percentiles are worked out from a sorted copy only when
+ * someone asks for them. Disabled, {@link #start} is a field read and a branch and
+ * {@link #lap} returns immediately. Times are CPU-side: for the GL phases that is the cost
+ * of submitting the work, which is what shows up as frame time on the client thread.
+ *
+ * Only touched from the client thread.
+ */
+public class WaypointProfiler {
+
+    public static final int ADVANCE = 0;
+    public static final int BOXES   = 1;
+    public static final int TRACERS = 2;
+    public static final int LABELS  = 3;
+    public static final int FRAME   = 4;
+    public static final int VISIBILITY = 5;
+
+    static final String[] PHASES = {"advance", "boxes", "tracers", "labels", "frame", "visibility"};
+
+    /** Samples kept per phase: about 15 s of frames at 60 fps. */
+    static final int CAPACITY = 1024;
+
+    private static final WaypointProfiler INSTANCE = new WaypointProfiler();
+
+    public boolean enabled = false;
+
+    private final long[][] samples = new long[PHASES.length][CAPACITY];
+    private final long[]   total   = new long[PHASES.length];
+
+    private WaypointProfiler() {}
+
+    public static WaypointProfiler getInstance() { return INSTANCE; }
+
+    // ------------------------------------------------------------------ recording
+
+    /** Timestamp to pass to {@link #lap}, or 0 when disabled. */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Record the time since {@code since} against {@code phase} and return a new
+     * timestamp, so consecutive phases can be chained. A no-op (returning 0) when
+     * {@code since} came from a disabled {@link #start}.
+     */
+    public long lap(int phase, long since) {
+        if (since == 0L) return 0L;
+        long now = System.nanoTime();
+        record(phase, now - since);
+        return now;
+    }
+
+    void record(int phase, long nanos) {
+        samples[phase][(int) (total[phase]++ % CAPACITY)] = nanos;
+    }
+
+    public void reset() {
+        Arrays.fill(total, 0L);
+    }
+
+    // ------------------------------------------------------------------ reporting
+
+    /** Percentiles over the retained samples of one phase. */
+    static final class Summary {
+        final String phase;
+        final long   count;    // samples ever recorded
+        final int    retained; // samples the percentiles are over
+        final long   p50, p99, max;
+
+        Summary(String phase, long count, int retained, long p50, long p99, long max) {
+            this.phase    = phase;
+            this.count    = count;
+            this.retained = retained;
+            this.p50      = p50;
+            this.p99      = p99;
+            this.max      = max;
+        }
+    }
+
+    Summary summary(int phase) {
+        long[] sorted = retained(phase);
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        if (n == 0) return new Summary(PHASES[phase], 0, 0, 0, 0, 0);
+        return new Summary(PHASES[phase], total[phase], n,
+                sorted[percentileIndex(n, 0.50)], sorted[percentileIndex(n, 0.99)], sorted[n - 1]);
+    }
+
+    boolean hasSamples() {
+        for (long t : total) if (t > 0) return true;
+        return false;
+    }
+
+    /** Nearest-rank percentile. */
+    private static int percentileIndex(int n, double p) {
+        return Math.min(n - 1, Math.max(0, (int) Math.ceil(p * n) - 1));
+    }
+
+    /** Retained samples of a phase, oldest first. */
+    private long[] retained(int phase) {
+        long count = total[phase];
+        int n = (int) Math.min(count, CAPACITY);
+        long[] out = new long[n];
+        int first = (int) (count % CAPACITY) * (count > CAPACITY ? 1 : 0);
+        for (int i = 0; i < n; i++) out[i] = samples[phase][(first + i) % CAPACITY];
+        return out;
+    }
+
+    /**
+     * Write every retained sample as {@code phase,sample,micros} rows, followed by the
+     * summary rows ({@code phase,p50|p99|max,micros}).
+     */
+    void dumpCsv(File file) throws IOException {
+        try (PrintWriter w = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            w.println("phase,sample,micros");
+            for (int p = 0; p < PHASES.length; p++) {
+                long[] s = retained(p);
+                for (int i = 0; i < s.length; i++) w.println(PHASES[p] + "," + i + "," + micros(s[i]));
+            }
+            for (int p = 0; p < PHASES.length; p++) {
+                Summary s = summary(p);
+                if (s.retained == 0) continue;
+                w.println(s.phase + ",p50," + micros(s.p50));
+                w.println(s.phase + ",p99," + micros(s.p99));
+                w.println(s.phase + ",max," + micros(s.max));
+            }
+        }
+    }
+
+    static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+}
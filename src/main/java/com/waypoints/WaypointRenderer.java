@@ -3,33 +3,65 @@ package com.waypoints;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.WorldRenderer;
+import net.minecraft.client.renderer.culling.Frustum;
 import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
 import net.minecraftforge.client.event.RenderWorldLastEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import org.lwjgl.opengl.GL11;
 
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 public class WaypointRenderer {
 
     private static final Minecraft mc = Minecraft.getMinecraft();
 
-    private static final float[] COL_PREV    = {0.55f, 0.55f, 0.55f, 0.30f};
-    private static final float[] COL_CURRENT = {0.00f, 1.00f, 0.00f, 0.65f};
-    private static final float[] COL_NEXT    = {1.00f, 1.00f, 0.00f, 0.85f};
-    private static final float[] COL_OTHER   = {0.50f, 0.50f, 0.50f, 0.30f};
+    static final float[] COL_PREV    = {0.55f, 0.55f, 0.55f, 0.30f};
+    static final float[] COL_CURRENT = {0.00f, 1.00f, 0.00f, 0.65f};
+    static final float[] COL_NEXT    = {1.00f, 1.00f, 0.00f, 0.85f};
+    static final float[] COL_OTHER   = {0.50f, 0.50f, 0.50f, 0.30f};
+
+    static final float TRACER_WIDTH = 2.5f;
+
+    /** RGB of the sixteen Minecraft colour codes, 0-f. */
+    private static final int[] CODE_RGB = {
+            0x000000, 0x0000AA, 0x00AA00, 0x00AAAA, 0xAA0000, 0xAA00AA, 0xFFAA00, 0xAAAAAA,
+            0x555555, 0x5555FF, 0x55FF55, 0x55FFFF, 0xFF5555, 0xFF55FF, 0xFFFF55, 0xFFFFFF
+    };
+
+    private final WaypointRouteGeometry geometry = new WaypointRouteGeometry();
+    /** Per-frame lines (tracers), relative to the camera. */
+    private final WaypointLineBatch frameLines = new WaypointLineBatch();
+    /** One label cache per active route, dropped when the route is hidden. */
+    private final Map<WaypointGroup, WaypointLabelCache> labelCaches = new IdentityHashMap<>();
+    /** The upcoming path per active route, outside setup mode. */
+    private final Map<WaypointGroup, WaypointPolyline> paths = new IdentityHashMap<>();
+    private int routeCachesVersion = -1;
+    private final WaypointLabelLod labelLod = new WaypointLabelLod();
 
     @SubscribeEvent
     public void onRenderWorld(RenderWorldLastEvent event) {
         WaypointState state = WaypointState.getInstance();
-        if (!state.enabled || !state.hasGroup()) return;
+        if (!state.enabled) return;
+        // one snapshot for the whole frame, so every phase agrees on groups and positions
+        WaypointState.Routes routes = state.routes();
+        if (!anyPoints(routes)) return;
 
-        tickAdvance(state);
+        WaypointProfiler perf = WaypointProfiler.getInstance();
+        long frameStart = perf.start();
 
         double vx = mc.getRenderManager().viewerPosX;
         double vy = mc.getRenderManager().viewerPosY;
         double vz = mc.getRenderManager().viewerPosZ;
 
+        // built from the current matrices, so before we push anything of our own
+        Frustum frustum = null;
+        if (state.setupMode) {
+            frustum = new Frustum();
+            frustum.setPosition(vx, vy, vz);
+        }
+
         GL11.glPushAttrib(GL11.GL_ALL_ATTRIB_BITS);
 
         GL11.glDisable(GL11.GL_TEXTURE_2D);
@@ -41,11 +73,24 @@ public class WaypointRenderer {
         GL11.glLineWidth(2.0f);
         GL11.glDisable(GL11.GL_CULL_FACE);
 
-        GL11.glPushMatrix();
-        GL11.glTranslated(-vx, -vy, -vz);
-        if (state.setupMode) drawSetupBoxes(state);
-        else                 drawNormalBoxes(state);
-        GL11.glPopMatrix();
+        // boxes for every route (all of them in setup mode) come from one cached display list
+        long t = frameStart;
+        geometry.render(routes, state.setupMode, state.routeBudget,
+                state.visibilityMode ? WaypointVisibility.getInstance() : null, state.visibilityRange, vx, vy, vz);
+        syncRouteCaches(routes);
+        if (!state.setupMode) drawPaths(state, routes, vx, vy, vz);
+        t = perf.lap(WaypointProfiler.BOXES, t);
+
+        // everything that moves with the player goes out in one batch
+        frameLines.reset();
+        frameLines.setOrigin(vx, vy, vz);
+        for (WaypointState.Nav nav : routes.all) {
+            if (!nav.hasGroup()) continue;
+            int colour = nav == routes.focused ? 0xFF00FFFF : pack(nav.colour, 1.0f); // opaque yellow, ABGR
+            addTracer(nav.nextX + 0.5, nav.nextY + 0.5, nav.nextZ + 0.5, colour);
+        }
+        drawBatch(frameLines);
+        t = perf.lap(WaypointProfiler.TRACERS, t);
 
         GL11.glEnable(GL11.GL_TEXTURE_2D);
         GL11.glEnable(GL11.GL_BLEND);
@@ -54,136 +99,203 @@ public class WaypointRenderer {
 
         GL11.glPushMatrix();
         GL11.glTranslated(-vx, -vy, -vz);
-        if (state.setupMode) drawSetupLabels(state);
-        else                 drawNormalLabels(state);
+        if (state.setupMode) drawSetupLabels(state, routes, frustum);
+        else                 drawNormalLabels(state, routes);
         GL11.glPopMatrix();
+        perf.lap(WaypointProfiler.LABELS, t);
 
         GL11.glPopAttrib();
         GL11.glColor4f(1f, 1f, 1f, 1f);
+        perf.lap(WaypointProfiler.FRAME, frameStart);
     }
 
-    private void tickAdvance(WaypointState state) {
-        if (mc.thePlayer == null) return;
-        WaypointPoint next = state.getNext();
-        if (next == null) return;
-
-        double dist = next.distanceTo(mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ);
+    /**
+     * Setup mode labels every point, which does not scale to big routes: cull to the view
+     * frustum and label distance, give full labels only to the nearest few and cap the rest
+     * at the per-frame budget (see {@link WaypointLabelLod}). With several routes the budget
+     * is shared: the focused route plans first and the others get what is left, in order.
+     */
+    private void drawSetupLabels(WaypointState state, WaypointState.Routes routes, Frustum frustum) {
+        if (mc.thePlayer == null || mc.fontRendererObj == null) return;
+        int budget = state.labelBudget, full = state.labelFullCount;
+        budget = drawSetupLabels(state, routes.focused, true, frustum, budget, full);
+        for (WaypointState.Nav nav : routes.all) {
+            if (budget <= 0) break;
+            if (nav == routes.focused) continue;
+            budget = drawSetupLabels(state, nav, false, frustum, budget, full - (state.labelBudget - budget));
+        }
+    }
 
-        if (dist <= state.advanceRange) {
-            if (state.advanceTimerStart < 0) {
-                state.advanceTimerStart = System.currentTimeMillis();
-            } else if (System.currentTimeMillis() - state.advanceTimerStart >= state.advanceDelayMs) {
-                state.advance();
+    /** One route's share; returns the budget left. */
+    private int drawSetupLabels(WaypointState state, WaypointState.Nav nav, boolean focused, Frustum frustum,
+                                int budget, int full) {
+        if (!nav.hasGroup()) return budget;
+        WaypointGroup g = nav.group;
+        WaypointLabelCache labels = labelCaches.get(g);
+        int cur = nav.current;
+        int nxt = nav.next;
+        char curColour  = focused ? 'a' : '7';
+        char nextColour = focused ? 'e' : nav.colour;
+
+        int n = labelLod.plan(g, cur, nxt, mc.thePlayer.posX, mc.thePlayer.posY, mc.thePlayer.posZ,
+                frustum::isBoxInFrustum, state.labelMaxDistance, Math.max(0, full), budget);
+        for (int k = 0; k < n; k++) {
+            int i = labelLod.index(k);
+            switch (labelLod.tier(k)) {
+                case WaypointLabelLod.FULL:
+                    drawLabel(labels, g, i, (i == cur) ? curColour : (i == nxt) ? nextColour : '7', null);
+                    break;
+                case WaypointLabelLod.INDEX:
+                    drawText(g, i, labels.shortLabel(i), labels.shortWidth(i));
+                    break;
+                default:
+                    drawText(g, i, WaypointLabelCache.DOT, labels.dotWidth());
+                    break;
             }
-        } else {
-            state.advanceTimerStart = -1L;
         }
+        return budget - n;
     }
 
-    private void drawSetupBoxes(WaypointState state) {
-        WaypointPoint nxt = state.getNext();
-        if (nxt == null) return;
-
-        drawEspBox(nxt.x, nxt.y, nxt.z, COL_NEXT[0], COL_NEXT[1], COL_NEXT[2], COL_NEXT[3]);
-        drawTracer(nxt.x + 0.5, nxt.y + 0.5, nxt.z + 0.5);
+    /** Prev/current/next for the focused route; current and next for the others, in their colour. */
+    private void drawNormalLabels(WaypointState state, WaypointState.Routes routes) {
+        int budget = state.labelBudget;
+        WaypointState.Nav nav = routes.focused;
+        if (nav.hasGroup()) {
+            WaypointLabelCache labels = labelCaches.get(nav.group);
+            if (nav.prev != nav.current) drawLabel(labels, nav.group, nav.prev, '7', "Prev");
+            drawLabel(labels, nav.group, nav.current, 'a', "Current");
+            if (nav.next != nav.current) drawLabel(labels, nav.group, nav.next, 'e', "Next");
+            budget -= 3;
+        }
+        for (WaypointState.Nav other : routes.all) {
+            if (budget <= 0) break;
+            if (other == routes.focused || !other.hasGroup()) continue;
+            WaypointLabelCache labels = labelCaches.get(other.group);
+            drawLabel(labels, other.group, other.current, '7', other.group.name);
+            if (other.next != other.current) drawLabel(labels, other.group, other.next, other.colour, "Next");
+            budget -= 2;
+        }
     }
 
-    private void drawNormalBoxes(WaypointState state) {
-        WaypointPoint nxt = state.getNext();
-        if (nxt == null) return;
-
-        drawEspBox(nxt.x, nxt.y, nxt.z, COL_NEXT[0], COL_NEXT[1], COL_NEXT[2], COL_NEXT[3]);
-        drawTracer(nxt.x + 0.5, nxt.y + 0.5, nxt.z + 0.5);
+    /** The path ahead of (and a short trail behind) every route's current point. */
+    private void drawPaths(WaypointState state, WaypointState.Routes routes, double vx, double vy, double vz) {
+        for (WaypointState.Nav nav : routes.all) {
+            if (!nav.hasGroup()) continue;
+            WaypointPolyline path = paths.get(nav.group);
+            if (path == null) {
+                path = new WaypointPolyline();
+                paths.put(nav.group, path);
+            }
+            int rgb = nav == routes.focused ? 0xFFFF00 : rgb(nav.colour); // focused: same yellow as COL_NEXT
+            path.render(nav, state.pathAhead, state.pathBehind, rgb, vx, vy, vz);
+        }
     }
 
-    private void drawSetupLabels(WaypointState state) {
-        List<WaypointPoint> wps = state.loadedGroup.waypoints;
-        int cur = state.currentIndex;
-        int nxt = state.getNextIndex();
-        for (int i = 0; i < wps.size(); i++) {
-            WaypointPoint wp = wps.get(i);
-            String col   = (i == cur) ? "\u00a7a" : (i == nxt) ? "\u00a7e" : "\u00a77";
-            String label = (wp.name != null && !wp.name.isEmpty()) ? wp.name : String.valueOf(i + 1);
-            drawLabel(wp.x + 0.5, wp.y + 2.2, wp.z + 0.5, col + label);
+    /** Keep one label cache and path per active route, each in step with its group. */
+    private void syncRouteCaches(WaypointState.Routes routes) {
+        if (routes.version != routeCachesVersion) {
+            routeCachesVersion = routes.version;
+            labelCaches.keySet().removeIf(g -> !isActive(routes, g));
+            for (Iterator<Map.Entry<WaypointGroup, WaypointPolyline>> it = paths.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<WaypointGroup, WaypointPolyline> e = it.next();
+                if (isActive(routes, e.getKey())) continue;
+                e.getValue().release();
+                it.remove();
+            }
+        }
+        for (WaypointState.Nav nav : routes.all) {
+            if (!nav.hasGroup()) continue;
+            WaypointLabelCache labels = labelCaches.get(nav.group);
+            if (labels == null) {
+                labels = new WaypointLabelCache(s -> mc.fontRendererObj.getStringWidth(s));
+                labelCaches.put(nav.group, labels);
+            }
+            labels.sync(nav.group);
         }
     }
 
-    private void drawNormalLabels(WaypointState state) {
-        WaypointPoint prev = state.getPrev();
-        WaypointPoint cur  = state.getCurrent();
-        WaypointPoint nxt  = state.getNext();
-
-        if (prev != null && prev != cur)
-            drawLabel(prev.x + 0.5, prev.y + 2.2, prev.z + 0.5, "\u00a77" + safeName(prev, "Prev"));
-        if (cur != null)
-            drawLabel(cur.x  + 0.5, cur.y  + 2.2, cur.z  + 0.5, "\u00a7a" + safeName(cur,  "Current"));
-        if (nxt != null && nxt != cur)
-            drawLabel(nxt.x  + 0.5, nxt.y  + 2.2, nxt.z  + 0.5, "\u00a7e" + safeName(nxt,  "Next"));
+    private static boolean isActive(WaypointState.Routes routes, WaypointGroup g) {
+        for (WaypointState.Nav nav : routes.all) if (nav.group == g) return true;
+        return false;
     }
 
-    private String safeName(WaypointPoint wp, String fallback) {
-        return (wp.name != null && !wp.name.isEmpty()) ? wp.name : fallback;
+    private static boolean anyPoints(WaypointState.Routes routes) {
+        for (WaypointState.Nav nav : routes.all) if (nav.hasGroup()) return true;
+        return false;
     }
 
-    private void drawEspBox(double x, double y, double z,
-                            float r, float g, float b, float a) {
-
-        final double[][] edges = {
-                {0,0,0, 1,0,0}, {0,0,1, 1,0,1}, {0,0,0, 0,0,1}, {1,0,0, 1,0,1},
-                {0,1,0, 1,1,0}, {0,1,1, 1,1,1}, {0,1,0, 0,1,1}, {1,1,0, 1,1,1},
-                {0,0,0, 0,1,0}, {1,0,0, 1,1,0}, {0,0,1, 0,1,1}, {1,0,1, 1,1,1}
-        };
-
-        int ri = (int)(r * 255), gi = (int)(g * 255), bi = (int)(b * 255), ai = (int)(a * 255);
-
-        double ox = x;
-        double oz = z;
-
-        Tessellator tess = Tessellator.getInstance();
-        WorldRenderer wr = tess.getWorldRenderer();
+    /** RGB of colour code {@code code}; white if it is not one. */
+    static int rgb(char code) {
+        int i = Character.digit(code, 16);
+        return CODE_RGB[i < 0 ? 15 : i];
+    }
 
-        wr.begin(GL11.GL_LINES, DefaultVertexFormats.POSITION_COLOR);
-        for (double[] e : edges) {
-            wr.pos(ox + e[0], y + e[1], oz + e[2]).color(ri, gi, bi, ai).endVertex();
-            wr.pos(ox + e[3], y + e[4], oz + e[5]).color(ri, gi, bi, ai).endVertex();
-        }
-        tess.draw();
+    /** Colour code {@code code} as a packed ABGR vertex colour. */
+    static int pack(char code, float alpha) {
+        int rgb = rgb(code);
+        return ((int) (alpha * 255) << 24) | (rgb & 0xFF) << 16 | (rgb & 0xFF00) | (rgb >>> 16);
     }
 
-    private void drawTracer(double x, double y, double z) {
+    private void addTracer(double x, double y, double z, int colour) {
         if (mc.thePlayer == null) return;
 
-        GL11.glDisable(GL11.GL_DEPTH_TEST);
-        GL11.glDepthMask(false);
-        GL11.glLineWidth(2.5f);
-
         double px = mc.thePlayer.posX;
         double py = mc.thePlayer.posY + mc.thePlayer.getEyeHeight();
         double pz = mc.thePlayer.posZ;
 
+        frameLines.line(TRACER_WIDTH, px, py, pz, x, y, z, colour);
+    }
+
+    /**
+     * Submit a batch: one GL_LINES draw per line width. Depth and blend state are set once
+     * by the caller for the whole overlay.
+     */
+    static void drawBatch(WaypointLineBatch batch) {
         Tessellator tess = Tessellator.getInstance();
         WorldRenderer wr = tess.getWorldRenderer();
-
-        wr.begin(GL11.GL_LINES, DefaultVertexFormats.POSITION_COLOR);
-        wr.pos(px, py, pz).color(255, 255, 0, 255).endVertex();
-        wr.pos(x, y, z).color(255, 255, 0, 255).endVertex();
-        tess.draw();
+        for (int b = 0; b < batch.bucketCount(); b++) {
+            WaypointLineBatch.Bucket bucket = batch.bucket(b);
+            if (bucket.vertices == 0) continue;
+            GL11.glLineWidth(bucket.width);
+            wr.begin(GL11.GL_LINES, DefaultVertexFormats.POSITION_COLOR);
+            float[] xyz = bucket.xyz;
+            int[] colors = bucket.colors;
+            for (int v = 0; v < bucket.vertices; v++) {
+                int c = colors[v];
+                wr.pos(xyz[v * 3], xyz[v * 3 + 1], xyz[v * 3 + 2])
+                  .color(c & 0xFF, (c >>> 8) & 0xFF, (c >>> 16) & 0xFF, c >>> 24).endVertex();
+            }
+            tess.draw();
+        }
     }
 
-    private void drawLabel(double wx, double wy, double wz, String text) {
+    /** Billboarded label above point {@code i}; text comes from the route's label cache. */
+    private void drawLabel(WaypointLabelCache labels, WaypointGroup g, int i, char colour, String fallback) {
         if (mc.thePlayer == null || mc.fontRendererObj == null) return;
 
+        double wx = g.x(i) + 0.5, wy = g.y(i) + 2.2, wz = g.z(i) + 0.5;
         double dx = wx - mc.thePlayer.posX;
         double dy = wy - mc.thePlayer.posY;
         double dz = wz - mc.thePlayer.posZ;
         double dist = Math.sqrt(dx*dx + dy*dy + dz*dz);
 
+        String full = labels.label(i, colour, fallback, (int) Math.round(dist));
+        billboard(wx, wy, wz, dist, full, labels.width(i));
+    }
+
+    /** Billboarded text above point {@code i} that does not depend on distance. */
+    private void drawText(WaypointGroup g, int i, String text, int width) {
+        double wx = g.x(i) + 0.5, wy = g.y(i) + 2.2, wz = g.z(i) + 0.5;
+        double dx = wx - mc.thePlayer.posX;
+        double dy = wy - mc.thePlayer.posY;
+        double dz = wz - mc.thePlayer.posZ;
+        billboard(wx, wy, wz, Math.sqrt(dx*dx + dy*dy + dz*dz), text, width);
+    }
+
+    private void billboard(double wx, double wy, double wz, double dist, String text, int width) {
         double renderDist = Math.min(dist, 50.0);
         float scale = Math.max(0.025f, (float)(renderDist / 300.0));
 
-        String full = text + " \u00a7b" + (int) Math.round(dist) + "m";
-        int width = mc.fontRendererObj.getStringWidth(full);
-
         GL11.glPushMatrix();
         GL11.glTranslated(wx, wy, wz);
         GL11.glRotatef(-mc.getRenderManager().playerViewY, 0f, 1f, 0f);
@@ -192,7 +304,7 @@ public class WaypointRenderer {
 
         GL11.glColor4f(1f, 1f, 1f, 1f);
 
-        mc.fontRendererObj.drawStringWithShadow(full, -width / 2f, 0f, 0xFFFFFF);
+        mc.fontRendererObj.drawStringWithShadow(text, -width / 2f, 0f, 0xFFFFFF);
 
         GL11.glPopMatrix();
     }
@@ -0,0 +1,320 @@
+package com.waypoints;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact, paste-friendly route codes ({@code wp:} followed by URL-safe base64), for chat
+ * and pastebins where soopy JSON is far too big.
+ *
+ * Layout before base64:
+ * <pre>
+ *   version  1 byte   {@link #VERSION}
+ *   flags    1 byte   {@link #NAMES}, {@link #DEFLATED}
+ *   scale    1 byte   coordinates are stored times 10^scale (0 for block-aligned routes)
+ *   body     ...      deflated if {@link #DEFLATED}
+ *   crc32    4 bytes  over everything above, big-endian
+ * </pre>
+ * The body is a varint point count, then per point the zigzag varint delta of x, y and z
+ * from the previous point (the first from 0). With {@link #NAMES}, a table of distinct names
+ * follows (count, then length-prefixed UTF-8) and one varint per point: 0 for the default
+ * name (its 1-based position), otherwise a 1-based table index. Routes whose names are all
+ * defaults leave the table out. The body is deflated only when that makes it smaller.
+ */
+final class WaypointRouteCode {
+
+    static final String PREFIX = "wp:";
+
+    static final int VERSION = 1;
+
+    static final int NAMES    = 1;
+    static final int DEFLATED = 1 << 1;
+
+    /** Most decimal places kept; finer coordinates are rounded. */
+    private static final int MAX_SCALE = 3;
+
+    private WaypointRouteCode() {}
+
+    /** Whether {@code text[from..to)} starts with the code prefix. */
+    static boolean isCode(char[] text, int from, int to) {
+        if (to - from < PREFIX.length()) return false;
+        for (int k = 0; k < PREFIX.length(); k++) if (text[from + k] != PREFIX.charAt(k)) return false;
+        return true;
+    }
+
+    // ------------------------------------------------------------------ encode
+
+    static String encode(WaypointGroup g) {
+        int n = g.size();
+        int scale = scaleFor(g);
+        double mul = Math.pow(10, scale);
+
+        Bytes body = new Bytes(16 + n * 4);
+        body.varint(n);
+        long px = 0, py = 0, pz = 0;
+        for (int i = 0; i < n; i++) {
+            long x = Math.round(g.x(i) * mul), y = Math.round(g.y(i) * mul), z = Math.round(g.z(i) * mul);
+            body.zigzag(x - px);
+            body.zigzag(y - py);
+            body.zigzag(z - pz);
+            px = x; py = y; pz = z;
+        }
+
+        int flags = 0;
+        if (!defaultNames(g)) {
+            flags |= NAMES;
+            Map<String, Integer> table = new HashMap<>();
+            String[] order = new String[n];
+            int[] refs = new int[n];
+            for (int i = 0; i < n; i++) {
+                String name = g.name(i);
+                if (name == null || name.equals(String.valueOf(i + 1))) continue;
+                Integer ref = table.get(name);
+                if (ref == null) {
+                    ref = table.size() + 1;
+                    table.put(name, ref);
+                    order[ref - 1] = name;
+                }
+                refs[i] = ref;
+            }
+            body.varint(table.size());
+            for (int k = 0; k < table.size(); k++) {
+                byte[] utf8 = order[k].getBytes(StandardCharsets.UTF_8);
+                body.varint(utf8.length);
+                body.put(utf8, 0, utf8.length);
+            }
+            for (int i = 0; i < n; i++) body.varint(refs[i]);
+        }
+
+        byte[] packed = deflate(body.data, body.size);
+        Bytes out = new Bytes(body.size + 8);
+        out.put((byte) VERSION);
+        if (packed != null) {
+            out.put((byte) (flags | DEFLATED));
+            out.put((byte) scale);
+            out.put(packed, 0, packed.length);
+        } else {
+            out.put((byte) flags);
+            out.put((byte) scale);
+            out.put(body.data, 0, body.size);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(out.data, 0, out.size);
+        long c = crc.getValue();
+        out.put((byte) (c >>> 24)); out.put((byte) (c >>> 16)); out.put((byte) (c >>> 8)); out.put((byte) c);
+
+        return PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(out.data, out.size));
+    }
+
+    /** Smallest number of decimal places that holds every coordinate exactly, up to {@link #MAX_SCALE}. */
+    private static int scaleFor(WaypointGroup g) {
+        int scale = 0;
+        double mul = 1;
+        for (int i = 0, n = g.size(); i < n && scale < MAX_SCALE; i++) {
+            while (scale < MAX_SCALE && !(exact(g.x(i) * mul) && exact(g.y(i) * mul) && exact(g.z(i) * mul))) {
+                scale++;
+                mul *= 10;
+            }
+        }
+        return scale;
+    }
+
+    private static boolean exact(double v) {
+        return Math.abs(v - Math.rint(v)) < 1e-6;
+    }
+
+    private static boolean defaultNames(WaypointGroup g) {
+        for (int i = 0, n = g.size(); i < n; i++) {
+            String name = g.name(i);
+            if (name != null && !name.equals(String.valueOf(i + 1))) return false;
+        }
+        return true;
+    }
+
+    /** Deflated bytes, or null if deflating would not save anything. */
+    private static byte[] deflate(byte[] data, int len) {
+        // varint deltas leave little for the slower levels: they cost 2x the time for ~2% size
+        Deflater d = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            d.setInput(data, 0, len);
+            d.finish();
+            byte[] out = new byte[len];
+            int n = 0;
+            while (!d.finished() && n < out.length) n += d.deflate(out, n, out.length - n);
+            return d.finished() && n < len ? Arrays.copyOf(out, n) : null;
+        } finally {
+            d.end();
+        }
+    }
+
+    // ------------------------------------------------------------------ decode
+
+    /** The route in {@code text}, a code as made by {@link #encode} (whitespace anywhere is ignored). */
+    static WaypointGroup decode(String text, String name) throws IOException {
+        StringBuilder b64 = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) b64.append(c);
+        }
+        if (b64.length() < PREFIX.length() || !b64.substring(0, PREFIX.length()).equals(PREFIX)) {
+            throw new IOException("Not a route code");
+        }
+        byte[] raw;
+        try {
+            raw = Base64.getUrlDecoder().decode(b64.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Route code is damaged (not base64)");
+        }
+        if (raw.length < 7) throw new IOException("Route code is too short");
+
+        int end = raw.length - 4;
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, end);
+        long stored = (raw[end] & 0xFFL) << 24 | (raw[end + 1] & 0xFF) << 16 | (raw[end + 2] & 0xFF) << 8 | (raw[end + 3] & 0xFF);
+        if (crc.getValue() != stored) throw new IOException("Route code is damaged (checksum mismatch)");
+
+        int version = raw[0] & 0xFF;
+        if (version != VERSION) throw new IOException("Route code version " + version + " is newer than this mod");
+        int flags = raw[1] & 0xFF;
+        int scale = raw[2] & 0xFF;
+        if (scale > MAX_SCALE) throw new IOException("Route code is damaged (bad scale)");
+
+        Reader in = (flags & DEFLATED) != 0 ? new Reader(inflate(raw, 3, end - 3)) : new Reader(raw, 3, end);
+        int n = in.count();
+        double div = Math.pow(10, scale);
+        WaypointGroup g = new WaypointGroup(name);
+        long x = 0, y = 0, z = 0;
+        double[][] xyz = new double[3][n];
+        for (int i = 0; i < n; i++) {
+            x += in.zigzag();
+            y += in.zigzag();
+            z += in.zigzag();
+            xyz[0][i] = x / div;
+            xyz[1][i] = y / div;
+            xyz[2][i] = z / div;
+        }
+        String[] table = new String[0];
+        int[] refs = null;
+        if ((flags & NAMES) != 0) {
+            table = new String[in.count()];
+            for (int k = 0; k < table.length; k++) table[k] = in.string();
+            refs = new int[n];
+            for (int i = 0; i < n; i++) {
+                long ref = in.varint();
+                if (ref > table.length) throw new IOException("Route code is damaged (bad name)");
+                refs[i] = (int) ref;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            String pointName = refs == null || refs[i] == 0 ? String.valueOf(i + 1) : table[refs[i] - 1];
+            g.add(xyz[0][i], xyz[1][i], xyz[2][i], pointName);
+        }
+        return g;
+    }
+
+    private static byte[] inflate(byte[] data, int off, int len) throws IOException {
+        Inflater inf = new Inflater(true);
+        try {
+            // raw deflate wants one byte past the end of the stream
+            inf.setInput(Arrays.copyOfRange(data, off, off + len + 1));
+            byte[] out = new byte[Math.max(64, len * 4)];
+            int n = 0;
+            while (!inf.finished()) {
+                if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+                int r = inf.inflate(out, n, out.length - n);
+                if (r == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+                n += r;
+            }
+            if (!inf.finished()) throw new IOException("Route code is damaged (truncated)");
+            return Arrays.copyOf(out, n);
+        } catch (DataFormatException e) {
+            throw new IOException("Route code is damaged (" + e.getMessage() + ")");
+        } finally {
+            inf.end();
+        }
+    }
+
+    // ------------------------------------------------------------------ varints
+
+    /** Growable byte buffer with varint writers. */
+    private static final class Bytes {
+        byte[] data;
+        int size;
+
+        Bytes(int capacity) { data = new byte[Math.max(16, capacity)]; }
+
+        void put(byte b) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = b;
+        }
+
+        void put(byte[] b, int off, int len) {
+            if (size + len > data.length) data = Arrays.copyOf(data, Math.max(size + len, size * 2));
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            put((byte) v);
+        }
+
+        void zigzag(long v) { varint((v << 1) ^ (v >> 63)); }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        Reader(byte[] data) { this(data, 0, data.length); }
+
+        Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos  = pos;
+            this.end  = end;
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= end) throw new IOException("Route code is damaged (truncated)");
+                byte b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw new IOException("Route code is damaged (bad number)");
+        }
+
+        long zigzag() throws IOException {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** A varint count of things that each take at least a byte of what is left. */
+        int count() throws IOException {
+            long v = varint();
+            if (v < 0 || v > end - pos) throw new IOException("Route code is damaged (bad count)");
+            return (int) v;
+        }
+
+        String string() throws IOException {
+            int len = count();
+            if (len > end - pos) throw new IOException("Route code is damaged (truncated)");
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
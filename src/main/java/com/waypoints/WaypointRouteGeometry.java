@@ -0,0 +1,231 @@
+package com.waypoints;
+
+import net.minecraft.client.renderer.GLAllocation;
+import org.lwjgl.opengl.GL11;
+
+import java.util.Arrays;
+
+/**
+ * Box and connector lines for every active route, compiled once into a display list.
+ *
+ * The list is rebuilt only when its inputs change: a different route set or a group edit
+ * or navigation step on any route ({@link WaypointState.Routes#version}), a setup-mode
+ * toggle or a new line budget. Vertices are stored relative to one route's first point so
+ * they keep float precision far from spawn; per frame only the camera translation is
+ * applied.
+ *
+ * Boxes of points behind blocks are drawn at a fraction of their alpha. Line of sight
+ * changes every few ticks while the player moves, so it never reaches the list: with
+ * {@link WaypointVisibility} on, boxes near the player (the visibility range plus
+ * {@link #NEAR_MARGIN}, at most {@link WaypointVisibility#MAX_CANDIDATES} of them) are left
+ * out of it and drawn from a small overlay batch that is refilled when a ray result
+ * changes. The list itself is only rebuilt once the player has moved {@link #NEAR_MARGIN}
+ * blocks from where the near boxes were picked.
+ *
+ * Geometry is gathered into a {@link WaypointLineBatch} first, so the compiled list holds
+ * one GL_LINES draw per line width however many routes and waypoints there are.
+ */
+class WaypointRouteGeometry {
+
+    /** Unit-cube edges as (x0,y0,z0, x1,y1,z1) pairs. */
+    static final double[] BOX_EDGES = {
+            0,0,0, 1,0,0,  0,0,1, 1,0,1,  0,0,0, 0,0,1,  1,0,0, 1,0,1,
+            0,1,0, 1,1,0,  0,1,1, 1,1,1,  0,1,0, 0,1,1,  1,1,0, 1,1,1,
+            0,0,0, 0,1,0,  1,0,0, 1,1,0,  0,0,1, 0,1,1,  1,0,1, 1,1,1
+    };
+
+    static final float BOX_WIDTH       = 2.0f;
+    static final float CONNECTOR_WIDTH = 1.5f;
+
+    /** Lines per point in setup mode: a box and the connector to the next point. */
+    static final int SETUP_LINES_PER_POINT = BOX_EDGES.length / 6 + 1;
+
+    // alpha of a route that is shown but not focused, by role
+    private static final float ALPHA_OTHER   = 0.3f;
+    private static final float ALPHA_CURRENT = 0.45f;
+    private static final float ALPHA_NEXT    = 0.85f;
+    /** Alpha multiplier for boxes the player cannot see. */
+    private static final float OCCLUDED_DIM  = 0.3f;
+
+    /** Slack around the visibility range before the near boxes are picked again. */
+    static final double NEAR_MARGIN = 16.0;
+
+    private final WaypointLineBatch batch = new WaypointLineBatch();
+    private int list = -1;
+
+    // inputs the compiled list was built from
+    private int     routesVersion = -1;
+    private boolean setupMode;
+    private int     budget;
+    private boolean nearActive;
+    private double  nearRange;
+
+    // world position the list's vertices are relative to
+    private double ox, oy, oz;
+
+    // boxes drawn per frame instead of from the list, and the line-of-sight version they show
+    private final Near near = new Near();
+    private final WaypointLineBatch overlay = new WaypointLineBatch();
+    private int overlayVersion = -1;
+
+    /**
+     * Draw the cached geometry, rebuilding first if any route or position changed. With
+     * {@code vis} non-null, boxes within {@code range} (plus the margin) of the viewer are
+     * drawn dimmed where they are out of sight.
+     */
+    void render(WaypointState.Routes routes, boolean setup, int budget, WaypointVisibility vis, double range,
+                double vx, double vy, double vz) {
+        boolean nearNow = vis != null;
+        if (list < 0 || routes.version != routesVersion || setup != setupMode || budget != this.budget
+                || nearNow != nearActive || nearNow && (range != nearRange || near.drifted(vx, vy, vz))) {
+            rebuild(routes, setup, budget, nearNow, range, vx, vy, vz);
+        }
+        GL11.glPushMatrix();
+        GL11.glTranslated(ox - vx, oy - vy, oz - vz);
+        GL11.glCallList(list);
+        GL11.glPopMatrix();
+
+        if (!nearActive || near.count == 0) return;
+        if (overlayVersion != vis.version()) {
+            overlayVersion = vis.version();
+            overlay.reset();
+            overlay.setOrigin(near.x, near.y, near.z);
+            for (int k = 0; k < near.count; k++) {
+                WaypointGroup g = near.groups[k];
+                int i = near.index[k];
+                overlay.box(BOX_WIDTH, g.x(i), g.y(i), g.z(i), dim(near.colour[k], vis, g, i));
+            }
+        }
+        GL11.glPushMatrix();
+        GL11.glTranslated(near.x - vx, near.y - vy, near.z - vz);
+        WaypointRenderer.drawBatch(overlay);
+        GL11.glPopMatrix();
+    }
+
+    private void rebuild(WaypointState.Routes routes, boolean setup, int budget, boolean nearNow, double range,
+                         double vx, double vy, double vz) {
+        routesVersion = routes.version;
+        setupMode     = setup;
+        this.budget   = budget;
+        nearActive    = nearNow;
+        nearRange     = range;
+        near.reset(vx, vy, vz, range + NEAR_MARGIN);
+        overlayVersion = -1;
+        WaypointGroup g = origin(routes);
+        ox = g == null ? 0 : g.x(0);
+        oy = g == null ? 0 : g.y(0);
+        oz = g == null ? 0 : g.z(0);
+
+        if (list < 0) list = GLAllocation.generateDisplayLists(1);
+
+        batch.reset();
+        batch.setOrigin(ox, oy, oz);
+        fill(batch, routes, setup, budget, nearNow ? near : null);
+
+        GL11.glNewList(list, GL11.GL_COMPILE);
+        WaypointRenderer.drawBatch(batch);
+        GL11.glEndList();
+    }
+
+    /** The focused route's group, or the first route with points. */
+    private static WaypointGroup origin(WaypointState.Routes routes) {
+        if (routes.focused.hasGroup()) return routes.focused.group;
+        for (WaypointState.Nav nav : routes.all) if (nav.hasGroup()) return nav.group;
+        return null;
+    }
+
+    /**
+     * Every route's boxes into {@code out}, the focused route first and the rest in the order
+     * they were shown. In setup mode the focused route is always drawn in full and its cost
+     * comes out of {@code budget} (line primitives) first; every other route gets all its boxes
+     * and connectors if they fit in what is left, and only its current and next boxes if not.
+     * Outside setup mode each route draws just its next box. Boxes that {@code near} takes
+     * go there instead of into {@code out}; {@code near} may be null.
+     */
+    static void fill(WaypointLineBatch out, WaypointState.Routes routes, boolean setup, int budget, Near near) {
+        budget = fill(out, routes.focused, true, setup, budget, near);
+        for (WaypointState.Nav nav : routes.all) {
+            if (nav != routes.focused) budget = fill(out, nav, false, setup, budget, near);
+        }
+    }
+
+    /** One route; returns the budget left. */
+    private static int fill(WaypointLineBatch out, WaypointState.Nav nav, boolean focused, boolean setup, int budget,
+                            Near near) {
+        if (!nav.hasGroup()) return budget;
+        WaypointGroup g = nav.group;
+        int n   = g.size();
+        int cur = nav.current;
+        int nxt = nav.next;
+        int boxLines = BOX_EDGES.length / 6;
+
+        int colOther   = focused ? WaypointLineBatch.pack(WaypointRenderer.COL_OTHER)   : WaypointRenderer.pack(nav.colour, ALPHA_OTHER);
+        int colCurrent = focused ? WaypointLineBatch.pack(WaypointRenderer.COL_CURRENT) : WaypointRenderer.pack(nav.colour, ALPHA_CURRENT);
+        int colNext    = focused ? WaypointLineBatch.pack(WaypointRenderer.COL_NEXT)    : WaypointRenderer.pack(nav.colour, ALPHA_NEXT);
+
+        if (setup) {
+            long full = (long) n * SETUP_LINES_PER_POINT;
+            if (focused || full <= budget) {
+                for (int i = 0; i < n; i++) {
+                    if (i != cur && i != nxt) box(out, near, g, i, colOther);
+                    // connector to the following point's centre, closing the loop
+                    int j = i + 1 == n ? 0 : i + 1;
+                    if (j != i) out.line(CONNECTOR_WIDTH, g.x(i) + 0.5, g.y(i) + 0.5, g.z(i) + 0.5,
+                            g.x(j) + 0.5, g.y(j) + 0.5, g.z(j) + 0.5, colOther);
+                }
+                budget -= (int) full;
+            } else {
+                budget -= 2 * boxLines;
+            }
+            if (cur != nxt) box(out, near, g, cur, colCurrent);
+        } else {
+            budget -= boxLines;
+        }
+        box(out, near, g, nxt, colNext);
+        return Math.max(0, budget);
+    }
+
+    private static void box(WaypointLineBatch out, Near near, WaypointGroup g, int i, int colour) {
+        if (near == null || !near.take(g, i, colour)) out.box(BOX_WIDTH, g.x(i), g.y(i), g.z(i), colour);
+    }
+
+    /** {@code colour} with its alpha cut if point {@code i} is behind a block. */
+    private static int dim(int colour, WaypointVisibility vis, WaypointGroup g, int i) {
+        if (vis == null || !vis.isOccluded(g, i)) return colour;
+        return (colour & 0x00FFFFFF) | (int) ((colour >>> 24) * OCCLUDED_DIM) << 24;
+    }
+
+    /** Boxes within a radius of where the viewer stood at the last rebuild, with their undimmed colours. */
+    static final class Near {
+        private static final int MAX = WaypointVisibility.MAX_CANDIDATES;
+
+        double x = Double.NaN, y, z;
+        private double radiusSq;
+        final WaypointGroup[] groups = new WaypointGroup[MAX];
+        final int[] index  = new int[MAX];
+        final int[] colour = new int[MAX];
+        int count;
+
+        void reset(double x, double y, double z, double radius) {
+            this.x = x; this.y = y; this.z = z;
+            radiusSq = radius * radius;
+            Arrays.fill(groups, 0, count, null);
+            count = 0;
+        }
+
+        /** Whether the viewer has moved far enough that the near boxes should be picked again. */
+        boolean drifted(double vx, double vy, double vz) {
+            double dx = vx - x, dy = vy - y, dz = vz - z;
+            return !(dx * dx + dy * dy + dz * dz <= NEAR_MARGIN * NEAR_MARGIN);
+        }
+
+        /** Take point {@code i} of {@code g} if it is in range and there is room. */
+        boolean take(WaypointGroup g, int i, int c) {
+            if (count == MAX || g.distanceSq(i, x, y, z) > radiusSq) return false;
+            groups[count] = g;
+            index[count]  = i;
+            colour[count++] = c;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package com.waypoints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reorders a group into a short closed tour (a travelling-salesman heuristic).
+ *
+ * <ol>
+ *   <li>Bucket the points into a uniform x/z grid and find each point's {@link #K} nearest
+ *       neighbours; these candidate lists keep every later step close to linear.</li>
+ *   <li>Seed with nearest-neighbour from the first point, using the grid with visited points
+ *       removed.</li>
+ *   <li>Improve with 2-opt and Or-opt (segments of up to three points) over the candidate
+ *       lists with a work queue, until no move shortens the tour.</li>
+ * </ol>
+ * Large groups run steps 1 and 3 on the fork-join pool: the tour is cut into disjoint
+ * windows of positions that are improved independently, twice with shifted cuts, before a
+ * final pass over the whole closed tour joins them up.
+ *
+ * Works on its own copy of the coordinates, so it can run on any thread. {@link #cancel}
+ * makes {@link #run} throw {@link CancellationException} at the next check.
+ */
+final class WaypointRouteOptimizer {
+
+    /** Phase changes; called on the optimizing thread. */
+    interface Progress {
+        void update(String phase, int percent);
+    }
+
+    private static final int    K            = 10;   // candidate neighbours per point
+    private static final int    PARALLEL_MIN = 4096; // below this fork-join costs more than it saves
+    private static final int    WINDOW       = 2048; // positions per parallel window
+    private static final int    MAX_SEGMENT  = 3;    // longest Or-opt segment
+    private static final int    CHUNK        = 1024; // points per fork-join leaf
+    private static final double EPS          = 1e-7;
+
+    private final int n;
+    private final double[] xs, ys, zs;
+    private final boolean pinFirst;
+    private final Progress progress;
+
+    private volatile boolean cancelled;
+    private volatile String  phase = "waiting";
+    private volatile int     percent;
+
+    // uniform x/z grid, points sorted by cell (CSR)
+    private double minX, minZ, cellSize;
+    private int gx, gz;
+    private int[] cellStart, items, cellOf;
+
+    private int[] neigh; // n * K, -1 padded
+    private int[] tour, pos;
+
+    /** @param group a detached copy ({@link WaypointGroup#copy()}); only its coordinates are read */
+    WaypointRouteOptimizer(WaypointGroup group, boolean pinFirst, Progress progress) {
+        this.n  = group.size();
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.zs = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = group.x(i);
+            ys[i] = group.y(i);
+            zs[i] = group.z(i);
+        }
+        this.pinFirst = pinFirst;
+        this.progress = progress;
+    }
+
+    void cancel() { cancelled = true; }
+
+    boolean isCancelled() { return cancelled; }
+
+    String phase() { return phase; }
+
+    int percent() { return percent; }
+
+    /**
+     * Optimize. Returns the new order: position {@code k} of the tour holds old point
+     * {@code order[k]}. With {@code pinFirst} the old first point stays first.
+     */
+    int[] run() {
+        tour = new int[n];
+        pos  = new int[n];
+        for (int i = 0; i < n; i++) tour[i] = pos[i] = i;
+        if (n < 4) return tour; // every order is already optimal
+
+        boolean parallel = n >= PARALLEL_MIN;
+        setPhase("neighbours", 0);
+        buildGrid();
+        buildNeighbours(parallel);
+
+        setPhase("seeding", 20);
+        seedNearestNeighbour();
+
+        setPhase("improving", 40);
+        if (parallel) {
+            improveWindows(0);
+            setPhase("improving", 55);
+            improveWindows(WINDOW / 2);
+            setPhase("improving", 70);
+        }
+        improve(0, n - 1, true, new int[n], new boolean[n]);
+
+        if (pinFirst) rotateToFront(0);
+        setPhase("done", 100);
+        return tour.clone();
+    }
+
+    /** Length of the closed tour through {@code group} in the given order. */
+    static double tourLength(WaypointGroup group, int[] order) {
+        double len = 0;
+        for (int k = 0; k < order.length; k++) {
+            int a = order[k], b = order[(k + 1) % order.length];
+            len += Math.sqrt(group.distanceSq(a, group.x(b), group.y(b), group.z(b)));
+        }
+        return len;
+    }
+
+    // ------------------------------------------------------------------ grid + neighbours
+
+    private void buildGrid() {
+        double maxX = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+        minX = minZ = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]); maxX = Math.max(maxX, xs[i]);
+            minZ = Math.min(minZ, zs[i]); maxZ = Math.max(maxZ, zs[i]);
+        }
+        double w = maxX - minX, h = maxZ - minZ;
+        // about two points per cell; long thin routes are sized by their length instead
+        double s = Math.max(1.0, Math.max(Math.sqrt(2 * w * h / n), 2 * Math.max(w, h) / n));
+        while ((long) (w / s + 1) * (long) (h / s + 1) > 4L * n + 16) s *= 1.5;
+        cellSize = s;
+        gx = (int) (w / s) + 1;
+        gz = (int) (h / s) + 1;
+
+        int cells = gx * gz;
+        cellStart = new int[cells + 1];
+        cellOf    = new int[n];
+        items     = new int[n];
+        for (int i = 0; i < n; i++) {
+            int c = cellX(xs[i]) * gz + cellZ(zs[i]);
+            cellOf[i] = c;
+            cellStart[c + 1]++;
+        }
+        for (int c = 0; c < cells; c++) cellStart[c + 1] += cellStart[c];
+        int[] fill = Arrays.copyOf(cellStart, cells);
+        for (int i = 0; i < n; i++) items[fill[cellOf[i]]++] = i;
+    }
+
+    private int cellX(double x) { int c = (int) ((x - minX) / cellSize); return c < 0 ? 0 : c >= gx ? gx - 1 : c; }
+    private int cellZ(double z) { int c = (int) ((z - minZ) / cellSize); return c < 0 ? 0 : c >= gz ? gz - 1 : c; }
+
+    /** Cells at Chebyshev distance exactly {@code r} from (cx, cz), clipped to the grid. */
+    private int ring(int cx, int cz, int r, int[] out) {
+        if (r == 0) { out[0] = cx * gz + cz; return 1; }
+        int m = 0;
+        for (int d = -r; d <= r; d++) {
+            int x = cx + d;
+            if (x >= 0 && x < gx) {
+                if (cz - r >= 0) out[m++] = x * gz + cz - r;
+                if (cz + r < gz) out[m++] = x * gz + cz + r;
+            }
+            if (d == -r || d == r) continue;
+            int z = cz + d;
+            if (z >= 0 && z < gz) {
+                if (cx - r >= 0) out[m++] = (cx - r) * gz + z;
+                if (cx + r < gx) out[m++] = (cx + r) * gz + z;
+            }
+        }
+        return m;
+    }
+
+    @SuppressWarnings("serial") // Chunked is never serialised
+    private void buildNeighbours(boolean parallel) {
+        neigh = new int[n * K];
+        Arrays.fill(neigh, -1);
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new Chunked(0, n) {
+                @Override void leaf(int from, int to) { neighbours(from, to); }
+            });
+        } else {
+            neighbours(0, n);
+        }
+    }
+
+    /** K nearest neighbours of points {@code [from, to)}; writes only their slots in {@link #neigh}. */
+    private void neighbours(int from, int to) {
+        int[] cells = new int[64];
+        double[] bestD = new double[K];
+        int reach = Math.max(gx, gz);
+        for (int p = from; p < to; p++) {
+            if ((p & 1023) == 0) checkCancelled();
+            int cx = cellOf[p] / gz, cz = cellOf[p] % gz;
+            int found = 0;
+            int base = p * K;
+            for (int r = 0; r <= reach; r++) {
+                if (cells.length < 8 * r + 1) cells = new int[16 * r + 8];
+                int m = ring(cx, cz, r, cells);
+                for (int k = 0; k < m; k++) {
+                    int c = cells[k];
+                    for (int it = cellStart[c]; it < cellStart[c + 1]; it++) {
+                        int q = items[it];
+                        if (q == p) continue;
+                        double d = distSq(p, q);
+                        if (found == K && d >= bestD[K - 1]) continue;
+                        // insertion into the sorted candidate list
+                        int at = found < K ? found++ : K - 1;
+                        while (at > 0 && bestD[at - 1] > d) {
+                            bestD[at] = bestD[at - 1];
+                            neigh[base + at] = neigh[base + at - 1];
+                            at--;
+                        }
+                        bestD[at] = d;
+                        neigh[base + at] = q;
+                    }
+                }
+                double bound = r * cellSize;
+                if (found == K && bestD[K - 1] <= bound * bound) break;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------ nearest-neighbour seed
+
+    private void seedNearestNeighbour() {
+        int cells = gx * gz;
+        int[] alive = new int[cells];   // items[cellStart[c] .. +alive[c]) are unvisited
+        int[] slot  = new int[n];       // position of each point in items
+        int[] live  = new int[cells];   // non-empty cells, swap-removed
+        int[] liveAt = new int[cells];
+        int liveCount = 0;
+        for (int c = 0; c < cells; c++) {
+            alive[c] = cellStart[c + 1] - cellStart[c];
+            if (alive[c] > 0) { liveAt[c] = liveCount; live[liveCount++] = c; }
+        }
+        for (int it = 0; it < n; it++) slot[items[it]] = it;
+
+        int[] ringCells = new int[64];
+        int reach = Math.max(gx, gz);
+        int cur = 0;
+        for (int k = 0; k < n; k++) {
+            if ((k & 1023) == 0) {
+                checkCancelled();
+                report(20 + 20 * k / n);
+            }
+            tour[k] = cur;
+            pos[cur] = k;
+
+            // take cur out of its cell
+            int c = cellOf[cur];
+            int last = cellStart[c] + --alive[c];
+            int moved = items[last];
+            items[slot[cur]] = moved;
+            slot[moved] = slot[cur];
+            items[last] = cur;
+            slot[cur] = last;
+            if (alive[c] == 0) {
+                int tail = live[--liveCount];
+                live[liveAt[c]] = tail;
+                liveAt[tail] = liveAt[c];
+            }
+            if (k == n - 1) break;
+
+            // nearest unvisited: grow rings until nothing outside can be closer
+            int best = -1;
+            double bestD = Double.MAX_VALUE;
+            int cx = c / gz, cz = c % gz;
+            for (int r = 0; r <= reach; r++) {
+                if (8L * r > liveCount) {
+                    // rings are now wider than the set of cells with anything left in them
+                    for (int l = 0; l < liveCount; l++) {
+                        int lc = live[l];
+                        double gxd = gap(xs[cur], lc / gz, minX), gzd = gap(zs[cur], lc % gz, minZ);
+                        if (gxd * gxd + gzd * gzd >= bestD) continue;
+                        for (int it = cellStart[lc], e = it + alive[lc]; it < e; it++) {
+                            double d = distSq(cur, items[it]);
+                            if (d < bestD) { bestD = d; best = items[it]; }
+                        }
+                    }
+                    break;
+                }
+                if (ringCells.length < 8 * r + 1) ringCells = new int[16 * r + 8];
+                int m = ring(cx, cz, r, ringCells);
+                for (int j = 0; j < m; j++) {
+                    int rc = ringCells[j];
+                    for (int it = cellStart[rc], e = it + alive[rc]; it < e; it++) {
+                        double d = distSq(cur, items[it]);
+                        if (d < bestD) { bestD = d; best = items[it]; }
+                    }
+                }
+                double bound = r * cellSize;
+                if (best >= 0 && bestD <= bound * bound) break;
+            }
+            cur = best;
+        }
+    }
+
+    /** Horizontal distance from {@code p} to grid column/row {@code c} (origin {@code min}). */
+    private double gap(double p, int c, double min) {
+        double lo = min + c * cellSize, hi = lo + cellSize;
+        return p < lo ? lo - p : p > hi ? p - hi : 0;
+    }
+
+    // ------------------------------------------------------------------ local search
+
+    /** Improve disjoint windows of positions in parallel; windows start at {@code offset}. */
+    @SuppressWarnings("serial")
+    private void improveWindows(int offset) {
+        List<int[]> windows = new ArrayList<>();
+        if (offset > 0) windows.add(new int[]{0, offset - 1});
+        for (int lo = offset; lo < n; lo += WINDOW) windows.add(new int[]{lo, Math.min(n, lo + WINDOW) - 1});
+        ForkJoinPool.commonPool().invoke(new Chunked(0, windows.size(), 1) {
+            @Override void leaf(int from, int to) {
+                for (int w = from; w < to; w++) {
+                    int[] win = windows.get(w);
+                    int len = win[1] - win[0] + 1;
+                    improve(win[0], win[1], false, new int[len], new boolean[n]);
+                }
+            }
+        });
+    }
+
+    /**
+     * 2-opt / Or-opt until no candidate move helps. With {@code closed} the whole tour is
+     * searched cyclically; otherwise only edges with both ends in positions {@code [lo, hi]}
+     * are touched, which keeps concurrent windows independent.
+     */
+    private void improve(int lo, int hi, boolean closed, int[] queue, boolean[] queued) {
+        Search s = new Search(lo, hi, closed, queue, queued);
+        for (int p = lo; p <= hi; p++) s.push(tour[p]);
+        long pops = 0;
+        while (s.size > 0) {
+            int a = s.pop();
+            if ((++pops & 1023) == 0) {
+                checkCancelled();
+                if (closed) report(70 + (int) Math.min(29, 29 * pops / (4L * n)));
+            }
+            if (!s.twoOpt(a)) s.orOpt(a);
+        }
+    }
+
+    /** Cursor over one window of the tour; see {@link #improve}. */
+    private final class Search {
+        final int lo, hi;
+        final boolean closed;
+        final int[] queue;
+        final boolean[] queued;
+        int head, size;
+
+        Search(int lo, int hi, boolean closed, int[] queue, boolean[] queued) {
+            this.lo = lo; this.hi = hi; this.closed = closed;
+            this.queue = queue; this.queued = queued;
+        }
+
+        boolean inWindow(int p) {
+            if (closed) return true;
+            int q = pos[p];
+            return q >= lo && q <= hi;
+        }
+
+        int succ(int p) {
+            int q = pos[p] + 1;
+            if (closed) return tour[q == n ? 0 : q];
+            return q <= hi ? tour[q] : -1;
+        }
+
+        int pred(int p) {
+            int q = pos[p] - 1;
+            if (closed) return tour[q < 0 ? n - 1 : q];
+            return q >= lo ? tour[q] : -1;
+        }
+
+        int pop() {
+            int p = queue[head];
+            head = (head + 1) % queue.length;
+            size--;
+            queued[p] = false;
+            return p;
+        }
+
+        void push(int p) {
+            if (queued[p] || !inWindow(p)) return;
+            queued[p] = true;
+            queue[(head + size) % queue.length] = p;
+            size++;
+        }
+
+        boolean twoOpt(int a) {
+            for (int dir = 0; dir < 2; dir++) {
+                int b = dir == 0 ? succ(a) : pred(a);
+                if (b < 0) continue;
+                double dab = dist(a, b);
+                for (int k = 0; k < K; k++) {
+                    int c = neigh[a * K + k];
+                    if (c < 0) break;
+                    double dac = dist(a, c);
+                    if (dac >= dab) break;
+                    if (!inWindow(c)) continue;
+                    int d = dir == 0 ? succ(c) : pred(c);
+                    if (d < 0 || c == b || d == a) continue;
+                    double delta = dac + dist(b, d) - dab - dist(c, d);
+                    if (delta >= -EPS) continue;
+                    // the two removed edges start at these positions
+                    int e1 = dir == 0 ? pos[a] : pos[b];
+                    int e2 = dir == 0 ? pos[c] : pos[d];
+                    reverseBetween(Math.min(e1, e2), Math.max(e1, e2));
+                    push(a); push(b); push(c); push(d);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Replace edges starting at positions p1 < p2 by reversing the tour between them. */
+        private void reverseBetween(int p1, int p2) {
+            int inner = p2 - p1;
+            if (closed && inner > n / 2) reverse(p2 + 1, p1 + n);
+            else                         reverse(p1 + 1, p2);
+        }
+
+        boolean orOpt(int s1) {
+            if (n < 8) return false;
+            int s2 = s1;
+            for (int len = 1; len <= MAX_SEGMENT; len++) {
+                if (len > 1) {
+                    s2 = succ(s2);
+                    if (s2 < 0 || s2 == s1) return false;
+                }
+                int p0 = pred(s1), n0 = succ(s2);
+                if (p0 < 0 || n0 < 0 || p0 == s2 || n0 == s1 || p0 == n0) return false;
+                double gain = dist(p0, s1) + dist(s2, n0) - dist(p0, n0);
+                if (gain <= EPS) continue;
+                int ps = pos[s1];
+                for (int end = 0; end < 2; end++) {
+                    int e = end == 0 ? s1 : s2;
+                    for (int k = 0; k < K; k++) {
+                        int c = neigh[e * K + k];
+                        if (c < 0) break;
+                        if (dist(e, c) >= gain) break;
+                        if (!inWindow(c) || inSegment(c, ps, len)) continue;
+                        int cn = succ(c);
+                        if (cn < 0 || inSegment(cn, ps, len)) continue;
+                        double dcc = dist(c, cn);
+                        double keep = dist(c, s1) + dist(s2, cn) - dcc;
+                        double flip = dist(c, s2) + dist(s1, cn) - dcc;
+                        double add = Math.min(keep, flip);
+                        if (add - gain >= -EPS) continue;
+                        move(ps, len, pos[c], flip < keep);
+                        push(p0); push(n0); push(s1); push(s2); push(c); push(cn);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean inSegment(int p, int ps, int len) {
+            return Math.floorMod(pos[p] - ps, n) < len;
+        }
+
+        /**
+         * Move the segment at positions {@code [ps, ps+len)} to sit after position {@code q},
+         * reversed if asked. Done as a rotation (three reversals) of whichever side is shorter.
+         */
+        private void move(int ps, int len, int q, boolean reversed) {
+            int fwd = Math.floorMod(q - (ps + len - 1), n); // elements between segment end and q, inclusive
+            int back = Math.floorMod(ps - (q + 1), n);      // elements between q+1 and segment start
+            boolean forward = closed ? fwd <= back : q > ps;
+            if (forward) {
+                // [S][B] -> [B][S]
+                if (!reversed) reverse(ps, ps + len - 1);
+                reverse(ps + len, ps + len + fwd - 1);
+                reverse(ps, ps + len + fwd - 1);
+            } else {
+                // [B][S] -> [S][B]
+                int start = q + 1;
+                reverse(start, start + back - 1);
+                if (!reversed) reverse(start + back, start + back + len - 1);
+                reverse(start, start + back + len - 1);
+            }
+        }
+    }
+
+    /** Reverse tour positions {@code i..j} inclusive, wrapping past the end in a closed tour. */
+    private void reverse(int i, int j) {
+        for (; i < j; i++, j--) {
+            int a = i % n, b = j % n;
+            int ta = tour[a], tb = tour[b];
+            tour[a] = tb; pos[tb] = a;
+            tour[b] = ta; pos[ta] = b;
+        }
+    }
+
+    private void rotateToFront(int point) {
+        int shift = pos[point];
+        if (shift == 0) return;
+        int[] rotated = new int[n];
+        for (int k = 0; k < n; k++) {
+            rotated[k] = tour[(k + shift) % n];
+            pos[rotated[k]] = k;
+        }
+        tour = rotated;
+    }
+
+    // ------------------------------------------------------------------ helpers
+
+    private double distSq(int a, int b) {
+        double dx = xs[a] - xs[b], dy = ys[a] - ys[b], dz = zs[a] - zs[b];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private double dist(int a, int b) { return Math.sqrt(distSq(a, b)); }
+
+    private void checkCancelled() {
+        if (cancelled) throw new CancellationException();
+    }
+
+    private void setPhase(String name, int pct) {
+        checkCancelled();
+        phase   = name;
+        percent = pct;
+        if (progress != null) progress.update(name, pct);
+    }
+
+    private void report(int pct) { percent = pct; }
+
+    /** Fork-join over an index range, split down to {@link #CHUNK}-sized leaves. */
+    private abstract static class Chunked extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int from, to, grain;
+
+        Chunked(int from, int to) { this(from, to, CHUNK); }
+
+        Chunked(int from, int to, int grain) {
+            this.from = from; this.to = to; this.grain = grain;
+        }
+
+        abstract void leaf(int from, int to);
+
+        @Override
+        @SuppressWarnings("serial")
+        protected void compute() {
+            if (to - from <= grain) { leaf(from, to); return; }
+            int mid = (from + to) >>> 1;
+            Chunked self = this;
+            invokeAll(new Chunked(from, mid, grain) {
+                          @Override void leaf(int f, int t) { self.leaf(f, t); }
+                      },
+                      new Chunked(mid, to, grain) {
+                          @Override void leaf(int f, int t) { self.leaf(f, t); }
+                      });
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.waypoints;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Hashed column grid over a group's points, for nearest-waypoint queries.
+ *
+ * Points are bucketed by 16x16 block columns (x/z; routes are wide, not tall) in an
+ * open-addressing table keyed by the packed column coordinate. A query walks rings of
+ * columns outward from the player and stops as soon as no unvisited ring can hold anything
+ * closer, so on a dense 50k-point route it touches a handful of cells instead of every
+ * point, without allocating.
+ *
+ * Cells hold point indices, which shift when a point is inserted or removed mid-route;
+ * {@link #inserted} and {@link #removed} patch them in one pass over the int lists, which is
+ * far cheaper than rehashing and only happens on edits. The owning {@link WaypointGroup}
+ * calls these itself, so the index cannot drift from the columns.
+ */
+final class WaypointSpatialIndex {
+
+    static final int CELL_SHIFT = 4; // 16 blocks
+    static final int CELL_SIZE  = 1 << CELL_SHIFT;
+
+    private static final int EMPTY = -1;
+
+    // key -> cell slot, linear probing; capacity is a power of two
+    private long[] keys  = new long[64];
+    private int[]  slots = filled(64);
+    private int    used;
+
+    // cell slot -> point indices
+    private int[][] cells  = new int[16][];
+    private int[]   counts = new int[16];
+    private int[]   cellX  = new int[16];
+    private int[]   cellZ  = new int[16];
+    private int     cellCount;
+
+    // bounds of every cell ever created (not shrunk on removal; only used to stop the ring walk)
+    private int minCx = Integer.MAX_VALUE, maxCx = Integer.MIN_VALUE;
+    private int minCz = Integer.MAX_VALUE, maxCz = Integer.MIN_VALUE;
+
+    private final WaypointGroup group;
+
+    WaypointSpatialIndex(WaypointGroup group) {
+        this.group = group;
+        rebuild();
+    }
+
+    // ------------------------------------------------------------------ queries
+
+    /**
+     * Index of the point closest (3-D) to the given position, or -1 if the group is empty.
+     * Ties go to whichever was seen first.
+     */
+    int nearest(double px, double py, double pz) {
+        if (group.isEmpty()) return -1;
+        int pcx = cell(px), pcz = cell(pz);
+        int reach = Math.max(Math.max(pcx - minCx, maxCx - pcx), Math.max(pcz - minCz, maxCz - pcz));
+
+        int best = -1;
+        double bestSq = Double.MAX_VALUE;
+        for (int r = 0; r <= reach; r++) {
+            // a wide ring costs more than looking at every occupied cell once
+            if (8L * r > cellCount) return scanAll(px, py, pz, best, bestSq);
+
+            if (r == 0) {
+                int s = find(pcx, pcz);
+                if (s != EMPTY) { int b = scanCell(s, px, py, pz, bestSq); if (b >= 0) { best = b; bestSq = lastSq; } }
+            } else {
+                for (int d = -r; d <= r; d++) {
+                    int b;
+                    if ((b = scanAt(pcx + d, pcz - r, px, py, pz, bestSq)) >= 0) { best = b; bestSq = lastSq; }
+                    if ((b = scanAt(pcx + d, pcz + r, px, py, pz, bestSq)) >= 0) { best = b; bestSq = lastSq; }
+                    if (d == -r || d == r) continue;
+                    if ((b = scanAt(pcx - r, pcz + d, px, py, pz, bestSq)) >= 0) { best = b; bestSq = lastSq; }
+                    if ((b = scanAt(pcx + r, pcz + d, px, py, pz, bestSq)) >= 0) { best = b; bestSq = lastSq; }
+                }
+            }
+            // everything in ring r+1 is at least r full cells away horizontally
+            double bound = (double) r * CELL_SIZE;
+            if (best >= 0 && bestSq <= bound * bound) break;
+        }
+        return best;
+    }
+
+    /**
+     * Call {@code action} with every point within {@code radius} (3-D) of the given position,
+     * in no particular order. Walks only the columns the radius covers, or every occupied
+     * column if that is fewer.
+     */
+    void forEachWithin(double px, double py, double pz, double radius, IntConsumer action) {
+        if (group.isEmpty()) return;
+        double r2 = radius * radius;
+        int cx0 = cell(px - radius), cx1 = cell(px + radius);
+        int cz0 = cell(pz - radius), cz1 = cell(pz + radius);
+        if ((long) (cx1 - cx0 + 1) * (cz1 - cz0 + 1) > cellCount) {
+            for (int s = 0; s < cellCount; s++) within(s, px, py, pz, r2, action);
+            return;
+        }
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cz = cz0; cz <= cz1; cz++) {
+                int s = find(cx, cz);
+                if (s != EMPTY) within(s, px, py, pz, r2, action);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------ updates (called by the group)
+
+    /** Point {@code index} was inserted; indices at or after it moved up by one. */
+    void inserted(int index, double x, double z) {
+        if (index < group.size() - 1) shift(index, 1);
+        add(index, x, z);
+    }
+
+    /** Point {@code index}, which sat at (x, z), was removed; later indices moved down by one. */
+    void removed(int index, double x, double z) {
+        int s = find(cell(x), cell(z));
+        if (s != EMPTY) {
+            int[] list = cells[s];
+            int n = counts[s];
+            for (int k = 0; k < n; k++) {
+                if (list[k] == index) {
+                    list[k] = list[n - 1];
+                    counts[s] = n - 1;
+                    break;
+                }
+            }
+        }
+        shift(index + 1, -1);
+    }
+
+    /** Re-bucket every point (after a reorder, where patching would touch everything anyway). */
+    void rebuild() {
+        clear();
+        for (int i = 0; i < group.size(); i++) add(i, group.x(i), group.z(i));
+    }
+
+    void clear() {
+        Arrays.fill(slots, EMPTY);
+        used = 0;
+        cellCount = 0;
+        minCx = minCz = Integer.MAX_VALUE;
+        maxCx = maxCz = Integer.MIN_VALUE;
+    }
+
+    // ------------------------------------------------------------------ internals
+
+    /** Squared distance of the best point found by the last successful scan. */
+    private double lastSq;
+
+    private int scanAt(int cx, int cz, double px, double py, double pz, double bestSq) {
+        int s = find(cx, cz);
+        return s == EMPTY ? -1 : scanCell(s, px, py, pz, bestSq);
+    }
+
+    /** Best point in cell {@code s} strictly closer than {@code bestSq}, or -1. */
+    private int scanCell(int s, double px, double py, double pz, double bestSq) {
+        int[] list = cells[s];
+        int best = -1;
+        for (int k = 0, n = counts[s]; k < n; k++) {
+            int i = list[k];
+            double d = group.distanceSq(i, px, py, pz);
+            if (d < bestSq) { bestSq = d; best = i; }
+        }
+        if (best >= 0) lastSq = bestSq;
+        return best;
+    }
+
+    private void within(int s, double px, double py, double pz, double r2, IntConsumer action) {
+        int[] list = cells[s];
+        for (int k = 0, n = counts[s]; k < n; k++) {
+            if (group.distanceSq(list[k], px, py, pz) <= r2) action.accept(list[k]);
+        }
+    }
+
+    private int scanAll(double px, double py, double pz, int best, double bestSq) {
+        for (int s = 0; s < cellCount; s++) {
+            if (counts[s] == 0) continue;
+            // skip cells whose column cannot beat what we have
+            double dx = gap(px, cellX[s]), dz = gap(pz, cellZ[s]);
+            if (dx * dx + dz * dz >= bestSq) continue;
+            int b = scanCell(s, px, py, pz, bestSq);
+            if (b >= 0) { best = b; bestSq = lastSq; }
+        }
+        return best;
+    }
+
+    /** Horizontal distance from {@code p} to the column starting at cell coordinate {@code c}. */
+    private static double gap(double p, int c) {
+        double lo = (double) c * CELL_SIZE, hi = lo + CELL_SIZE;
+        return p < lo ? lo - p : p > hi ? p - hi : 0;
+    }
+
+    private void add(int index, double x, double z) {
+        int cx = cell(x), cz = cell(z);
+        int s = find(cx, cz);
+        if (s == EMPTY) s = create(cx, cz);
+        int n = counts[s];
+        int[] list = cells[s];
+        if (list == null) list = cells[s] = new int[4];
+        else if (n == list.length) list = cells[s] = Arrays.copyOf(list, n * 2);
+        list[n] = index;
+        counts[s] = n + 1;
+    }
+
+    private void shift(int from, int delta) {
+        for (int s = 0; s < cellCount; s++) {
+            int[] list = cells[s];
+            for (int k = 0, n = counts[s]; k < n; k++) {
+                if (list[k] >= from) list[k] += delta;
+            }
+        }
+    }
+
+    private int find(int cx, int cz) {
+        long key = key(cx, cz);
+        int mask = keys.length - 1;
+        for (int h = hash(key) & mask; ; h = (h + 1) & mask) {
+            int s = slots[h];
+            if (s == EMPTY) return EMPTY;
+            if (keys[h] == key) return s;
+        }
+    }
+
+    private int create(int cx, int cz) {
+        if ((used + 1) * 2 > keys.length) rehash(keys.length * 2);
+        if (cellCount == counts.length) {
+            int cap = cellCount * 2;
+            cells  = Arrays.copyOf(cells, cap);
+            counts = Arrays.copyOf(counts, cap);
+            cellX  = Arrays.copyOf(cellX, cap);
+            cellZ  = Arrays.copyOf(cellZ, cap);
+        }
+        int s = cellCount++;
+        counts[s] = 0;
+        cellX[s]  = cx;
+        cellZ[s]  = cz;
+        put(key(cx, cz), s);
+        used++;
+        if (cx < minCx) minCx = cx;
+        if (cx > maxCx) maxCx = cx;
+        if (cz < minCz) minCz = cz;
+        if (cz > maxCz) maxCz = cz;
+        return s;
+    }
+
+    private void put(long key, int s) {
+        int mask = keys.length - 1;
+        int h = hash(key) & mask;
+        while (slots[h] != EMPTY) h = (h + 1) & mask;
+        keys[h]  = key;
+        slots[h] = s;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys  = new long[capacity];
+        slots = filled(capacity);
+        for (int h = 0; h < oldKeys.length; h++) {
+            if (oldSlots[h] != EMPTY) put(oldKeys[h], oldSlots[h]);
+        }
+    }
+
+    private static int cell(double v) { return (int) Math.floor(v) >> CELL_SHIFT; }
+
+    private static long key(int cx, int cz) { return ((long) cx << 32) | (cz & 0xFFFFFFFFL); }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int[] filled(int n) {
+        int[] a = new int[n];
+        Arrays.fill(a, EMPTY);
+        return a;
+    }
+}
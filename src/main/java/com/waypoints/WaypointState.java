@@ -1,35 +1,170 @@
 package com.waypoints;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
 /**
- * Holds all runtime state for the currently loaded waypoint group.
- * Thread-access: advance logic runs on the render thread; commands run on the game thread.
- * Keep mutations simple – no heavy locking needed for a client-side mod.
+ * Holds all runtime state for the active waypoint routes.
+ *
+ * Several groups can be active at once, each with its own position and colour; one of
+ * them is focused, and that is the one commands (skip, add, info…) act on and
+ * {@link #nav()} returns. Navigation lives in an immutable {@link Routes} holding one
+ * immutable {@link Nav} per route, and every change replaces it with one atomic swap, so
+ * a reader that takes {@link #routes()} or {@link #nav()} once sees groups, indices and
+ * coordinates that belong together – never an index from before a {@code /w remove}
+ * against the shorter list from after it. Settings below are plain fields; a stale read
+ * of one of those for a frame is harmless.
  */
 public class WaypointState {
 
+    /** Colour codes handed out to routes as they are shown, in order. */
+    static final char[] PALETTE = {'e', 'b', 'd', '6', 'c', '9', 'a', 'f'};
+
     private static final WaypointState INSTANCE = new WaypointState();
 
-    // ---- loaded data ----
-    public WaypointGroup loadedGroup = null;
+    /**
+     * One consistent view of a route position. {@code current} is the waypoint the
+     * player is AT (just mined / arrived at); {@code next} and {@code prev} are its wrapped
+     * neighbours. Coordinates are copied out of the group when the snapshot is made.
+     */
+    public static final class Nav {
+        public final WaypointGroup group;
+        /** {@link WaypointGroup#version()} this snapshot was taken at. */
+        public final int groupVersion;
+        /** Changes whenever the group in this slot or the position along it changes. */
+        public final int version;
+        /** Minecraft colour code the route is drawn in when it is not focused. */
+        public final char colour;
+        public final int size;
+        public final int current, next, prev;
+        public final double curX, curY, curZ;
+        public final double nextX, nextY, nextZ;
+        public final double prevX, prevY, prevZ;
+
+        private Nav(WaypointGroup group, int index, int version, char colour) {
+            int n = group == null ? 0 : group.size();
+            this.group        = group;
+            this.groupVersion = group == null ? 0 : group.version();
+            this.version      = version;
+            this.colour       = colour;
+            this.size         = n;
+            this.current      = n == 0 ? 0 : Math.floorMod(index, n);
+            this.next         = n == 0 ? 0 : Math.floorMod(index + 1, n);
+            this.prev         = n == 0 ? 0 : Math.floorMod(index - 1, n);
+            if (n == 0) {
+                curX = curY = curZ = nextX = nextY = nextZ = prevX = prevY = prevZ = 0;
+            } else {
+                curX  = group.x(current); curY  = group.y(current); curZ  = group.z(current);
+                nextX = group.x(next);    nextY = group.y(next);    nextZ = group.z(next);
+                prevX = group.x(prev);    prevY = group.y(prev);    prevZ = group.z(prev);
+            }
+        }
+
+        public boolean hasGroup() { return size > 0; }
+
+        private boolean stale() { return group != null && groupVersion != group.version(); }
+    }
 
     /**
-     * Index of the waypoint the player is CURRENTLY AT (just mined / arrived at).
-     * "next" = currentIndex + 1, "prev" = currentIndex - 1 (wrapped).
+     * Every active route, in the order they were shown, plus which one is focused. Empty
+     * routes (groups with no points) stay in the list but are skipped by the renderer.
      */
-    public int currentIndex = 0;
+    public static final class Routes {
+        public final List<Nav> all;
+        /** The focused route; a group-less Nav when nothing is active. */
+        public final Nav focused;
+        /** Bumped on every change to any route. */
+        public final int version;
+        private final Nav[] navs;
+        private final int focus;
+
+        private Routes(Nav[] navs, int focus, int version) {
+            this.navs    = navs;
+            this.focus   = focus;
+            this.version = version;
+            this.all     = Collections.unmodifiableList(Arrays.asList(navs));
+            this.focused = focus >= 0 ? navs[focus] : new Nav(null, 0, version, PALETTE[0]);
+        }
+
+        /** Slot holding {@code g}, or -1. */
+        int indexOf(WaypointGroup g) {
+            for (int i = 0; i < navs.length; i++) if (navs[i].group == g) return i;
+            return -1;
+        }
+
+        /** This set of routes with slot {@code i} moved to {@code index} (wrapped). */
+        Routes move(int i, int index) {
+            Nav[] n = navs.clone();
+            n[i] = new Nav(navs[i].group, index, version + 1, navs[i].colour);
+            return new Routes(n, focus, version + 1);
+        }
+    }
+
+    private final AtomicReference<Routes> routes = new AtomicReference<>(new Routes(new Nav[0], -1, 0));
 
     // display settings
     public boolean setupMode = false;   // show ALL waypoints in the loaded group
     public boolean enabled   = true;
 
+    // setup-mode label detail
+    /** Labels further than this (blocks) are not drawn at all. */
+    public double labelMaxDistance = 96.0;
+    /** How many of the nearest on-screen points get a full name + distance label. */
+    public int    labelFullCount   = 24;
+    /** Hard cap on labels drawn per frame across all routes; the nearest are kept. */
+    public int    labelBudget      = 256;
+
+    // multiple routes
+    /**
+     * Line primitives per frame shared by every active route. The focused route is always
+     * drawn in full and spends its share first, then the others in the order they were
+     * shown; a route that does not fit is drawn as just its current and next boxes.
+     */
+    public int    routeBudget      = 120_000;
+
+    // path overlay (outside setup mode)
+    /** Segments of the route drawn ahead of the current point, fading with distance; 0 hides the path. */
+    public int    pathAhead        = 16;
+    /** Segments of fading trail drawn behind the current point. */
+    public int    pathBehind       = 4;
+
+    // line-of-sight (see WaypointVisibility)
+    /** Dim waypoints that are behind blocks, as seen from the player's eye. */
+    public boolean visibilityMode        = false;
+    /** Only points this close (blocks) are raycast. */
+    public double  visibilityRange       = 48.0;
+    /** Hard cap on raycasts per client tick. */
+    public int     visibilityRaysPerTick = 32;
+    /** Time budget per tick for raycasting, in microseconds. */
+    public long    visibilityBudgetMicros = 1000L;
+
+    // duplicate warnings
+    /**
+     * Warn when /w add or /w insert puts a point within this many blocks of an existing one
+     * (0: on the same block). Negative turns the check off.
+     */
+    public double duplicateWarnRadius = -1;
+
     // advance settings
     /** How close (blocks, 3-D) the player must be to the NEXT waypoint to start the timer. */
     public double advanceRange   = 5.0;
     /** How long (ms) the player must stay within advanceRange before we auto-advance. */
     public long   advanceDelayMs = 2000L;
+    /** When to move on; see {@link WaypointAdvanceEngine}. */
+    public WaypointAdvancePolicy advancePolicy = new WaypointAdvancePolicy.Dwell();
 
-    // advance timer (set by renderer, never persisted)
-    public long advanceTimerStart = -1L;
+    // resync settings
+    /** Snap to the nearest waypoint when the player suddenly moves far (death, warp, knockback). */
+    public boolean autoResync   = false;
+    /** Movement in one check (blocks, 3-D) that counts as a jump. */
+    public double  resyncJump   = 32.0;
+
+    // last position seen by checkResync (NaN until the first check)
+    private double lastX = Double.NaN, lastY, lastZ;
 
     private WaypointState() {}
 
@@ -37,73 +172,236 @@ public class WaypointState {
 
     // queries
 
-    public boolean hasGroup() {
-        return loadedGroup != null && !loadedGroup.waypoints.isEmpty();
+    /**
+     * All active routes. If any group was edited since its snapshot was taken, fresh
+     * snapshots (indices wrapped into the new sizes) are swapped in first.
+     */
+    public Routes routes() {
+        Routes r = routes.get();
+        boolean stale = false;
+        for (Nav n : r.navs) stale |= n.stale();
+        if (!stale) return r;
+        Nav[] n = r.navs.clone();
+        for (int i = 0; i < n.length; i++) {
+            if (n[i].stale()) n[i] = new Nav(n[i].group, n[i].current, r.version + 1, n[i].colour);
+        }
+        Routes fresh = new Routes(n, r.focus, r.version + 1);
+        return routes.compareAndSet(r, fresh) ? fresh : routes();
     }
 
-    public int size() {
-        return loadedGroup == null ? 0 : loadedGroup.waypoints.size();
-    }
+    /** The focused route's snapshot; see {@link #routes()}. */
+    public Nav nav() { return routes().focused; }
+
+    /** The focused route's group, or null. */
+    public WaypointGroup getGroup() { return routes.get().focused.group; }
+
+    public boolean hasGroup() { return nav().hasGroup(); }
 
-    /** The waypoint the player is currently at / just finished. */
+    public int size() { return nav().size; }
+
+    /** True if {@code g} is one of the active routes. */
+    public boolean isActive(WaypointGroup g) { return g != null && routes.get().indexOf(g) >= 0; }
+
+    /**
+     * The waypoint the player is currently at / just finished, as a detached copy.
+     * Per-frame code should take {@link #nav()} once and use its indices and coordinates.
+     */
     public WaypointPoint getCurrent() {
-        if (!hasGroup()) return null;
-        return loadedGroup.waypoints.get(Math.floorMod(currentIndex, size()));
+        Nav n = nav();
+        return n.hasGroup() ? n.group.get(n.current) : null;
     }
 
-    /** The waypoint the player is heading toward next. */
+    /** The waypoint the player is heading toward next (detached copy). */
     public WaypointPoint getNext() {
-        if (!hasGroup()) return null;
-        return loadedGroup.waypoints.get(Math.floorMod(currentIndex + 1, size()));
+        Nav n = nav();
+        return n.hasGroup() ? n.group.get(n.next) : null;
     }
 
-    /** The waypoint the player just came from. */
+    /** The waypoint the player just came from (detached copy). */
     public WaypointPoint getPrev() {
-        if (!hasGroup()) return null;
-        return loadedGroup.waypoints.get(Math.floorMod(currentIndex - 1, size()));
+        Nav n = nav();
+        return n.hasGroup() ? n.group.get(n.prev) : null;
     }
 
-    public int getNextIndex()  { return Math.floorMod(currentIndex + 1, size()); }
-    public int getPrevIndex()  { return Math.floorMod(currentIndex - 1, size()); }
+    public int navVersion() { return routes.get().focused.version; }
 
-    // ------------------------------------------------------------------ mutations
+    public int getCurrentIndex() { return nav().current; }
+    public int getNextIndex()    { return nav().next; }
+    public int getPrevIndex()    { return nav().prev; }
 
+    /** Index of the waypoint closest to a position, or -1 with nothing loaded. */
+    public int nearestIndex(double x, double y, double z) {
+        Nav n = nav();
+        return n.hasGroup() ? n.group.nearest(x, y, z) : -1;
+    }
+
+    // ------------------------------------------------------------------ route set
+
+    /**
+     * Make {@code group} the focused route, starting at its first waypoint. It takes the
+     * focused slot (and colour); other active routes are left alone.
+     */
     public void load(WaypointGroup group) {
-        this.loadedGroup        = group;
-        this.currentIndex       = 0;
-        this.advanceTimerStart  = -1L;
+        if (group == null) { unload(); return; }
+        group.spatialIndex();
+        this.lastX = Double.NaN;
+        swap(r -> {
+            List<Nav> n = new ArrayList<>(r.all);
+            int focus = r.focus;
+            int existing = r.indexOf(group);
+            if (existing >= 0 && existing != focus) {
+                n.remove(existing);
+                if (focus > existing) focus--;
+            }
+            if (focus < 0) {
+                n.add(new Nav(group, 0, r.version + 1, freeColour(r)));
+                focus = n.size() - 1;
+            } else {
+                n.set(focus, new Nav(group, 0, r.version + 1, n.get(focus).colour));
+            }
+            return new Routes(n.toArray(new Nav[0]), focus, r.version + 1);
+        });
     }
 
+    /** Drop the focused route; the one shown before it (or else after it) takes focus. */
     public void unload() {
-        this.loadedGroup        = null;
-        this.currentIndex       = 0;
-        this.advanceTimerStart  = -1L;
+        swap(r -> r.focus < 0 ? r : without(r, r.focus));
+    }
+
+    /**
+     * Show {@code group} alongside the others without focusing it. Starts at its first
+     * waypoint; if it is already active only its colour changes (when one is given).
+     */
+    public void show(WaypointGroup group, Character colour) {
+        if (group == null) return;
+        group.spatialIndex();
+        swap(r -> {
+            int i = r.indexOf(group);
+            Nav[] n;
+            if (i >= 0) {
+                if (colour == null) return r;
+                n = r.navs.clone();
+                n[i] = new Nav(group, r.navs[i].current, r.version + 1, colour);
+                return new Routes(n, r.focus, r.version + 1);
+            }
+            n = Arrays.copyOf(r.navs, r.navs.length + 1);
+            n[r.navs.length] = new Nav(group, 0, r.version + 1, colour != null ? colour : freeColour(r));
+            return new Routes(n, r.focus < 0 ? r.navs.length : r.focus, r.version + 1);
+        });
+    }
+
+    /** Stop showing {@code group}. */
+    public void hide(WaypointGroup group) {
+        swap(r -> {
+            int i = r.indexOf(group);
+            return i < 0 ? r : without(r, i);
+        });
+    }
+
+    /** Hide everything but the focused route. */
+    public void hideOthers() {
+        swap(r -> r.focus < 0 || r.navs.length == 1 ? r
+                : new Routes(new Nav[] { r.navs[r.focus] }, 0, r.version + 1));
+    }
+
+    /** Focus an active route. Returns false if {@code group} is not active. */
+    public boolean focus(WaypointGroup group) {
+        Routes after = swap(r -> {
+            int i = r.indexOf(group);
+            return i < 0 || i == r.focus ? r : new Routes(r.navs, i, r.version + 1);
+        });
+        return after.indexOf(group) >= 0;
+    }
+
+    /** Put {@code replacement} in whatever slot {@code old} holds (import over an active group). */
+    public void replace(WaypointGroup old, WaypointGroup replacement) {
+        if (replacement != null) replacement.spatialIndex();
+        swap(r -> {
+            int i = r.indexOf(old);
+            if (i < 0) return r;
+            if (replacement == null) return without(r, i);
+            Nav[] n = r.navs.clone();
+            n[i] = new Nav(replacement, 0, r.version + 1, r.navs[i].colour);
+            return new Routes(n, r.focus, r.version + 1);
+        });
     }
 
+    // ------------------------------------------------------------------ movement (focused route)
+
     /** Reset pointer back to the first waypoint without unloading. */
     public void reset() {
-        this.currentIndex      = 0;
-        this.advanceTimerStart = -1L;
+        swap(r -> r.focus < 0 ? r : r.move(r.focus, 0));
     }
 
-    /** Auto-advance: next becomes current. Called by renderer when timer fires. */
+    /** Auto-advance: next becomes current. */
     public void advance() {
-        if (!hasGroup()) return;
-        currentIndex       = Math.floorMod(currentIndex + 1, size());
-        advanceTimerStart  = -1L;
+        skip(1);
+    }
+
+    /** Advance the route holding {@code group}, focused or not. Called by the advance engine. */
+    public void advance(WaypointGroup group) {
+        swap(r -> {
+            int i = r.indexOf(group);
+            return i < 0 || !r.navs[i].hasGroup() ? r : r.move(i, r.navs[i].current + 1);
+        });
     }
 
     /** Skip forward (positive) or backward (negative) by n steps. */
     public void skip(int n) {
-        if (!hasGroup()) return;
-        currentIndex       = Math.floorMod(currentIndex + n, size());
-        advanceTimerStart  = -1L;
+        swap(r -> r.focus < 0 || !r.focused.hasGroup() ? r : r.move(r.focus, r.focused.current + n));
+    }
+
+    /**
+     * Feed the player's position once per tick. With {@link #autoResync} on, a jump of more
+     * than {@link #resyncJump} blocks since the last call moves the focused route to the
+     * nearest waypoint. Returns true if it did.
+     */
+    public boolean checkResync(double x, double y, double z) {
+        double dx = x - lastX, dy = y - lastY, dz = z - lastZ;
+        boolean first = Double.isNaN(lastX);
+        lastX = x; lastY = y; lastZ = z;
+        Nav n = nav();
+        if (!autoResync || first || !n.hasGroup()) return false;
+        if (dx * dx + dy * dy + dz * dz <= resyncJump * resyncJump) return false;
+
+        int nearest = n.group.nearest(x, y, z);
+        if (nearest < 0 || nearest == n.current) return false;
+        skipTo(nearest);
+        return true;
     }
 
     /** Jump directly to a 0-based index. */
     public void skipTo(int index) {
-        if (!hasGroup() || index < 0 || index >= size()) return;
-        currentIndex       = index;
-        advanceTimerStart  = -1L;
+        swap(r -> r.focus < 0 || index < 0 || index >= r.focused.group.size() ? r : r.move(r.focus, index));
+    }
+
+    // ------------------------------------------------------------------ internals
+
+    /** Apply {@code change} to the freshest snapshot, atomically. */
+    private Routes swap(UnaryOperator<Routes> change) {
+        while (true) {
+            Routes r = routes();
+            Routes next = change.apply(r);
+            if (next == r || routes.compareAndSet(r, next)) return next;
+        }
+    }
+
+    private static Routes without(Routes r, int i) {
+        Nav[] n = new Nav[r.navs.length - 1];
+        System.arraycopy(r.navs, 0, n, 0, i);
+        System.arraycopy(r.navs, i + 1, n, i, n.length - i);
+        int focus = r.focus;
+        if (i < focus || (i == focus && focus > 0)) focus--; // the one before takes over
+        return new Routes(n, n.length == 0 ? -1 : focus, r.version + 1);
+    }
+
+    /** First palette colour no active route uses (the first one again when all are taken). */
+    private static char freeColour(Routes r) {
+        for (char c : PALETTE) {
+            boolean used = false;
+            for (Nav n : r.navs) used |= n.colour == c;
+            if (!used) return c;
+        }
+        return PALETTE[r.navs.length % PALETTE.length];
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,8 @@ package com.waypoints;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
@@ -9,111 +11,910 @@ import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Persists waypoint groups to &lt;configDir&gt;/waypoints_groups.json.
+ * Persists waypoint groups under &lt;configDir&gt;/waypoints/: a small index.json listing
+ * every group, one shard file per group in groups/, and an append-only journal.bin.
+ * Only the index (plus the journal) is read at startup; a group's points are read the
+ * first time {@link #getGroup} asks for it.
  * Uses an atomic write (write to .tmp then rename) to prevent corruption.
  * Adapted from the Notenoughfakepixel CHwaypoints.
+ *
+ * Edits go through the mutation methods below, each of which appends a small record to
+ * the journal instead of rewriting the group. Once the journal passes
+ * {@link #COMPACT_THRESHOLD} the touched shards and the index are rewritten and the journal
+ * starts over under a new generation. Shards carry the generation they were written in,
+ * so replaying after a crash mid-compaction skips records a shard already contains.
+ *
+ * Saves requested through {@link #scheduleSave()} are coalesced over {@link #saveDelayMs}.
+ * When the window closes the pending records (and, when compacting, the dirty groups) are
+ * taken on the game thread and written by a single background thread, so the game thread
+ * never waits on Gson or the disk.
+ *
+ * Edits made through the mutation methods are also recorded in an in-memory
+ * {@link WaypointHistory} for {@link #undo} and {@link #redo}.
+ *
+ * Reads never lock: every mutation republishes an immutable {@link View} of the index
+ * (copy-on-write, O(groups)), and the query methods below answer from whichever view is
+ * current. Compaction writes the index straight from that view.
+ *
+ * Shards are pretty-printed JSON by default; {@link #convertGroup} switches a group to the
+ * memory-mapped binary layout of {@link WaypointBinaryFormat} (and back).
+ *
+ * A legacy single-file waypoints_groups.json is migrated on first load and kept as
+ * waypoints_groups.json.migrated.
  */
 public class WaypointStorage {
 
     private static final WaypointStorage INSTANCE = new WaypointStorage();
 
-    // groups keyed by lowercase name for case-insensitive lookups
-    private final Map<String, WaypointGroup> groups = new LinkedHashMap<>();
-    private final Gson gson    = new GsonBuilder().setPrettyPrinting().create();
+    private static final int  INDEX_VERSION     = 1;
+    /** Journal size (bytes) after which the next save folds it back into the shards. */
+    private static final long COMPACT_THRESHOLD = 256 * 1024;
+
+    /**
+     * One row of index.json – enough to list a group without reading its shard. Rows in a
+     * published {@link View} are copies and are never modified.
+     */
+    static final class Entry {
+        String name;
+        String description;
+        int    size;
+        String file;
+
+        Entry() {}
+
+        Entry(String name, String description, int size, String file) {
+            this.name        = name;
+            this.description = description;
+            this.size        = size;
+            this.file        = file;
+        }
+    }
+
+    /** Read-only view of a group for listings; never forces a shard load. */
+    public static final class GroupInfo {
+        public final String name;
+        public final String description;
+        public final int    size;
+
+        GroupInfo(String name, String description, int size) {
+            this.name        = name;
+            this.description = description;
+            this.size        = size;
+        }
+    }
+
+    private static final class Index {
+        int  version = INDEX_VERSION;
+        long generation;
+        List<Entry> groups = new ArrayList<>();
+    }
+
+    /**
+     * Immutable picture of the index, swapped in whole after every change. Groups in
+     * {@code loaded} are the live instances; only the map itself is frozen.
+     */
+    private static final class View {
+        static final View EMPTY = new View(Collections.<String>emptyList(), Collections.<GroupInfo>emptyList(),
+                Collections.<Entry>emptyList(), Collections.<String, WaypointGroup>emptyMap(), new WaypointNameIndex());
+
+        final List<String>     names;   // lowercase keys, insertion order
+        final Set<String>      keys;
+        final List<GroupInfo>  infos;
+        final List<Entry>      entries; // what index.json would say right now
+        final Map<String, WaypointGroup> loaded;
+        final WaypointNameIndex completion;
+
+        View(List<String> names, List<GroupInfo> infos, List<Entry> entries, Map<String, WaypointGroup> loaded,
+             WaypointNameIndex completion) {
+            this.names   = Collections.unmodifiableList(names);
+            this.keys    = Collections.unmodifiableSet(new HashSet<>(names));
+            this.infos   = Collections.unmodifiableList(infos);
+            this.entries = Collections.unmodifiableList(entries);
+            this.loaded  = Collections.unmodifiableMap(loaded);
+            this.completion = completion; // a private copy, never edited
+        }
+    }
+
+    /** Everything one background write needs, copied off the live state. */
+    private static final class Snapshot {
+        List<byte[]> records = new ArrayList<>();
+        long generation;
+        // compaction only
+        boolean compact;
+        long newGeneration;
+        List<Entry> index = Collections.emptyList();
+        final Map<String, WaypointGroup> shards = new LinkedHashMap<>();
+        final List<String> deleted = new ArrayList<>();
+    }
+
+    /** What readers see; republished by {@link #publish} under the monitor. */
+    private volatile View view = View.EMPTY;
+
+    // index keyed by lowercase name for case-insensitive lookups
+    private final Map<String, Entry> index = new LinkedHashMap<>();
+    // the same names, sorted for completion; edited alongside index, copied into each view
+    private final WaypointNameIndex groupNames = new WaypointNameIndex();
+    // groups whose shard has been read (or that were created this session)
+    private final Map<String, WaypointGroup> groups = new HashMap<>();
+    // generation of the shard each loaded group was read from
+    private final Map<String, Long> shardGenerations = new HashMap<>();
+    // groups edited since the last compaction
+    private final Set<String>  dirtyKeys    = new HashSet<>();
+    private final WaypointHistory history = new WaypointHistory();
+    private final List<String> deletedFiles = new ArrayList<>();
+    private final Gson gson    = new GsonBuilder().setPrettyPrinting()
+            .registerTypeAdapter(WaypointGroup.class, new WaypointGroup.GsonAdapter()).create();
     private final AtomicBoolean dirty = new AtomicBoolean(false);
-    private File file;
+    private File dir;
+    private File shardDir;
+    private File indexFile;
+    private File legacyFile;
+
+    // journal
+    private WaypointJournal journal;
+    private List<byte[]> pendingRecords = new ArrayList<>();
+    /** Generation of the journal records are currently being appended to. */
+    private long generation;
+    /** Bytes in the current journal generation, including records not yet written. */
+    private long journalBytes;
+    private boolean compactRequested;
+    /** Set while {@link #load} replays the journal; records from this generation apply. */
+    private long replayGeneration = -1L;
+
+    // background writer
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Waypoints-Writer");
+        t.setDaemon(true);
+        return t;
+    });
+    /** True while a flush is queued on the writer; further marks ride along with it. */
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+    /** Serialises disk writes between the writer thread and shutdown/forced saves. */
+    private final Object ioLock = new Object();
+    /** How long shutdown waits for writes already queued on the writer. */
+    private static final long SHUTDOWN_WAIT_SECONDS = 10L;
+    /** Window (ms) over which dirty marks are batched into one write. */
+    private volatile long saveDelayMs = 500L;
+    /** Where snapshots are taken; the mod points this at the client thread. */
+    private volatile Executor snapshotExecutor = Runnable::run;
 
-    private WaypointStorage() {}
+    /** Package-private so the benchmarks can run isolated instances on temp directories. */
+    WaypointStorage() {}
 
     public static WaypointStorage getInstance() { return INSTANCE; }
 
+    /** The waypoints config directory, or null before {@link #initFile}. */
+    public File getDirectory() { return dir; }
+
     // ------------------------------------------------------------------ init / load
 
     public void initFile(File configDir) {
-        if (file != null) return;
-        configDir.mkdirs();
-        file = new File(configDir, "waypoints_groups.json");
+        if (dir != null) return;
+        dir        = new File(configDir, "waypoints");
+        shardDir   = new File(dir, "groups");
+        indexFile  = new File(dir, "index.json");
+        legacyFile = new File(configDir, "waypoints_groups.json");
+        journal    = new WaypointJournal(new File(dir, "journal.bin"));
+        shardDir.mkdirs();
+    }
+
+    /**
+     * Reads the group index and replays the journal over it. Point lists are loaded on
+     * demand by {@link #getGroup}, except for groups the journal touches.
+     */
+    public void load() {
+        if (dir == null) return;
+        synchronized (this) {
+            index.clear();
+            groupNames.clear();
+            history.clear();
+            groups.clear();
+            shardGenerations.clear();
+            dirtyKeys.clear();
+            deletedFiles.clear();
+            pendingRecords = new ArrayList<>();
+            generation   = 0L;
+            journalBytes = 0L;
+            dirty.set(false);
+            publish();
+        }
+        if (!indexFile.exists() && legacyFile.exists()) {
+            migrateLegacy();
+            return;
+        }
+        if (indexFile.exists()) loadIndex();
+        replayJournal();
+    }
+
+    private synchronized void loadIndex() {
+        try (Reader r = reader(indexFile)) {
+            Index loaded = gson.fromJson(r, Index.class);
+            if (loaded == null || loaded.groups == null) return;
+            generation = loaded.generation;
+            for (Entry e : loaded.groups) {
+                if (e == null || e.name == null || e.file == null) continue;
+                if (e.description == null) e.description = "";
+                if (index.put(e.name.toLowerCase(), e) == null) groupNames.add(e.name, 0);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        publish();
+    }
+
+    private synchronized void replayJournal() {
+        long jGen = journal.readGeneration();
+        if (jGen < generation) return; // missing, unreadable, or already folded into the shards
+        replayGeneration = jGen;
+        try {
+            journal.replay(this::applyRecord);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            replayGeneration = -1L;
+            publish();
+        }
+        generation   = jGen;
+        journalBytes = journal.length();
+        if (journalBytes >= COMPACT_THRESHOLD) compactRequested = true;
     }
 
-    public synchronized void load() {
-        if (file == null || !file.exists()) return;
-        try (Reader r = new BufferedReader(
-                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+    /**
+     * One-off conversion of the old single-file layout: parse it fully, write every group
+     * to its own shard plus the index, then move the old file aside.
+     */
+    private void migrateLegacy() {
+        try (Reader r = reader(legacyFile)) {
             Type type = new TypeToken<Map<String, WaypointGroup>>() {}.getType();
             Map<String, WaypointGroup> loaded = gson.fromJson(r, type);
             if (loaded != null) {
-                groups.clear();
-                // Normalise keys to lowercase and ensure each group has a non-null waypoints list
-                for (Map.Entry<String, WaypointGroup> entry : loaded.entrySet()) {
-                    WaypointGroup g = entry.getValue();
-                    if (g == null) continue;
-                    if (g.waypoints == null) g.waypoints = new ArrayList<>();
-                    if (g.name == null)      g.name = entry.getKey();
-                    groups.put(entry.getKey().toLowerCase(), g);
+                synchronized (this) {
+                    // Normalise keys to lowercase and ensure each group has a name
+                    for (Map.Entry<String, WaypointGroup> entry : loaded.entrySet()) {
+                        WaypointGroup g = entry.getValue();
+                        if (g == null) continue;
+                        if (g.name == null)        g.name = entry.getKey();
+                        if (g.description == null) g.description = "";
+                        applyPutGroup(g);
+                    }
+                    publish();
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
+            return;
         }
-        dirty.set(false);
+        saveForce();
+        if (indexFile.exists()) {
+            try {
+                Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // queries – lock-free, answered from the current view
+
+    /**
+     * Name, description and size of every group, in insertion order. Does not load shards.
+     * The list is unmodifiable and shared; it does not change after it is returned.
+     */
+    public List<GroupInfo> getGroupInfos() {
+        return view.infos;
+    }
+
+    /** Lowercase keys of every group, in insertion order. Unmodifiable, like {@link #getGroupInfos}. */
+    public List<String> getGroupNames() {
+        return view.names;
     }
 
-    // queries
+    /** Group names starting with {@code prefix} (ignoring case), sorted, at most {@code limit}. */
+    public List<String> completeGroupNames(String prefix, int limit) {
+        return view.completion.complete(prefix, limit);
+    }
 
-    public synchronized Map<String, WaypointGroup> getGroups() {
-        return Collections.unmodifiableMap(new LinkedHashMap<>(groups));
+    public boolean hasGroup(String name) {
+        return name != null && view.keys.contains(name.toLowerCase());
     }
 
-    public synchronized WaypointGroup getGroup(String name) {
-        return name == null ? null : groups.get(name.toLowerCase());
+    /** Returns the group, reading its shard from disk the first time it is asked for. */
+    public WaypointGroup getGroup(String name) {
+        if (name == null) return null;
+        String key = name.toLowerCase();
+        View v = view;
+        WaypointGroup g = v.loaded.get(key);
+        if (g != null || !v.keys.contains(key)) return g;
+        synchronized (this) {
+            g = group(key);
+            publish();
+            return g;
+        }
+    }
+
+    /** {@link #getGroup} for callers already holding the monitor; does not republish. */
+    private WaypointGroup group(String key) {
+        WaypointGroup g = groups.get(key);
+        if (g != null) return g;
+        Entry e = index.get(key);
+        if (e == null) return null;
+        g = readShard(key, e);
+        groups.put(key, g);
+        return g;
+    }
+
+    private WaypointGroup readShard(String key, Entry e) {
+        WaypointGroup g = null;
+        long gen = 0L;
+        File f = new File(shardDir, e.file);
+        if (f.exists()) {
+            try {
+                if (WaypointBinaryFormat.isBinary(e.file)) {
+                    WaypointBinaryFormat.Shard shard = WaypointBinaryFormat.read(f);
+                    g   = shard.group;
+                    gen = shard.generation;
+                } else {
+                    try (Reader r = reader(f)) {
+                        JsonObject obj = new JsonParser().parse(r).getAsJsonObject();
+                        if (obj.has("generation")) gen = obj.get("generation").getAsLong();
+                        g = gson.fromJson(obj, WaypointGroup.class);
+                    }
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (g == null)             g = new WaypointGroup(e.name, e.description);
+        if (g.name == null)        g.name = e.name;
+        if (g.description == null) g.description = "";
+        shardGenerations.put(key, gen);
+        return g;
     }
 
-    //  mutations
+    //  mutations – each applies in memory, then journals one record
 
+    /** Add or replace a whole group (create, import). */
     public synchronized void putGroup(WaypointGroup group) {
         if (group == null || group.name == null) return;
-        groups.put(group.name.toLowerCase(), group);
-        dirty.set(true);
+        String key = key(group);
+        WaypointGroup old = index.containsKey(key) ? group(key) : null;
+        WaypointPointVector before = old == null ? null : history.current(key, old);
+        applyPutGroup(group);
+        log(WaypointJournal.putGroup(group));
+        history.record(key, group.name, group.description, old == null ? "create" : "replace",
+                before, group, WaypointPointVector.of(group));
+        publish();
     }
 
     public synchronized boolean removeGroup(String name) {
         if (name == null) return false;
-        boolean removed = groups.remove(name.toLowerCase()) != null;
-        if (removed) dirty.set(true);
+        String key = name.toLowerCase();
+        WaypointGroup old = group(key); // read first, so the delete can be undone
+        if (old == null) return false;
+        WaypointPointVector before = history.current(key, old);
+        applyRemoveGroup(key);
+        log(WaypointJournal.removeGroup(key));
+        history.record(key, old.name, old.description, "delete", before, null, null);
+        publish();
+        return true;
+    }
+
+    /** Rename a group in place. Fails if the old name is unknown or the new one is taken. */
+    public synchronized boolean renameGroup(String oldName, String newName) {
+        if (oldName == null || newName == null) return false;
+        if (!applyRenameGroup(oldName.toLowerCase(), newName)) return false;
+        log(WaypointJournal.renameGroup(oldName.toLowerCase(), newName));
+        history.renamed(oldName.toLowerCase(), newName.toLowerCase(), newName);
+        publish();
+        return true;
+    }
+
+    public synchronized void addPoint(WaypointGroup group, WaypointPoint wp) {
+        WaypointPointVector before = historyBefore(group);
+        group.add(wp);
+        if (before != null) {
+            log(WaypointJournal.addPoint(key(group), wp));
+            recordEdit(group, "add", before, before.insert(before.size(), wp.x, wp.y, wp.z, wp.name));
+            publish();
+        }
+    }
+
+    /**
+     * Insert at a 0-based index. With {@code renumber}, purely numeric labels after it are
+     * bumped like {@link WaypointGroup#renumberNumericNames} – journaled as a flag, not
+     * as one rename per point.
+     */
+    public synchronized void insertPoint(WaypointGroup group, int index, WaypointPoint wp, boolean renumber) {
+        WaypointPointVector before = historyBefore(group);
+        group.insert(index, wp);
+        if (renumber) group.renumberNumericNames(index + 1);
+        if (before != null) {
+            log(WaypointJournal.insertPoint(key(group), index, wp, renumber));
+            WaypointPointVector after = before.insert(index, wp.x, wp.y, wp.z, wp.name);
+            recordEdit(group, "insert", before, renumber ? after.syncNames(group, index + 1) : after);
+            publish();
+        }
+    }
+
+    public synchronized WaypointPoint removePoint(WaypointGroup group, int index) {
+        WaypointPointVector before = historyBefore(group);
+        WaypointPoint removed = group.get(index);
+        group.remove(index);
+        if (before != null) {
+            log(WaypointJournal.removePoint(key(group), index));
+            recordEdit(group, "remove", before, before.remove(index));
+            publish();
+        }
         return removed;
     }
 
-    public void markDirty() { dirty.set(true); }
+    /**
+     * Remove several points at once (see {@link WaypointGroup#removeAll}). Journaled as a
+     * whole-group record and undone as one edit.
+     */
+    public synchronized void removePoints(WaypointGroup group, int[] indices, boolean renumber, String what) {
+        if (indices.length == 0) return;
+        WaypointPointVector before = historyBefore(group);
+        group.removeAll(indices, renumber);
+        if (before != null) {
+            log(WaypointJournal.putGroup(group));
+            recordEdit(group, what, before, WaypointPointVector.of(group));
+            publish();
+        }
+    }
+
+    public synchronized void renamePoint(WaypointGroup group, int index, String name) {
+        WaypointPointVector before = historyBefore(group);
+        group.setName(index, name);
+        if (before != null) {
+            log(WaypointJournal.renamePoint(key(group), index, name));
+            recordEdit(group, "rename", before, before.setName(index, name));
+        }
+    }
+
+    /**
+     * Reorder a group's points (see {@link WaypointGroup#reorder}). Every point moves, so
+     * this is journaled as a whole-group record.
+     */
+    public synchronized void reorderGroup(WaypointGroup group, int[] order, boolean renumber) {
+        WaypointPointVector before = historyBefore(group);
+        group.reorder(order, renumber);
+        if (before != null) {
+            log(WaypointJournal.putGroup(group));
+            recordEdit(group, "reorder", before, WaypointPointVector.of(group));
+        }
+    }
+
+    //  undo / redo
+
+    /**
+     * Put back the group the most recent edit changed, as it was before. Returns a short
+     * description of what was undone ("remove in mines"), or null if there is nothing to undo.
+     */
+    public synchronized String undo() {
+        WaypointHistory.Step s = history.popUndo();
+        if (s == null) return null;
+        restore(s, s.before);
+        history.pushRedo(s);
+        return s.what + " in " + s.name;
+    }
+
+    /** Re-apply the most recently undone edit. Same return convention as {@link #undo}. */
+    public synchronized String redo() {
+        WaypointHistory.Step s = history.popRedo();
+        if (s == null) return null;
+        restore(s, s.after);
+        history.pushUndo(s);
+        return s.what + " in " + s.name;
+    }
+
+    public synchronized int undoCount() { return history.undoCount(); }
+    public synchronized int redoCount() { return history.redoCount(); }
+
+    public synchronized int getUndoDepth() { return history.depth(); }
+
+    public synchronized void setUndoDepth(int depth) { history.setDepth(depth); }
+
+    /**
+     * Make the step's group hold {@code points} (null: not exist). An existing group is
+     * refilled in place, so anything holding it (the loaded route) sees the change.
+     * Journaled as a whole-group record.
+     */
+    private void restore(WaypointHistory.Step s, WaypointPointVector points) {
+        if (points == null) {
+            if (applyRemoveGroup(s.key)) log(WaypointJournal.removeGroup(s.key));
+            history.track(s.key, null, null);
+        } else {
+            WaypointGroup g = index.containsKey(s.key) ? group(s.key) : null;
+            if (g == null) {
+                g = new WaypointGroup(s.name, s.description);
+                points.copyTo(g);
+                applyPutGroup(g);
+            } else {
+                points.copyTo(g);
+                dirtyKeys.add(s.key);
+            }
+            log(WaypointJournal.putGroup(g));
+            history.track(s.key, g, points);
+        }
+        publish();
+    }
+
+    /** The history's version of {@code g} before an edit, or null if {@code g} is not stored. */
+    private WaypointPointVector historyBefore(WaypointGroup g) {
+        return isStored(g) ? history.current(key(g), g) : null;
+    }
+
+    private void recordEdit(WaypointGroup g, String what, WaypointPointVector before, WaypointPointVector after) {
+        history.record(key(g), g.name, g.description, what, before, g, after);
+    }
+
+    /**
+     * Switch a group's shard between JSON and the binary format. The new shard and the
+     * index are written by the next save, which is forced to compact; the old file is only
+     * deleted after the index points away from it.
+     */
+    public synchronized boolean convertGroup(String name, boolean binary) {
+        if (name == null) return false;
+        String key = name.toLowerCase();
+        Entry e = index.get(key);
+        if (e == null || WaypointBinaryFormat.isBinary(e.file) == binary) return false;
+        group(key); // the shard has to be in memory to be rewritten
+        deletedFiles.add(e.file);
+        e.file = shardFileName(key, binary);
+        deletedFiles.remove(e.file);
+        dirtyKeys.add(key);
+        markDirty();
+        return true;
+    }
+
+    /** Flag the index for rewriting (descriptions, ordering) at the next compaction. */
+    public synchronized void markDirty() {
+        compactRequested = true;
+        dirty.set(true);
+        publish();
+    }
+
+    private static String key(WaypointGroup g) { return g.name.toLowerCase(); }
+
+    /** True if {@code g} is the live instance held for its key (not a detached copy). */
+    private boolean isStored(WaypointGroup g) {
+        return g.name != null && groups.get(key(g)) == g;
+    }
+
+    private void log(byte[] record) {
+        pendingRecords.add(record);
+        journalBytes += record.length + 8;
+        dirty.set(true);
+    }
+
+    private void applyPutGroup(WaypointGroup group) {
+        String key = key(group);
+        Entry e = index.get(key);
+        if (e == null) {
+            e = new Entry(group.name, group.description, group.size(), shardFileName(key, false));
+            index.put(key, e);
+            groupNames.add(group.name, 0);
+            deletedFiles.remove(e.file);
+        }
+        groups.put(key, group);
+        dirtyKeys.add(key);
+    }
+
+    private boolean applyRemoveGroup(String key) {
+        Entry e = index.remove(key);
+        if (e == null) return false;
+        groupNames.remove(key, 0);
+        groups.remove(key);
+        shardGenerations.remove(key);
+        dirtyKeys.remove(key);
+        deletedFiles.add(e.file);
+        return true;
+    }
+
+    private boolean applyRenameGroup(String oldKey, String newName) {
+        String newKey = newName.toLowerCase();
+        if (!index.containsKey(oldKey) || (index.containsKey(newKey) && !newKey.equals(oldKey))) return false;
+        WaypointGroup g = group(oldKey);
+        Long gen = shardGenerations.get(oldKey);
+        applyRemoveGroup(oldKey);
+        g.name = newName;
+        applyPutGroup(g);
+        if (gen != null) shardGenerations.put(newKey, gen);
+        return true;
+    }
+
+    /** Decode one journal record and apply it without journaling it again. */
+    private void applyRecord(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case WaypointJournal.OP_PUT_GROUP: {
+                WaypointGroup g = new WaypointGroup(in.readUTF(), WaypointJournal.readNullable(in));
+                if (g.description == null) g.description = "";
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) g.add(WaypointJournal.readPoint(in));
+                if (!shardIsNewer(key(g))) applyPutGroup(g);
+                break;
+            }
+            case WaypointJournal.OP_REMOVE_GROUP:
+                applyRemoveGroup(in.readUTF());
+                break;
+            case WaypointJournal.OP_RENAME_GROUP:
+                applyRenameGroup(in.readUTF(), in.readUTF());
+                break;
+            case WaypointJournal.OP_ADD_POINT: {
+                String key = in.readUTF();
+                WaypointPoint wp = WaypointJournal.readPoint(in);
+                WaypointGroup g = replayTarget(key);
+                if (g != null) g.add(wp);
+                break;
+            }
+            case WaypointJournal.OP_INSERT_POINT: {
+                String key = in.readUTF();
+                int idx = in.readInt();
+                WaypointPoint wp = WaypointJournal.readPoint(in);
+                boolean renumber = in.readBoolean();
+                WaypointGroup g = replayTarget(key);
+                if (g != null) {
+                    g.insert(idx, wp);
+                    if (renumber) g.renumberNumericNames(idx + 1);
+                }
+                break;
+            }
+            case WaypointJournal.OP_REMOVE_POINT: {
+                String key = in.readUTF();
+                int idx = in.readInt();
+                WaypointGroup g = replayTarget(key);
+                if (g != null) g.remove(idx);
+                break;
+            }
+            case WaypointJournal.OP_RENAME_POINT: {
+                String key = in.readUTF();
+                int idx = in.readInt();
+                String name = WaypointJournal.readNullable(in);
+                WaypointGroup g = replayTarget(key);
+                if (g != null) g.setName(idx, name);
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal op " + op);
+        }
+    }
+
+    /** The group a replayed point edit applies to, or null if its shard already has it. */
+    private WaypointGroup replayTarget(String key) {
+        WaypointGroup g = group(key);
+        if (g == null || shardIsNewer(key)) return null;
+        dirtyKeys.add(key);
+        return g;
+    }
+
+    /** A shard written by a compaction that the index never caught up with. */
+    private boolean shardIsNewer(String key) {
+        if (group(key) == null) return false;
+        Long gen = shardGenerations.get(key);
+        return gen != null && gen > replayGeneration;
+    }
+
+    /**
+     * Rebuild the reader view from the live maps. Loaded groups report their current name,
+     * description and size; the rest report what the index said.
+     */
+    private void publish() {
+        int n = index.size();
+        List<String>    names   = new ArrayList<>(n);
+        List<GroupInfo> infos   = new ArrayList<>(n);
+        List<Entry>     entries = new ArrayList<>(n);
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+            Entry src = e.getValue();
+            WaypointGroup g = groups.get(e.getKey());
+            String name = g != null ? g.name        : src.name;
+            String desc = g != null ? g.description : src.description;
+            int    size = g != null ? g.size()      : src.size;
+            names.add(e.getKey());
+            infos.add(new GroupInfo(name, desc, size));
+            entries.add(new Entry(name, desc, size, src.file));
+        }
+        view = new View(names, infos, entries, new HashMap<>(groups), groupNames.copy());
+    }
+
+    /** Shard names are the sanitised key, suffixed with a hash when sanitising lost information. */
+    private String shardFileName(String key, boolean binary) {
+        String safe = key.replaceAll("[^a-z0-9_-]", "_");
+        if (safe.isEmpty() || !safe.equals(key))
+            safe = safe + "-" + Integer.toHexString(key.hashCode());
+        return safe + (binary ? WaypointBinaryFormat.EXTENSION : ".json");
+    }
 
     // persistence
 
-    public synchronized void saveIfDirty() {
-        if (!dirty.get()) return;
-        saveForce();
+    public long getSaveDelayMs() { return saveDelayMs; }
+
+    public void setSaveDelayMs(long ms) { saveDelayMs = Math.max(0L, ms); }
+
+    /** Run snapshots on the thread that mutates the groups. */
+    public void setSnapshotExecutor(Executor executor) {
+        snapshotExecutor = executor == null ? Runnable::run : executor;
+    }
+
+    /**
+     * Queue a background write of everything journaled so far. Every call made before the
+     * queued write starts is folded into it, so a burst of edits costs one write.
+     */
+    public void scheduleSave() {
+        dirty.set(true);
+        if (!savePending.compareAndSet(false, true)) return;
+        try {
+            writer.schedule(() -> snapshotExecutor.execute(this::queueSnapshot),
+                    saveDelayMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // writer already shut down – fall back to a synchronous save
+            savePending.set(false);
+            saveIfDirty();
+        }
+    }
+
+    /** Runs on the snapshot executor: take the pending work, hand it to the writer thread. */
+    private void queueSnapshot() {
+        savePending.set(false);
+        Snapshot snap = snapshotIfDirty(false);
+        if (snap == null) return;
+        try {
+            writer.execute(() -> write(snap));
+        } catch (Exception e) {
+            write(snap);
+        }
+    }
+
+    public void saveIfDirty() {
+        Snapshot snap = snapshotIfDirty(false);
+        if (snap != null) write(snap);
+    }
+
+    /** Fold the journal into fresh shards and index right now. */
+    public void saveForce() {
+        Snapshot snap = snapshotIfDirty(true);
+        if (snap != null) write(snap);
     }
 
-    public synchronized void saveForce() {
-        if (file == null) return;
-        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    /**
+     * Flush anything still pending and stop the writer. Called from the JVM shutdown hook.
+     * Snapshots already handed to the writer own records that are no longer pending here,
+     * so they are let finish rather than dropped.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean compact;
+        synchronized (this) {
+            // leave a compacted store behind so the next start has nothing to replay
+            compact = journalBytes > 0;
+        }
+        if (compact) saveForce();
+        else         saveIfDirty();
+    }
+
+    /**
+     * Takes the pending journal records and clears the dirty state in one step, so marks
+     * made after this point schedule another write instead of being lost. When the journal
+     * is due for compaction, also copies the index and every group edited since the last
+     * one. Returns null when clean.
+     */
+    private synchronized Snapshot snapshotIfDirty(boolean forceCompact) {
+        if (!dirty.getAndSet(false) && !forceCompact) return null;
+        Snapshot snap = new Snapshot();
+        snap.records    = pendingRecords;
+        snap.generation = generation;
+        pendingRecords  = new ArrayList<>();
+
+        if (!forceCompact && !compactRequested && journalBytes < COMPACT_THRESHOLD) return snap;
+
+        snap.compact       = true;
+        snap.newGeneration = ++generation;
+        // groups can be edited in place (descriptions), so make sure the view is current
+        publish();
+        View v = view;
+        snap.index = v.entries;
+        for (int i = 0; i < v.entries.size(); i++) {
+            Entry e = v.entries.get(i);
+            String key = v.names.get(i);
+            WaypointGroup g = v.loaded.get(key);
+            if (g != null && (forceCompact || dirtyKeys.contains(key))) {
+                snap.shards.put(e.file, g.copy());
+                shardGenerations.put(key, snap.newGeneration);
+            }
+        }
+        snap.deleted.addAll(deletedFiles);
+        dirtyKeys.clear();
+        deletedFiles.clear();
+        journalBytes     = 0L;
+        compactRequested = false;
+        return snap;
+    }
+
+    private void write(Snapshot snap) {
+        if (dir == null) return;
+        synchronized (ioLock) {
+            shardDir.mkdirs();
+            boolean appended = false;
+            try {
+                // records first: until the index moves on, the journal is the source of truth
+                journal.append(snap.generation, snap.records);
+                appended = true;
+                if (!snap.compact) return;
+                for (Map.Entry<String, WaypointGroup> e : snap.shards.entrySet()) {
+                    File target = new File(shardDir, e.getKey());
+                    if (WaypointBinaryFormat.isBinary(e.getKey())) {
+                        WaypointBinaryFormat.write(target, e.getValue(), snap.newGeneration);
+                    } else {
+                        JsonObject shard = gson.toJsonTree(e.getValue()).getAsJsonObject();
+                        shard.addProperty("generation", snap.newGeneration);
+                        writeJson(target, shard);
+                    }
+                }
+                // the index goes after the shards so it never points at a shard that was not written
+                Index idx = new Index();
+                idx.generation = snap.newGeneration;
+                idx.groups     = snap.index;
+                writeJson(indexFile, idx);
+                journal.reset(snap.newGeneration);
+                for (String f : snap.deleted)
+                    Files.deleteIfExists(new File(shardDir, f).toPath());
+            } catch (Exception e) {
+                e.printStackTrace();
+                requeue(snap, appended); // keep the edits queued for the next attempt
+            }
+        }
+    }
+
+    private synchronized void requeue(Snapshot snap, boolean appended) {
+        if (!appended && !snap.records.isEmpty() && snap.generation == generation) {
+            snap.records.addAll(pendingRecords);
+            pendingRecords = snap.records;
+        }
+        if (snap.compact) {
+            for (Entry e : snap.index)
+                if (snap.shards.containsKey(e.file)) dirtyKeys.add(e.name.toLowerCase());
+            for (String f : snap.deleted)
+                if (!deletedFiles.contains(f)) deletedFiles.add(f);
+            compactRequested = true;
+        }
+        dirty.set(true);
+    }
+
+    private void writeJson(File target, Object value) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
         try (Writer w = new BufferedWriter(new OutputStreamWriter(
                 Files.newOutputStream(tmp.toPath(),
                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
                 StandardCharsets.UTF_8))) {
-            gson.toJson(groups, w);
+            gson.toJson(value, w);
             w.flush();
-            try {
-                Files.move(tmp.toPath(), file.toPath(),
-                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            } catch (AtomicMoveNotSupportedException ex) {
-                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            }
-            dirty.set(false);
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException | RuntimeException e) {
             try { Files.deleteIfExists(tmp.toPath()); } catch (Exception ignored) {}
+            throw e;
+        }
+        try {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
-}
\ No newline at end of file
+
+    private static Reader reader(File f) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,335 @@
+package com.waypoints;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.MovingObjectPosition;
+import net.minecraft.util.Vec3;
+import net.minecraft.world.IWorldAccess;
+import net.minecraft.world.World;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line-of-sight cache for the visibility mode ({@link WaypointState#visibilityMode}): which
+ * waypoints near the player can be seen from their eye, so the renderer can dim the ones
+ * behind walls.
+ *
+ * Candidates are the points of every active route within {@link WaypointState#visibilityRange},
+ * nearest first, gathered again only when the player has moved {@link #MOVE_THRESHOLD} blocks
+ * or the routes change. Raycasts run on the client tick, walking the candidates round-robin
+ * and stopping at {@link WaypointState#visibilityRaysPerTick} rays or
+ * {@link WaypointState#visibilityBudgetMicros}, whichever comes first, so the tick never
+ * does more than a fixed amount of work however many points are in range.
+ *
+ * Results are kept per point and stamped with a generation. Moving past the threshold
+ * starts a new generation, which marks every result stale without touching it; block
+ * changes reported by the world mark stale only the results whose ray passes near the
+ * block. Stale results are still what the renderer shows until their ray is cast again,
+ * so nothing flickers while the cache catches up. Points not yet tested count as visible.
+ *
+ * Only touched from the client thread.
+ */
+public class WaypointVisibility {
+
+    private static final Minecraft mc = Minecraft.getMinecraft();
+
+    private static final WaypointVisibility INSTANCE = new WaypointVisibility(WaypointVisibility::worldRay);
+
+    static final byte UNKNOWN  = 0;
+    static final byte VISIBLE  = 1;
+    static final byte OCCLUDED = 2;
+
+    /** Blocks the eye may move before every result is retested. */
+    static final double MOVE_THRESHOLD = 1.0;
+    /** A changed block this close (centre to ray) may open or close the ray. */
+    static final double RAY_MARGIN = 1.0;
+    /** Block updates remembered between ticks; past this the whole cache goes stale. */
+    static final int MAX_DIRTY = 64;
+    /** Points tested at most, nearest first. */
+    static final int MAX_CANDIDATES = 1024;
+
+    /** Whether nothing solid lies between the eye and the block at (x, y, z), that block aside. */
+    interface RayTest {
+        boolean clear(double ex, double ey, double ez, int x, int y, int z);
+    }
+
+    /** Results for one group, indexed like its points; reset when the group is edited. */
+    private static final class Cache {
+        final WaypointGroup group;
+        int groupVersion;
+        byte[] result;
+        int[]  stamp;
+
+        Cache(WaypointGroup group) {
+            this.group = group;
+            reset();
+        }
+
+        void reset() {
+            groupVersion = group.version();
+            result = new byte[group.size()];
+            stamp  = new int[group.size()];
+        }
+    }
+
+    private final RayTest ray;
+    private final Map<WaypointGroup, Cache> caches = new IdentityHashMap<>();
+    private int generation = 1;
+    private int version;
+
+    // candidates, nearest first, and where the round-robin walk is
+    private Cache[] candCache = new Cache[0];
+    private int[]   candIndex = new int[0];
+    private int     candCount;
+    private int     cursor;
+    private int     routesVersion = -1;
+    private double  anchorX = Double.NaN, anchorY, anchorZ;
+
+    // block updates since the last tick
+    private final long[] dirty = new long[MAX_DIRTY];
+    private int     dirtyCount;
+    private boolean dirtyOverflow;
+
+    private final IWorldAccess listener = new BlockListener();
+
+    WaypointVisibility(RayTest ray) { this.ray = ray; }
+
+    public static WaypointVisibility getInstance() { return INSTANCE; }
+
+    // ------------------------------------------------------------------ events
+
+    @SubscribeEvent
+    public void onClientTick(TickEvent.ClientTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) return;
+        if (mc.thePlayer == null || mc.theWorld == null) return;
+        WaypointState state = WaypointState.getInstance();
+        if (!state.visibilityMode || !state.enabled) {
+            if (!caches.isEmpty()) clear();
+            return;
+        }
+        WaypointProfiler perf = WaypointProfiler.getInstance();
+        long start = perf.start();
+        Entity p = mc.thePlayer;
+        tick(state, p.posX, p.posY + p.getEyeHeight(), p.posZ, System.nanoTime());
+        perf.lap(WaypointProfiler.VISIBILITY, start);
+    }
+
+    @SubscribeEvent
+    public void onWorldLoad(WorldEvent.Load event) {
+        // singleplayer server worlds fire too; their block updates come from the server thread
+        if (!event.world.isRemote) return;
+        event.world.addWorldAccess(listener);
+        clear();
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event) {
+        if (!event.world.isRemote) return;
+        event.world.removeWorldAccess(listener);
+        clear();
+    }
+
+    // ------------------------------------------------------------------ queries (renderer)
+
+    /** Bumped whenever any result changes; the near-box overlay refills on it. */
+    public int version() { return version; }
+
+    /** Whether point {@code i} of {@code g} was last seen to be behind a block. */
+    public boolean isOccluded(WaypointGroup g, int i) {
+        Cache c = caches.get(g);
+        return c != null && c.groupVersion == g.version() && i < c.result.length && c.result[i] == OCCLUDED;
+    }
+
+    // ------------------------------------------------------------------ tick
+
+    /** One tick's worth of raycasting from the eye at (ex, ey, ez). */
+    void tick(WaypointState state, double ex, double ey, double ez, long nowNanos) {
+        WaypointState.Routes routes = state.routes();
+        boolean edited = false;
+        for (WaypointState.Nav nav : routes.all) {
+            Cache c = nav.group == null ? null : caches.get(nav.group);
+            if (c != null && c.groupVersion != nav.group.version()) {
+                c.reset();
+                edited = true;
+            }
+        }
+        double dx = ex - anchorX, dy = ey - anchorY, dz = ez - anchorZ;
+        boolean moved = !(dx * dx + dy * dy + dz * dz <= MOVE_THRESHOLD * MOVE_THRESHOLD);
+        if (moved || edited || routes.version != routesVersion) {
+            if (moved) {
+                anchorX = ex; anchorY = ey; anchorZ = ez;
+                generation++;
+            }
+            routesVersion = routes.version;
+            collect(routes, state.visibilityRange);
+        }
+        applyDirty(ex, ey, ez);
+
+        long deadline = nowNanos + state.visibilityBudgetMicros * 1000L;
+        boolean changed = false;
+        for (int rays = 0, scanned = 0; rays < state.visibilityRaysPerTick && scanned < candCount; scanned++) {
+            int k = cursor;
+            cursor = cursor + 1 == candCount ? 0 : cursor + 1;
+            Cache c = candCache[k];
+            int i = candIndex[k];
+            if (c.stamp[i] == generation) continue;
+            WaypointGroup g = c.group;
+            byte r = ray.clear(ex, ey, ez, (int) Math.floor(g.x(i)), (int) Math.floor(g.y(i)), (int) Math.floor(g.z(i)))
+                    ? VISIBLE : OCCLUDED;
+            c.stamp[i] = generation;
+            if (c.result[i] != r) {
+                c.result[i] = r;
+                changed = true;
+            }
+            rays++;
+            if (System.nanoTime() >= deadline) break;
+        }
+        if (changed) version++;
+    }
+
+    /** Forget everything, e.g. when the mode is turned off or the world changes. */
+    public void clear() {
+        if (!caches.isEmpty()) version++;
+        caches.clear();
+        candCount = 0;
+        cursor = 0;
+        routesVersion = -1;
+        anchorX = Double.NaN;
+        dirtyCount = 0;
+        dirtyOverflow = false;
+    }
+
+    /** Points in range of the anchor across all routes, nearest first; drops caches of hidden routes. */
+    private void collect(WaypointState.Routes routes, double range) {
+        Map<WaypointGroup, Cache> keep = new IdentityHashMap<>();
+        List<long[]> found = new ArrayList<>(); // {distSq bits, route slot, index}
+        List<Cache> slots = new ArrayList<>();
+        for (WaypointState.Nav nav : routes.all) {
+            if (!nav.hasGroup() || keep.containsKey(nav.group)) continue;
+            WaypointGroup g = nav.group;
+            Cache c = caches.get(g);
+            if (c == null) c = new Cache(g);
+            keep.put(g, c);
+            int slot = slots.size();
+            slots.add(c);
+            g.spatialIndex().forEachWithin(anchorX, anchorY, anchorZ, range, i -> found.add(new long[] {
+                    Double.doubleToLongBits(g.distanceSq(i, anchorX, anchorY, anchorZ)), slot, i }));
+        }
+        caches.clear();
+        caches.putAll(keep);
+
+        // non-negative doubles sort the same as their bits
+        found.sort((a, b) -> Long.compare(a[0], b[0]));
+        int n = Math.min(found.size(), MAX_CANDIDATES);
+        if (candIndex.length < n) {
+            candCache = new Cache[n];
+            candIndex = new int[n];
+        }
+        for (int k = 0; k < n; k++) {
+            long[] f = found.get(k);
+            candCache[k] = slots.get((int) f[1]);
+            candIndex[k] = (int) f[2];
+        }
+        candCount = n;
+        cursor = 0;
+    }
+
+    /** Mark stale the results whose ray passes near a block that changed since the last tick. */
+    private void applyDirty(double ex, double ey, double ez) {
+        if (dirtyOverflow) {
+            generation++;
+            cursor = 0;
+        } else if (dirtyCount > 0) {
+            for (int k = 0; k < candCount; k++) {
+                Cache c = candCache[k];
+                int i = candIndex[k];
+                if (c.stamp[i] != generation) continue;
+                double tx = Math.floor(c.group.x(i)) + 0.5, ty = Math.floor(c.group.y(i)) + 0.5, tz = Math.floor(c.group.z(i)) + 0.5;
+                for (int d = 0; d < dirtyCount; d++) {
+                    long pos = dirty[d];
+                    if (segmentDistSq(ex, ey, ez, tx, ty, tz,
+                            blockX(pos) + 0.5, blockY(pos) + 0.5, blockZ(pos) + 0.5) <= RAY_MARGIN * RAY_MARGIN) {
+                        c.stamp[i] = 0;
+                        break;
+                    }
+                }
+            }
+            cursor = 0;
+        }
+        dirtyCount = 0;
+        dirtyOverflow = false;
+    }
+
+    /** Squared distance from (px, py, pz) to the segment a-b. */
+    static double segmentDistSq(double ax, double ay, double az, double bx, double by, double bz,
+                                double px, double py, double pz) {
+        double vx = bx - ax, vy = by - ay, vz = bz - az;
+        double wx = px - ax, wy = py - ay, wz = pz - az;
+        double len = vx * vx + vy * vy + vz * vz;
+        double t = len == 0 ? 0 : Math.max(0, Math.min(1, (wx * vx + wy * vy + wz * vz) / len));
+        double dx = wx - t * vx, dy = wy - t * vy, dz = wz - t * vz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // ------------------------------------------------------------------ block updates
+
+    void blockChanged(int x, int y, int z) {
+        if (candCount == 0) return;
+        if (dirtyCount == MAX_DIRTY) { dirtyOverflow = true; return; }
+        dirty[dirtyCount++] = pack(x, y, z);
+    }
+
+    void rangeChanged(int x1, int y1, int z1, int x2, int y2, int z2) {
+        if (candCount == 0) return;
+        // single-block updates come through as a 3x3x3 range; anything bigger is a chunk
+        if (x2 - x1 > 2 || y2 - y1 > 2 || z2 - z1 > 2) dirtyOverflow = true;
+        else blockChanged((x1 + x2) >> 1, (y1 + y2) >> 1, (z1 + z2) >> 1);
+    }
+
+    private static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (y & 0xFFF) << 26) | (z & 0x3FFFFFF);
+    }
+
+    private static int blockX(long p) { return (int) (p >> 38); }
+    private static int blockY(long p) { return (int) (p << 26 >> 52); }
+    private static int blockZ(long p) { return (int) (p << 38 >> 38); }
+
+    /** Forwards block changes in the client world; everything else is ignored. */
+    private final class BlockListener implements IWorldAccess {
+        @Override public void markBlockForUpdate(BlockPos pos) { blockChanged(pos.getX(), pos.getY(), pos.getZ()); }
+        @Override public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2) {
+            rangeChanged(x1, y1, z1, x2, y2, z2);
+        }
+        @Override public void notifyLightSet(BlockPos pos) {}
+        @Override public void playSound(String soundName, double x, double y, double z, float volume, float pitch) {}
+        @Override public void playSoundToNearExcept(EntityPlayer except, String soundName, double x, double y, double z,
+                                                    float volume, float pitch) {}
+        @Override public void spawnParticle(int particleID, boolean ignoreRange, double x, double y, double z,
+                                            double xOffset, double yOffset, double zOffset, int... params) {}
+        @Override public void onEntityAdded(Entity entity) {}
+        @Override public void onEntityRemoved(Entity entity) {}
+        @Override public void playRecord(String recordName, BlockPos pos) {}
+        @Override public void broadcastSound(int soundId, BlockPos pos, int data) {}
+        @Override public void playAuxSFX(EntityPlayer player, int sfxType, BlockPos pos, int data) {}
+        @Override public void sendBlockBreakProgress(int breakerId, BlockPos pos, int progress) {}
+    }
+
+    /** Raycast through the client world, counting a hit on the target block itself as clear. */
+    private static boolean worldRay(double ex, double ey, double ez, int x, int y, int z) {
+        World world = mc.theWorld;
+        if (world == null) return true;
+        MovingObjectPosition hit = world.rayTraceBlocks(new Vec3(ex, ey, ez),
+                new Vec3(x + 0.5, y + 0.5, z + 0.5), false, true, false);
+        if (hit == null || hit.typeOfHit != MovingObjectPosition.MovingObjectType.BLOCK) return true;
+        BlockPos pos = hit.getBlockPos();
+        return pos.getX() == x && pos.getY() == y && pos.getZ() == z;
+    }
+}
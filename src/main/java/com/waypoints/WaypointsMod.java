@@ -1,5 +1,6 @@
 package com.waypoints;
 
+import net.minecraft.client.Minecraft;
 import net.minecraftforge.client.ClientCommandHandler;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.fml.common.Mod;
@@ -25,8 +26,14 @@ public class WaypointsMod {
 
     @Mod.EventHandler
     public void init(FMLInitializationEvent e) {
-        WaypointStorage.getInstance().load();
+        WaypointStorage storage = WaypointStorage.getInstance();
+        storage.load();
+        // Snapshots are taken on the client thread, where commands edit the groups
+        storage.setSnapshotExecutor(task -> Minecraft.getMinecraft().addScheduledTask(task));
+        Runtime.getRuntime().addShutdownHook(new Thread(storage::shutdown, "Waypoints-Shutdown"));
         MinecraftForge.EVENT_BUS.register(new WaypointRenderer());
+        MinecraftForge.EVENT_BUS.register(new WaypointAdvanceEngine());
+        MinecraftForge.EVENT_BUS.register(WaypointVisibility.getInstance());
         ClientCommandHandler.instance.registerCommand(new WaypointCommand());
     }
 }
\ No newline at end of file